@@ -0,0 +1,100 @@
+package org.bof.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.bof.geometric.DescriptorGeometry;
+import org.bof.geometric.GeometricBlur;
+import org.bof.geometric.PyramidStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Gaussian pyramid phase of the geometric blur descriptor, i.e. every
+ * channel blurred on every level with the default parameters, directly from
+ * the edge image or cascaded from the level below, stored as doubles, as
+ * floats or as memory mapped floats, with Gauss3 or the flat convolution.
+ *
+ * @author David Kolb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class BlurPyramidBenchmark {
+
+    /** The width and height of the edge image. */
+    @Param({"256", "1024", "4096"})
+    public int imageSize;
+
+    /** Whether each level is blurred from the one below. */
+    @Param({"false", "true"})
+    public boolean cascaded;
+
+    /** Whether the levels are blurred on primitive arrays. */
+    @Param({"false", "true"})
+    public boolean flat;
+
+    /** Where the pyramid is stored: double, float or mapped. */
+    @Param({"double", "float", "mapped"})
+    public String storage;
+
+    private ArrayImg<FloatType, ?> m_img;
+
+    private ExecutorService m_pool;
+
+    private GeometricBlur m_blur;
+
+    private PyramidStorage<?> m_storage;
+
+    /**
+     * Creates the image and the thread pool.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_img = Fixtures.edgeImage(imageSize);
+        m_blur = new GeometricBlur(2, 10, 5, cascaded,
+                DescriptorGeometry.DEFAULT, flat);
+        if (storage.equals("double")) {
+            m_storage = PyramidStorage.doubles();
+        } else {
+            m_storage = PyramidStorage.floats(storage.equals("mapped") ? 0
+                    : Long.MAX_VALUE);
+        }
+        m_pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stops the thread pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_pool.shutdown();
+    }
+
+    /**
+     * @return the pyramid
+     */
+    @Benchmark
+    public Object pyramid() {
+        return m_blur.createPyramid(m_img, m_pool, m_storage);
+    }
+}
@@ -0,0 +1,97 @@
+package org.bof.bench;
+
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Synthetic inputs of the benchmarks. All fixtures are deterministic, so
+ * runs on different revisions see the same data.
+ *
+ * @author David Kolb
+ */
+final class Fixtures {
+
+    /** Number of edge channels of the descriptor. */
+    static final int CHANNELS = 4;
+
+    /** Prefix of the cluster labels. */
+    static final String LABEL_PREFIX = "cluster_";
+
+    private Fixtures() {
+        // utility class
+    }
+
+    /**
+     * Creates a 4 channel edge image of oriented sine gratings with some
+     * noise, which looks roughly like the output of an oriented edge filter.
+     *
+     * @param size the width and height
+     * @return the image, x, y and channel
+     */
+    static ArrayImg<FloatType, ?> edgeImage(final int size) {
+        ArrayImg<FloatType, ?> img = new ArrayImgFactory<FloatType>().create(
+                new long[]{size, size, CHANNELS}, new FloatType());
+        Random random = new Random(42);
+        Cursor<FloatType> cursor = img.localizingCursor();
+        while (cursor.hasNext()) {
+            cursor.fwd();
+            int x = cursor.getIntPosition(0);
+            int y = cursor.getIntPosition(1);
+            double angle = cursor.getIntPosition(2) * Math.PI / CHANNELS;
+            double v = Math.sin(0.2 * (x * Math.cos(angle) + y * Math.sin(angle)));
+            cursor.get().set((float)(Math.max(0, v) + 0.1 * random.nextDouble()));
+        }
+        return img;
+    }
+
+    /**
+     * @param count the number of keypoints
+     * @param size the width and height of the image
+     * @param seed the seed, different for x and y
+     * @return uniformly distributed pixel coordinates
+     */
+    static double[] coordinates(final int count, final int size,
+            final long seed) {
+        Random random = new Random(seed);
+        double[] coordinates = new double[count];
+        for (int i = 0; i < count; i++) {
+            coordinates[i] = random.nextInt(size);
+        }
+        return coordinates;
+    }
+
+    /**
+     * @param vocabulary the number of words
+     * @return the label of every word, index is the word
+     */
+    static String[] labels(final int vocabulary) {
+        String[] labels = new String[vocabulary];
+        for (int i = 0; i < vocabulary; i++) {
+            labels[i] = LABEL_PREFIX + i;
+        }
+        return labels;
+    }
+
+    /**
+     * Draws the words of the keypoints from a Zipf-like distribution, as
+     * real vocabularies have a few very frequent words.
+     *
+     * @param count the number of keypoints
+     * @param labels the labels of the vocabulary
+     * @return the label of each keypoint, shared with <code>labels</code>
+     */
+    static String[] keypointLabels(final int count, final String[] labels) {
+        Random random = new Random(11);
+        String[] keypointLabels = new String[count];
+        for (int i = 0; i < count; i++) {
+            double u = random.nextDouble();
+            int word = (int)(Math.pow(labels.length, u) - 1);
+            keypointLabels[i] = labels[Math.min(word, labels.length - 1)];
+        }
+        return keypointLabels;
+    }
+}
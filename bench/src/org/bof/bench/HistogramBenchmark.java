@@ -0,0 +1,160 @@
+package org.bof.bench;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bof.histogram.ClusterLabelDecoder;
+import org.bof.histogram.HistogramAggregator;
+import org.bof.histogram.HistogramMerger;
+import org.bof.histogram.HistogramSink;
+import org.bof.histogram.ParallelHistogramBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Histogram accumulation of the HistogrammCreator node without the KNIME
+ * table around it: decoding the cluster labels and counting them per image
+ * on grouped input, with the hash aggregation used for unsorted input and
+ * with the parallel builder. One operation is the whole table.
+ *
+ * @author David Kolb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class HistogramBenchmark {
+
+    /** Number of images of the table. */
+    private static final int IMAGES = 16;
+
+    /** The number of words of the vocabulary. */
+    @Param({"100", "1000", "100000"})
+    public int vocabulary;
+
+    /** The number of keypoints per image. */
+    @Param({"100", "10000", "100000"})
+    public int keypoints;
+
+    private String[] m_keys;
+
+    private String[] m_labels;
+
+    private ClusterLabelDecoder m_decoder;
+
+    private File m_tmpDir;
+
+    /**
+     * Creates the keypoint table, grouped by image.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] labels = Fixtures.labels(vocabulary);
+        m_labels = Fixtures.keypointLabels(IMAGES * keypoints, labels);
+        m_keys = new String[m_labels.length];
+        for (int i = 0; i < m_keys.length; i++) {
+            m_keys[i] = "img" + (i / keypoints);
+        }
+        m_decoder = new ClusterLabelDecoder(Fixtures.LABEL_PREFIX,
+                vocabulary, Arrays.asList(labels));
+        m_tmpDir = new File(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * The single threaded path on grouped input.
+     *
+     * @param blackhole consumes the histograms
+     */
+    @Benchmark
+    public void grouped(final Blackhole blackhole) {
+        int[] histogram = new int[vocabulary];
+        String imgId = null;
+        for (int i = 0; i < m_keys.length; i++) {
+            if (imgId != null && !imgId.equals(m_keys[i])) {
+                blackhole.consume(histogram);
+                Arrays.fill(histogram, 0);
+            }
+            imgId = m_keys[i];
+            histogram[m_decoder.decode(m_labels[i])]++;
+        }
+        blackhole.consume(histogram);
+    }
+
+    /**
+     * The single threaded path on unsorted input, all histograms fit into
+     * memory.
+     *
+     * @param blackhole consumes the histograms
+     * @throws Exception never
+     */
+    @Benchmark
+    public void aggregated(final Blackhole blackhole) throws Exception {
+        HistogramAggregator aggregator = new HistogramAggregator(vocabulary,
+                IMAGES, m_tmpDir);
+        try {
+            for (int i = 0; i < m_keys.length; i++) {
+                aggregator.histogram(m_keys[i])[m_decoder.decode(m_labels[i])]++;
+            }
+            aggregator.finish(new BlackholeSink(blackhole));
+        } finally {
+            aggregator.close();
+        }
+    }
+
+    /**
+     * The parallel path on grouped input with one thread per core.
+     *
+     * @param blackhole consumes the histograms
+     * @throws Exception never
+     */
+    @Benchmark
+    public void parallel(final Blackhole blackhole) throws Exception {
+        HistogramMerger merger = new HistogramMerger(vocabulary,
+                new BlackholeSink(blackhole));
+        ParallelHistogramBuilder builder = new ParallelHistogramBuilder(
+                m_decoder, Runtime.getRuntime().availableProcessors(),
+                ParallelHistogramBuilder.DEFAULT_CHUNK_SIZE, merger);
+        try {
+            for (int i = 0; i < m_keys.length; i++) {
+                builder.add(m_keys[i], m_labels[i]);
+            }
+            builder.finish();
+            merger.finish();
+        } finally {
+            builder.close();
+        }
+    }
+
+    private static final class BlackholeSink implements HistogramSink {
+
+        private final Blackhole m_blackhole;
+
+        BlackholeSink(final Blackhole blackhole) {
+            m_blackhole = blackhole;
+        }
+
+        @Override
+        public void histogram(final String key, final int[] counts) {
+            m_blackhole.consume(counts);
+        }
+
+        @Override
+        public void histogram(final String key, final double[] counts) {
+            m_blackhole.consume(counts);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package org.bof.bench;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import org.bof.geometric.DescriptorGeometry;
+import org.bof.geometric.GeometricBlur;
+import org.bof.geometric.PyramidStorage;
+
+/**
+ * Compares cascaded with direct blur pyramids on the benchmark fixtures and
+ * fails if they differ by more than {@link GeometricBlur#CASCADE_TOLERANCE}
+ * relative to the largest value of the edge image. It also compares the
+ * descriptors evaluated sparsely with the ones sampled from the direct
+ * pyramid, which may only differ by rounding, float pyramids, on the heap
+ * and memory mapped, with double ones, and pyramids of the flat convolution
+ * with the ones of Gauss3, which may only differ by rounding as well.
+ * <p>
+ * All pyramids are blurred by the Gauss3 of the classpath. If it does not
+ * blur, e.g. a stub or an incompatible version, every pyramid would be
+ * equal, so the check first blurs a single pixel with it and exits with 2
+ * if the result is not its kernel.
+ * <p>
+ * Run it after changing the pyramid construction:
+ * <pre>
+ * java -cp &lt;classpath&gt; org.bof.bench.PyramidToleranceCheck
+ * </pre>
+ *
+ * @author David Kolb
+ */
+public final class PyramidToleranceCheck {
+
+    // minSigma, maxSigma and blurLevels of the checked pyramids
+    private static final double[][] PARAMETERS = {
+        {2, 10, 5}, {1, 10, 5}, {2, 20, 5}, {0.5, 4, 8}};
+
+    private static final int[] SIZES = {64, 256};
+
+    // the largest relative difference of sparse and dense descriptors
+    private static final double SPARSE_TOLERANCE = 1e-9;
+
+    // the largest relative difference of flat and Gauss3 pyramids
+    private static final double FLAT_TOLERANCE = 1e-9;
+
+    // keypoints of the sparse check, on and close to the borders as well
+    private static final int KEYPOINTS = 200;
+
+    // sigma and size of the image of the Gauss3 check
+    private static final double CHECK_SIGMA = 2;
+
+    private static final int CHECK_SIZE = 33;
+
+    private PyramidToleranceCheck() {
+        // main class
+    }
+
+    /**
+     * @param args ignored
+     */
+    public static void main(final String[] args) {
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        boolean failed = false;
+        try {
+            String gauss3 = checkGauss3(pool);
+            if (gauss3 != null) {
+                System.err.println("Gauss3 of the classpath does not blur, "
+                        + gauss3 + ". Put the imglib2-algorithm of the"
+                        + " plugin on the classpath.");
+                System.exit(2);
+            }
+            for (int size : SIZES) {
+                ArrayImg<FloatType, ?> img = Fixtures.edgeImage(size);
+                double max = 0;
+                for (FloatType value : img) {
+                    max = Math.max(max, Math.abs(value.getRealDouble()));
+                }
+                for (double[] p : PARAMETERS) {
+                    int levels = (int)p[2];
+                    double[] difference = compare(
+                            new GeometricBlur(p[0], p[1], levels, false)
+                                    .createPyramid(img, pool),
+                            new GeometricBlur(p[0], p[1], levels, true)
+                                    .createPyramid(img, pool));
+                    double worst = 0;
+                    StringBuilder line = new StringBuilder(String.format(
+                            Locale.US, "%4d px, sigma %4.1f..%4.1f, %d levels:",
+                            size, p[0], p[1], levels));
+                    for (double d : difference) {
+                        line.append(String.format(Locale.US, " %.2e", d / max));
+                        worst = Math.max(worst, d / max);
+                    }
+                    boolean ok = worst <= GeometricBlur.CASCADE_TOLERANCE;
+                    System.out.println(line + (ok ? "  ok" : "  FAILED"));
+                    failed |= !ok;
+
+                    GeometricBlur direct = new GeometricBlur(p[0], p[1],
+                            levels);
+                    double[] xs = Fixtures.coordinates(KEYPOINTS, size, 7);
+                    double[] ys = Fixtures.coordinates(KEYPOINTS, size, 8);
+                    xs[0] = 0;
+                    ys[1] = size - 1;
+                    double sparse = compare(GeometricBlur.sample(
+                            direct.createPyramid(img, pool), xs, ys, pool),
+                            direct.sampleSparse(img, xs, ys, pool)) / max;
+                    failed |= !report("sparse:", sparse, SPARSE_TOLERANCE);
+
+                    // direct into mapped cells, cascaded on the heap
+                    double floats = 0;
+                    for (boolean cascaded : new boolean[]{false, true}) {
+                        GeometricBlur blur = new GeometricBlur(p[0], p[1],
+                                levels, cascaded);
+                        PyramidStorage<FloatType> storage = PyramidStorage
+                                .floats(cascaded ? Long.MAX_VALUE : 0);
+                        for (double d : compare(blur.createPyramid(img, pool),
+                                blur.createPyramid(img, pool, storage))) {
+                            floats = Math.max(floats, d / max);
+                        }
+                    }
+                    failed |= !report("float:", floats,
+                            GeometricBlur.FLOAT_TOLERANCE);
+
+                    double flat = 0;
+                    for (boolean cascaded : new boolean[]{false, true}) {
+                        for (double d : compare(new GeometricBlur(p[0], p[1],
+                                levels, cascaded).createPyramid(img, pool),
+                                new GeometricBlur(p[0], p[1], levels, cascaded,
+                                        DescriptorGeometry.DEFAULT, true)
+                                        .createPyramid(img, pool))) {
+                            flat = Math.max(flat, d / max);
+                        }
+                    }
+                    failed |= !report("flat:", flat, FLAT_TOLERANCE);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    // blurs a single pixel, null if the result is the kernel of Gauss3,
+    // otherwise what is wrong
+    private static String checkGauss3(final ExecutorService pool) {
+        try {
+            double[] kernel = Gauss3.halfkernels(new double[]{CHECK_SIGMA})[0];
+            double sum = kernel[0];
+            for (int i = 1; i < kernel.length; i++) {
+                sum += 2 * kernel[i];
+            }
+            if (Math.abs(sum - 1) > 1e-9) {
+                return "its kernel sums up to " + sum;
+            }
+            int center = CHECK_SIZE / 2;
+            Img<DoubleType> source = new ArrayImgFactory<DoubleType>().create(
+                    new long[]{CHECK_SIZE, CHECK_SIZE}, new DoubleType());
+            RandomAccess<DoubleType> access = source.randomAccess();
+            access.setPosition(new int[]{center, center});
+            access.get().set(1);
+            Img<DoubleType> target = source.factory().create(source,
+                    new DoubleType());
+            Gauss3.gauss(new double[]{CHECK_SIGMA, CHECK_SIGMA},
+                    Views.extendZero(source), target, pool);
+
+            double difference = 0;
+            Cursor<DoubleType> cursor = target.localizingCursor();
+            while (cursor.hasNext()) {
+                double value = cursor.next().get();
+                int dx = Math.abs(cursor.getIntPosition(0) - center);
+                int dy = Math.abs(cursor.getIntPosition(1) - center);
+                double expected = dx < kernel.length && dy < kernel.length
+                        ? kernel[dx] * kernel[dy] : 0;
+                difference = Math.max(difference, Math.abs(value - expected));
+            }
+            if (difference > 1e-9) {
+                return "a blurred pixel differs from its kernel by "
+                        + difference;
+            }
+            return null;
+        } catch (IncompatibleTypeException e) {
+            return e.toString();
+        } catch (RuntimeException e) {
+            // e.g. no kernels at all
+            return e.toString();
+        }
+    }
+
+    // prints the relative difference, whether it is within the tolerance
+    private static boolean report(final String label, final double difference,
+            final double tolerance) {
+        boolean ok = difference <= tolerance;
+        System.out.println(String.format(Locale.US, "%45s %.2e", label,
+                difference) + (ok ? "  ok" : "  FAILED"));
+        return ok;
+    }
+
+    // the largest absolute difference of the descriptors
+    private static double compare(final double[][] expected,
+            final double[][] actual) {
+        double difference = 0;
+        for (int k = 0; k < expected.length; k++) {
+            for (int i = 0; i < expected[k].length; i++) {
+                difference = Math.max(difference,
+                        Math.abs(expected[k][i] - actual[k][i]));
+            }
+        }
+        return difference;
+    }
+
+    // the largest absolute difference per sampled level
+    private static <P extends RealType<P>> double[] compare(
+            final Img<DoubleType> expected, final Img<P> actual) {
+        double[] difference = new double[(int)expected.dimension(3)];
+        Cursor<DoubleType> cursor = expected.localizingCursor();
+        RandomAccess<P> access = actual.randomAccess();
+        while (cursor.hasNext()) {
+            double value = cursor.next().get();
+            access.setPosition(cursor);
+            int level = cursor.getIntPosition(3);
+            difference[level] = Math.max(difference[level],
+                    Math.abs(value - access.get().getRealDouble()));
+        }
+        return difference;
+    }
+}
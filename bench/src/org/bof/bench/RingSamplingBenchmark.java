@@ -0,0 +1,91 @@
+package org.bof.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.DoubleType;
+
+import org.bof.geometric.GeometricBlur;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ring sampling phase of the geometric blur descriptor on a pyramid
+ * built once per trial, on one thread and in chunks on all cores.
+ *
+ * @author David Kolb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RingSamplingBenchmark {
+
+    /** The width and height of the edge image. */
+    @Param({"256", "1024", "4096"})
+    public int imageSize;
+
+    /** The number of keypoints per image. */
+    @Param({"100", "10000", "100000"})
+    public int keypoints;
+
+    private Img<DoubleType> m_pyramid;
+
+    private double[] m_xs;
+
+    private double[] m_ys;
+
+    private ExecutorService m_pool;
+
+    /**
+     * Builds the pyramid and the keypoints.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        m_pyramid = new GeometricBlur(2, 10, 5).createPyramid(
+                Fixtures.edgeImage(imageSize), m_pool);
+        m_xs = Fixtures.coordinates(keypoints, imageSize, 7);
+        m_ys = Fixtures.coordinates(keypoints, imageSize, 8);
+    }
+
+    /**
+     * @return the descriptors
+     */
+    @Benchmark
+    public double[][] sampling() {
+        return GeometricBlur.sample(m_pyramid, m_xs, m_ys);
+    }
+
+    /**
+     * @return the descriptors
+     */
+    @Benchmark
+    public double[][] parallelSampling() {
+        return GeometricBlur.sample(m_pyramid, m_xs, m_ys, m_pool);
+    }
+
+    /**
+     * Stops the threads.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_pool.shutdown();
+    }
+}
@@ -0,0 +1,103 @@
+package org.bof.bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.bof.geometric.GeometricBlur;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Both phases of the geometric blur descriptor, with a dense pyramid, with
+ * the blur evaluated at the samples only and with the evaluation picked by
+ * {@link GeometricBlur#describe}.
+ *
+ * @author David Kolb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SparseBlurBenchmark {
+
+    /** The width and height of the edge image. */
+    @Param({"256", "1024", "4096"})
+    public int imageSize;
+
+    /** The number of keypoints per image. */
+    @Param({"10", "100", "1000", "10000"})
+    public int keypoints;
+
+    private ArrayImg<FloatType, ?> m_img;
+
+    private double[] m_xs;
+
+    private double[] m_ys;
+
+    private ExecutorService m_pool;
+
+    private GeometricBlur m_blur;
+
+    /**
+     * Creates the image, the keypoints and the thread pool.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        m_img = Fixtures.edgeImage(imageSize);
+        m_xs = Fixtures.coordinates(keypoints, imageSize, 7);
+        m_ys = Fixtures.coordinates(keypoints, imageSize, 8);
+        m_blur = new GeometricBlur(2, 10, 5);
+        m_pool = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Stops the thread pool.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        m_pool.shutdown();
+    }
+
+    /**
+     * @return the descriptors
+     */
+    @Benchmark
+    public double[][] dense() {
+        return GeometricBlur.sample(m_blur.createPyramid(m_img, m_pool), m_xs,
+                m_ys, m_pool);
+    }
+
+    /**
+     * @return the descriptors
+     */
+    @Benchmark
+    public double[][] sparse() {
+        return m_blur.sampleSparse(m_img, m_xs, m_ys, m_pool);
+    }
+
+    /**
+     * @return the descriptors
+     */
+    @Benchmark
+    public double[][] automatic() {
+        return m_blur.describe(m_img, m_xs, m_ys, m_pool);
+    }
+}
@@ -0,0 +1,121 @@
+package org.bof;
+
+import java.io.IOException;
+
+import org.bof.histogram.CompactDescriptor;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataCellDataInput;
+import org.knime.core.data.DataCellDataOutput;
+import org.knime.core.data.DataCellSerializer;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DataValue;
+
+/**
+ * Cell holding a descriptor quantized to bytes or half precision floats,
+ * instead of one double cell per value.
+ * <p>
+ * A descriptor of 196 values takes 205 bytes as bytes and 401 bytes as half
+ * precision floats, including its scale, compared to 196 double cells.
+ *
+ * @author David Kolb
+ */
+public final class CompactDescriptorCell extends DataCell implements
+        CompactDescriptorValue {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+    /** Type of the cell. */
+    public static final DataType TYPE = DataType.getType(
+            CompactDescriptorCell.class);
+
+    private static final CompactDescriptorCellSerializer SERIALIZER =
+            new CompactDescriptorCellSerializer();
+
+    private final CompactDescriptor m_descriptor;
+
+    /**
+     * @param descriptor the quantized descriptor
+     */
+    public CompactDescriptorCell(final CompactDescriptor descriptor) {
+        m_descriptor = descriptor;
+    }
+
+    /**
+     * @return the serializer of the cell
+     */
+    public static DataCellSerializer<CompactDescriptorCell> getCellSerializer() {
+        return SERIALIZER;
+    }
+
+    /**
+     * @return the value class of the cell
+     */
+    public static Class<? extends DataValue> getPreferredValueClass() {
+        return CompactDescriptorValue.class;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompactDescriptor getDescriptor() {
+        return m_descriptor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean equalsDataCell(final DataCell dc) {
+        return m_descriptor.equals(((CompactDescriptorCell)dc).m_descriptor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return m_descriptor.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < m_descriptor.getLength(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(m_descriptor.getValue(i));
+        }
+        return sb.append("] (").append(m_descriptor.getEncoding())
+                .append(')').toString();
+    }
+
+    private static final class CompactDescriptorCellSerializer
+            implements DataCellSerializer<CompactDescriptorCell> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void serialize(final CompactDescriptorCell cell,
+                final DataCellDataOutput output) throws IOException {
+            cell.m_descriptor.write(output);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public CompactDescriptorCell deserialize(final DataCellDataInput input)
+                throws IOException {
+            return new CompactDescriptorCell(CompactDescriptor.read(input));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.bof;
+
+import org.bof.histogram.CompactDescriptor;
+import org.knime.core.data.DataValue;
+
+/**
+ * Interface of cells holding a complete descriptor as a single quantized
+ * vector.
+ *
+ * @author David Kolb
+ */
+public interface CompactDescriptorValue extends DataValue {
+
+    /**
+     * @return the quantized descriptor, distances can be computed on it
+     *         directly
+     */
+    CompactDescriptor getDescriptor();
+}
@@ -0,0 +1,34 @@
+package org.bof;
+
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * <code>NodeDialog</code> for the "DescriptorCompressor" Node.
+ * Replaces numeric descriptor columns by one column of quantized descriptors.
+ *
+ * @author David Kolb
+ */
+public class DescriptorCompressorNodeDialog extends DefaultNodeSettingsPane {
+
+    /**
+     * New pane for configuring the DescriptorCompressor node dialog.
+     */
+    protected DescriptorCompressorNodeDialog() {
+        super();
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	DescriptorCompressorNodeModel.CFGKEY_COLUMN_PREFIX,
+                	DescriptorCompressorNodeModel.DEFAULT_COLUMN_PREFIX),
+                    "descriptor column prefix:"));
+
+        addDialogComponent(new DialogComponentStringSelection(
+                new SettingsModelString(
+                	DescriptorCompressorNodeModel.CFGKEY_ENCODING,
+                	DescriptorCompressorNodeModel.ENCODINGS[0]),
+                    "encoding:", DescriptorCompressorNodeModel.ENCODINGS));
+    }
+}
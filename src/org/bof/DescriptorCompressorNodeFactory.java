@@ -0,0 +1,57 @@
+package org.bof;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * <code>NodeFactory</code> for the "DescriptorCompressor" Node.
+ * Replaces numeric descriptor columns by one column of quantized descriptors.
+ *
+ * @author David Kolb
+ */
+public class DescriptorCompressorNodeFactory
+        extends NodeFactory<DescriptorCompressorNodeModel> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DescriptorCompressorNodeModel createNodeModel() {
+        return new DescriptorCompressorNodeModel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrNodeViews() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeView<DescriptorCompressorNodeModel> createNodeView(final int viewIndex,
+            final DescriptorCompressorNodeModel nodeModel) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasDialog() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeDialogPane createNodeDialogPane() {
+        return new DescriptorCompressorNodeDialog();
+    }
+
+}
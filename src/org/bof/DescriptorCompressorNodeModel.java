@@ -0,0 +1,275 @@
+package org.bof;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bof.histogram.CompactDescriptor;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * This is the model implementation of DescriptorCompressor.
+ * Replaces the numeric descriptor columns, e.g. the ones of the geometric
+ * blur descriptor node, by one column of {@link CompactDescriptorCell}s,
+ * which the DescriptorQuantizer reads without decoding them.
+ * <p>
+ * The descriptor columns are the numeric columns whose names start with a
+ * prefix, in the order of the table. Their names become the element names
+ * of the compact column. All other columns are kept. A descriptor with a
+ * missing value becomes a missing cell.
+ *
+ * @author David Kolb
+ */
+public class DescriptorCompressorNodeModel extends NodeModel {
+
+    /** The config key for the prefix of the descriptor columns. */
+    static final String CFGKEY_COLUMN_PREFIX = "columnPrefix";
+    /** The config key for the encoding of the values. */
+    static final String CFGKEY_ENCODING = "encoding";
+
+    /** Default prefix, the one of the geometric blur descriptor node. */
+    static final String DEFAULT_COLUMN_PREFIX = "Descriptor Value #";
+
+    /** Name of the column of the compact descriptors. */
+    static final String DESCRIPTOR_COLUMN = "Compact Descriptor";
+
+    /** The names of the encodings. */
+    static final String[] ENCODINGS;
+
+    static {
+        CompactDescriptor.Encoding[] encodings =
+            CompactDescriptor.Encoding.values();
+        ENCODINGS = new String[encodings.length];
+        for (int i = 0; i < encodings.length; i++) {
+            ENCODINGS[i] = encodings[i].name();
+        }
+    }
+
+    // the settings model storing the prefix of the descriptor columns
+    private final SettingsModelString m_columnPrefix = new SettingsModelString(
+            CFGKEY_COLUMN_PREFIX, DEFAULT_COLUMN_PREFIX);
+
+    // the settings model storing the name of the encoding
+    private final SettingsModelString m_encoding = new SettingsModelString(
+            CFGKEY_ENCODING, CompactDescriptor.Encoding.UINT8.name());
+
+    /**
+     * Constructor for the node model.
+     */
+    protected DescriptorCompressorNodeModel() {
+        super(1, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
+            final ExecutionContext exec) throws Exception {
+
+        BufferedDataTable input = inData[0];
+        DataTableSpec inSpec = input.getDataTableSpec();
+        int[] colIndicesDescriptor = getDescriptorColumns(inSpec);
+        int[] colIndicesKept = getKeptColumns(inSpec, colIndicesDescriptor);
+        CompactDescriptor.Encoding encoding = getEncoding(
+                m_encoding.getStringValue());
+
+        BufferedDataContainer container = exec.createDataContainer(
+                createOutputSpec(inSpec, colIndicesDescriptor, colIndicesKept));
+        double[] descriptor = new double[colIndicesDescriptor.length];
+        DataCell[] cells = new DataCell[colIndicesKept.length + 1];
+        long rowIndex = 0;
+        for (DataRow row : input) {
+            exec.checkCanceled();
+            exec.setProgress(++rowIndex / (double)input.getRowCount(),
+                    "Compressing descriptor " + rowIndex);
+            for (int j = 0; j < colIndicesKept.length; j++) {
+                cells[j] = row.getCell(colIndicesKept[j]);
+            }
+            cells[colIndicesKept.length] = compress(row, colIndicesDescriptor,
+                    descriptor, encoding);
+            container.addRowToTable(new DefaultRow(row.getKey(), cells));
+        }
+        container.close();
+        return new BufferedDataTable[]{container.getTable()};
+    }
+
+    // the compact descriptor of a row, missing if a value is missing
+    private static DataCell compress(final DataRow row,
+            final int[] colIndicesDescriptor, final double[] descriptor,
+            final CompactDescriptor.Encoding encoding) {
+        for (int j = 0; j < colIndicesDescriptor.length; j++) {
+            DataCell cell = row.getCell(colIndicesDescriptor[j]);
+            if (cell.isMissing()) {
+                return DataType.getMissingCell();
+            }
+            descriptor[j] = ((DoubleValue)cell).getDoubleValue();
+        }
+        return new CompactDescriptorCell(CompactDescriptor.create(descriptor,
+                encoding));
+    }
+
+    // the numeric columns starting with the prefix
+    private int[] getDescriptorColumns(final DataTableSpec inSpec)
+            throws InvalidSettingsException {
+        String prefix = m_columnPrefix.getStringValue();
+        List<Integer> colIndices = new ArrayList<Integer>();
+        for (int i = 0; i < inSpec.getNumColumns(); i++) {
+            DataColumnSpec columnSpec = inSpec.getColumnSpec(i);
+            if (columnSpec.getName().startsWith(prefix)
+                    && columnSpec.getType().isCompatible(DoubleValue.class)) {
+                colIndices.add(i);
+            }
+        }
+        if (colIndices.isEmpty()) {
+            throw new InvalidSettingsException(
+                    "Input table contains no numeric column starting with "
+                    + prefix + " . Please (re-)configure the node.");
+        }
+        int[] result = new int[colIndices.size()];
+        for (int j = 0; j < result.length; j++) {
+            result[j] = colIndices.get(j);
+        }
+        return result;
+    }
+
+    // all columns but the descriptor columns
+    private static int[] getKeptColumns(final DataTableSpec inSpec,
+            final int[] colIndicesDescriptor) {
+        int[] colIndices = new int[inSpec.getNumColumns()
+                - colIndicesDescriptor.length];
+        int j = 0;
+        for (int i = 0; i < inSpec.getNumColumns(); i++) {
+            if (Arrays.binarySearch(colIndicesDescriptor, i) < 0) {
+                colIndices[j++] = i;
+            }
+        }
+        return colIndices;
+    }
+
+    private static DataTableSpec createOutputSpec(final DataTableSpec inSpec,
+            final int[] colIndicesDescriptor, final int[] colIndicesKept)
+            throws InvalidSettingsException {
+        DataColumnSpec[] columnSpecs =
+            new DataColumnSpec[colIndicesKept.length + 1];
+        for (int j = 0; j < colIndicesKept.length; j++) {
+            columnSpecs[j] = inSpec.getColumnSpec(colIndicesKept[j]);
+            if (columnSpecs[j].getName().equals(DESCRIPTOR_COLUMN)) {
+                throw new InvalidSettingsException("Input table already"
+                        + " contains the column " + DESCRIPTOR_COLUMN);
+            }
+        }
+        // the DescriptorQuantizer matches the codebook by the element names
+        DataColumnSpecCreator creator = new DataColumnSpecCreator(
+                DESCRIPTOR_COLUMN, CompactDescriptorCell.TYPE);
+        String[] elementNames = new String[colIndicesDescriptor.length];
+        for (int j = 0; j < elementNames.length; j++) {
+            elementNames[j] = inSpec.getColumnSpec(
+                    colIndicesDescriptor[j]).getName();
+        }
+        creator.setElementNames(elementNames);
+        columnSpecs[colIndicesKept.length] = creator.createSpec();
+        return new DataTableSpec(columnSpecs);
+    }
+
+    private static CompactDescriptor.Encoding getEncoding(final String name)
+            throws InvalidSettingsException {
+        try {
+            return CompactDescriptor.Encoding.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException("Unknown encoding: " + name
+                    + " . Please (re-)configure the node.", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void reset() {
+        // nothing to do
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
+            throws InvalidSettingsException {
+        getEncoding(m_encoding.getStringValue());
+        int[] colIndicesDescriptor = getDescriptorColumns(inSpecs[0]);
+        return new DataTableSpec[]{createOutputSpec(inSpecs[0],
+                colIndicesDescriptor,
+                getKeptColumns(inSpecs[0], colIndicesDescriptor))};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveSettingsTo(final NodeSettingsWO settings) {
+        m_columnPrefix.saveSettingsTo(settings);
+        m_encoding.saveSettingsTo(settings);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        m_columnPrefix.loadSettingsFrom(settings);
+        m_encoding.loadSettingsFrom(settings);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void validateSettings(final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        m_columnPrefix.validateSettings(settings);
+        m_encoding.validateSettings(settings);
+        getEncoding(settings.getString(CFGKEY_ENCODING));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadInternals(final File internDir,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException {
+        // nothing to do
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveInternals(final File internDir,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException {
+        // nothing to do
+    }
+
+}
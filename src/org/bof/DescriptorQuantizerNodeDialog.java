@@ -0,0 +1,67 @@
+package org.bof;
+
+import org.bof.histogram.HistogramWeighting;
+import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
+import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+
+/**
+ * <code>NodeDialog</code> for the "DescriptorQuantizer" Node.
+ * Assigns descriptors to the nearest words of a codebook and creates one histogram per image.
+ * 
+ * @author David Kolb
+ */
+public class DescriptorQuantizerNodeDialog extends DefaultNodeSettingsPane {
+
+    /**
+     * New pane for configuring the DescriptorQuantizer node dialog.
+     */
+    protected DescriptorQuantizerNodeDialog() {
+        super();
+
+        // 1 is hard assignment, more words are soft assigned
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelIntegerBounded(
+                	DescriptorQuantizerNodeModel.CFGKEY_NEIGHBOURS,
+                	1, 1, Integer.MAX_VALUE),
+                    "nearest words:", /*step*/ 1));
+
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelDoubleBounded(
+                	DescriptorQuantizerNodeModel.CFGKEY_SIGMA,
+                	1.0, Double.MIN_VALUE, Double.MAX_VALUE),
+                    "sigma:", /*step*/ 0.1));
+
+        addDialogComponent(new DialogComponentStringSelection(
+                new SettingsModelString(
+                	DescriptorQuantizerNodeModel.CFGKEY_OUTPUT_MODE,
+                	HistogramRowFactory.MODE_COLUMNS),
+                    "output:", HistogramRowFactory.OUTPUT_MODES));
+
+        addDialogComponent(new DialogComponentStringSelection(
+                new SettingsModelString(
+                	DescriptorQuantizerNodeModel.CFGKEY_WEIGHTING,
+                	HistogramWeighting.RAW.getLabel()),
+                    "weighting:", HistogramWeighting.labels()));
+
+        createNewGroup("Grouping");
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	DescriptorQuantizerNodeModel.CFGKEY_GROUP_COLUMN,
+                	HistogrammCreatorNodeModel.IMAGE_COLUMN),
+                    "group column (empty for row key prefix):"));
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	DescriptorQuantizerNodeModel.CFGKEY_ROWKEY_DELIMITER,
+                	"_"),
+                    "row key delimiter:"));
+
+        closeCurrentGroup();
+    }
+}
@@ -0,0 +1,57 @@
+package org.bof;
+
+import org.knime.core.node.NodeDialogPane;
+import org.knime.core.node.NodeFactory;
+import org.knime.core.node.NodeView;
+
+/**
+ * <code>NodeFactory</code> for the "DescriptorQuantizer" Node.
+ * Assigns descriptors to the nearest words of a codebook and creates one histogram per image.
+ *
+ * @author David Kolb
+ */
+public class DescriptorQuantizerNodeFactory 
+        extends NodeFactory<DescriptorQuantizerNodeModel> {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DescriptorQuantizerNodeModel createNodeModel() {
+        return new DescriptorQuantizerNodeModel();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrNodeViews() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeView<DescriptorQuantizerNodeModel> createNodeView(final int viewIndex,
+            final DescriptorQuantizerNodeModel nodeModel) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean hasDialog() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NodeDialogPane createNodeDialogPane() {
+        return new DescriptorQuantizerNodeDialog();
+    }
+
+}
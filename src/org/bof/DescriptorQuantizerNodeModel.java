@@ -0,0 +1,402 @@
+package org.bof;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bof.histogram.CompactDescriptor;
+import org.bof.histogram.DescriptorQuantizer;
+import org.bof.histogram.HistogramWeighting;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeModel;
+import org.knime.core.node.NodeSettingsRO;
+import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
+import org.knime.core.node.defaultnodesettings.SettingsModelString;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+
+/**
+ * This is the model implementation of DescriptorQuantizer.
+ * Assigns every descriptor to the nearest words of a codebook and directly
+ * accumulates one bag-of-features histogram per image, so neither the
+ * assignments nor their labels have to be written to a table.
+ * <p>
+ * The descriptor dimensions are the numeric columns of the codebook, they
+ * are looked up by name in the descriptor table. If the descriptor table
+ * has a column of {@link CompactDescriptorValue}s instead, the descriptors
+ * are read from it in their quantized form and the codebook columns are
+ * looked up by the element names of that column. Each codebook row is one
+ * word.
+ * The descriptors of an image have to be consecutive.
+ *
+ * @author David Kolb
+ */
+public class DescriptorQuantizerNodeModel extends NodeModel {
+
+    /** The config key for the column the descriptors are grouped by. */
+    static final String CFGKEY_GROUP_COLUMN = "groupColumn";
+    /** The config key for the delimiter of the row key prefix. */
+    static final String CFGKEY_ROWKEY_DELIMITER = "rowKeyDelimiter";
+    /** The config key for the number of nearest words. */
+    static final String CFGKEY_NEIGHBOURS = "neighbours";
+    /** The config key for the width of the soft assignment kernel. */
+    static final String CFGKEY_SIGMA = "sigma";
+    /** The config key for the output mode. */
+    static final String CFGKEY_OUTPUT_MODE = "outputMode";
+    /** The config key for the weighting. */
+    static final String CFGKEY_WEIGHTING = "weighting";
+
+    /** Port of the descriptor table. */
+    static final int DESCRIPTOR_PORT = 0;
+    /** Port of the codebook table. */
+    static final int CODEBOOK_PORT = 1;
+
+    // the settings model storing the column the descriptors are grouped by,
+    // empty to group by the row key prefix
+    private final SettingsModelString m_groupColumn = new SettingsModelString(
+            CFGKEY_GROUP_COLUMN, HistogrammCreatorNodeModel.IMAGE_COLUMN);
+
+    // the settings model storing the delimiter of the row key prefix
+    private final SettingsModelString m_rowKeyDelimiter = new SettingsModelString(
+            CFGKEY_ROWKEY_DELIMITER, "_");
+
+    // the settings model storing the number of nearest words, 1 is hard
+    // assignment
+    private final SettingsModelIntegerBounded m_neighbours =
+        new SettingsModelIntegerBounded(CFGKEY_NEIGHBOURS, 1, 1,
+                Integer.MAX_VALUE);
+
+    // the settings model storing the width of the soft assignment kernel
+    private final SettingsModelDoubleBounded m_sigma =
+        new SettingsModelDoubleBounded(CFGKEY_SIGMA, 1.0, Double.MIN_VALUE,
+                Double.MAX_VALUE);
+
+    // the settings model storing the output mode
+    private final SettingsModelString m_outputMode = new SettingsModelString(
+            CFGKEY_OUTPUT_MODE, HistogramRowFactory.MODE_COLUMNS);
+
+    // the settings model storing the weighting of the histograms
+    private final SettingsModelString m_weighting = new SettingsModelString(
+            CFGKEY_WEIGHTING, HistogramWeighting.RAW.getLabel());
+
+    /**
+     * Constructor for the node model.
+     */
+    protected DescriptorQuantizerNodeModel() {
+        super(2, 1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
+            final ExecutionContext exec) throws Exception {
+
+        BufferedDataTable descriptors = inData[DESCRIPTOR_PORT];
+        BufferedDataTable codebook = inData[CODEBOOK_PORT];
+
+        List<String> dimensions = getDimensions(codebook.getDataTableSpec(),
+                descriptors.getDataTableSpec());
+        double[][] words = readCodebook(codebook, dimensions);
+
+        BufferedDataContainer container = exec.createDataContainer(
+                createRowFactory(words.length).createSpec());
+        BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(container);
+        HistogramWriter writer = new HistogramWriter(words.length,
+                m_outputMode.getStringValue(), getWeighting(),
+                m_neighbours.getIntValue() > 1, output, exec);
+        DescriptorQuantizer quantizer = new DescriptorQuantizer(words,
+                m_neighbours.getIntValue(), m_sigma.getDoubleValue(), writer);
+
+        int colIndexCompact = findCompactColumn(
+                descriptors.getDataTableSpec());
+        int[] colIndices = new int[colIndexCompact < 0 ? dimensions.size() : 0];
+        for (int j = 0; j < colIndices.length; j++) {
+            colIndices[j] = descriptors.getDataTableSpec().findColumnIndex(
+                    dimensions.get(j));
+        }
+        int colIndexGroup = -1;
+        if (!m_groupColumn.getStringValue().isEmpty()) {
+            colIndexGroup = descriptors.getDataTableSpec().findColumnIndex(
+                    m_groupColumn.getStringValue());
+        }
+        String delimiter = m_rowKeyDelimiter.getStringValue();
+
+        double[] descriptor = new double[colIndices.length];
+        int skipped = 0;
+        long rowIndex = 0;
+        rows:
+        for (DataRow row : descriptors) {
+            exec.checkCanceled();
+            exec.setProgress(++rowIndex / (double)descriptors.getRowCount(),
+                    "Quantizing descriptor " + rowIndex);
+            if (colIndexCompact >= 0) {
+                DataCell cell = row.getCell(colIndexCompact);
+                if (cell.isMissing()) {
+                    skipped++;
+                    continue;
+                }
+                CompactDescriptor compact =
+                    ((CompactDescriptorValue)cell).getDescriptor();
+                if (compact.getLength() != dimensions.size()) {
+                    throw new InvalidSettingsException("Compact descriptor of "
+                            + row.getKey() + " has " + compact.getLength()
+                            + " values, the codebook " + dimensions.size());
+                }
+                quantizer.add(HistogrammCreatorNodeModel.getGroupKey(row,
+                        colIndexGroup, delimiter), compact);
+                continue;
+            }
+            for (int j = 0; j < colIndices.length; j++) {
+                DataCell cell = row.getCell(colIndices[j]);
+                if (cell.isMissing()) {
+                    skipped++;
+                    continue rows;
+                }
+                descriptor[j] = ((DoubleValue)cell).getDoubleValue();
+            }
+            quantizer.add(HistogrammCreatorNodeModel.getGroupKey(row,
+                    colIndexGroup, delimiter), descriptor);
+        }
+        quantizer.finish();
+        writer.close();
+
+        if (skipped > 0) {
+            setWarningMessage(skipped
+                    + " descriptors with missing values were skipped");
+        }
+        return new BufferedDataTable[]{output.getDataTable()};
+    }
+
+    // the first column of compact descriptors, -1 if there is none
+    private static int findCompactColumn(final DataTableSpec descriptorSpec) {
+        for (int i = 0; i < descriptorSpec.getNumColumns(); i++) {
+            if (descriptorSpec.getColumnSpec(i).getType().isCompatible(
+                    CompactDescriptorValue.class)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // the codebook columns which make up a descriptor, in the order of the
+    // compact descriptors if the descriptor table has them
+    private static List<String> getDimensions(final DataTableSpec codebookSpec,
+            final DataTableSpec descriptorSpec) throws InvalidSettingsException {
+        int colIndexCompact = findCompactColumn(descriptorSpec);
+        if (colIndexCompact >= 0) {
+            return getCompactDimensions(codebookSpec,
+                    descriptorSpec.getColumnSpec(colIndexCompact));
+        }
+        List<String> dimensions = new ArrayList<String>();
+        for (DataColumnSpec columnSpec : codebookSpec) {
+            if (!columnSpec.getType().isCompatible(DoubleValue.class)) {
+                continue;
+            }
+            DataColumnSpec descriptorColumn = descriptorSpec.getColumnSpec(
+                    columnSpec.getName());
+            if (descriptorColumn == null || !descriptorColumn.getType()
+                    .isCompatible(DoubleValue.class)) {
+                throw new InvalidSettingsException(
+                        "Descriptor table contains not the numeric column "
+                        + columnSpec.getName() + " of the codebook");
+            }
+            dimensions.add(columnSpec.getName());
+        }
+        if (dimensions.isEmpty()) {
+            throw new InvalidSettingsException(
+                    "Codebook contains no numeric columns");
+        }
+        return dimensions;
+    }
+
+    // the DescriptorCompressor records the names of the compressed columns as
+    // element names, they are looked up in the codebook; without them the
+    // numeric codebook columns are taken in the order of the table
+    private static List<String> getCompactDimensions(
+            final DataTableSpec codebookSpec,
+            final DataColumnSpec compactSpec) throws InvalidSettingsException {
+        List<String> elementNames = compactSpec.getElementNames();
+        if (elementNames.size() == 1
+                && elementNames.get(0).equals(compactSpec.getName())) {
+            List<String> dimensions = new ArrayList<String>();
+            for (DataColumnSpec columnSpec : codebookSpec) {
+                if (columnSpec.getType().isCompatible(DoubleValue.class)) {
+                    dimensions.add(columnSpec.getName());
+                }
+            }
+            if (dimensions.isEmpty()) {
+                throw new InvalidSettingsException(
+                        "Codebook contains no numeric columns");
+            }
+            return dimensions;
+        }
+        for (String name : elementNames) {
+            DataColumnSpec codebookColumn = codebookSpec.getColumnSpec(name);
+            if (codebookColumn == null || !codebookColumn.getType()
+                    .isCompatible(DoubleValue.class)) {
+                throw new InvalidSettingsException(
+                        "Codebook contains not the numeric column " + name
+                        + " of the compact descriptors");
+            }
+        }
+        return new ArrayList<String>(elementNames);
+    }
+
+    private static double[][] readCodebook(final BufferedDataTable codebook,
+            final List<String> dimensions) throws InvalidSettingsException {
+        int[] colIndices = new int[dimensions.size()];
+        for (int j = 0; j < colIndices.length; j++) {
+            colIndices[j] = codebook.getDataTableSpec().findColumnIndex(
+                    dimensions.get(j));
+        }
+        double[][] words = new double[codebook.getRowCount()][colIndices.length];
+        int w = 0;
+        for (DataRow row : codebook) {
+            for (int j = 0; j < colIndices.length; j++) {
+                DataCell cell = row.getCell(colIndices[j]);
+                if (cell.isMissing()) {
+                    throw new InvalidSettingsException("Word " + row.getKey()
+                            + " of the codebook contains missing values");
+                }
+                words[w][j] = ((DoubleValue)cell).getDoubleValue();
+            }
+            w++;
+        }
+        if (words.length == 0) {
+            throw new InvalidSettingsException("The codebook is empty");
+        }
+        return words;
+    }
+
+    private HistogramRowFactory createRowFactory(final int numWords)
+            throws InvalidSettingsException {
+        return new HistogramRowFactory(numWords, m_outputMode.getStringValue(),
+                getWeighting() != HistogramWeighting.RAW
+                || m_neighbours.getIntValue() > 1);
+    }
+
+    private HistogramWeighting getWeighting() throws InvalidSettingsException {
+        return HistogrammCreatorNodeModel.getWeighting(
+                m_weighting.getStringValue());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void reset() {
+        // nothing to do
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected DataTableSpec[] configure(final DataTableSpec[] inSpecs)
+            throws InvalidSettingsException {
+
+        getDimensions(inSpecs[CODEBOOK_PORT], inSpecs[DESCRIPTOR_PORT]);
+        getWeighting();
+
+        if (!m_groupColumn.getStringValue().isEmpty()
+                && !inSpecs[DESCRIPTOR_PORT].containsName(
+                        m_groupColumn.getStringValue())) {
+            throw new InvalidSettingsException(
+                    "Input table contains not the grouping column "
+                    + m_groupColumn.getStringValue()
+                    + " . Please (re-)configure the node.");
+        }
+
+        // the number of words is only known at execution time, which is
+        // enough for the vector layout
+        if (HistogramRowFactory.MODE_VECTOR.equals(m_outputMode.getStringValue())) {
+            return new DataTableSpec[]{createRowFactory(0).createSpec()};
+        }
+        return new DataTableSpec[]{null};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveSettingsTo(final NodeSettingsWO settings) {
+        m_groupColumn.saveSettingsTo(settings);
+        m_rowKeyDelimiter.saveSettingsTo(settings);
+        m_neighbours.saveSettingsTo(settings);
+        m_sigma.saveSettingsTo(settings);
+        m_outputMode.saveSettingsTo(settings);
+        m_weighting.saveSettingsTo(settings);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadValidatedSettingsFrom(final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        m_groupColumn.loadSettingsFrom(settings);
+        m_rowKeyDelimiter.loadSettingsFrom(settings);
+        m_neighbours.loadSettingsFrom(settings);
+        m_sigma.loadSettingsFrom(settings);
+        m_outputMode.loadSettingsFrom(settings);
+        m_weighting.loadSettingsFrom(settings);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void validateSettings(final NodeSettingsRO settings)
+            throws InvalidSettingsException {
+        m_groupColumn.validateSettings(settings);
+        m_rowKeyDelimiter.validateSettings(settings);
+        m_neighbours.validateSettings(settings);
+        m_sigma.validateSettings(settings);
+        m_outputMode.validateSettings(settings);
+        m_weighting.validateSettings(settings);
+        HistogrammCreatorNodeModel.getWeighting(
+                settings.getString(CFGKEY_WEIGHTING));
+        if (!Arrays.asList(HistogramRowFactory.OUTPUT_MODES).contains(
+                settings.getString(CFGKEY_OUTPUT_MODE))) {
+            throw new InvalidSettingsException("Unknown output mode: "
+                    + settings.getString(CFGKEY_OUTPUT_MODE)
+                    + " . Please (re-)configure the node.");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void loadInternals(final File internDir,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException {
+        // nothing to do
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void saveInternals(final File internDir,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException {
+        // nothing to do
+    }
+
+}
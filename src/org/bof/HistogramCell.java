@@ -0,0 +1,290 @@
+package org.bof;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataCellDataInput;
+import org.knime.core.data.DataCellDataOutput;
+import org.knime.core.data.DataCellSerializer;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DataValue;
+
+/**
+ * Cell holding a histogram as one vector.
+ * <p>
+ * Histograms with few occupied bins are stored sparse as sorted bin indices
+ * and their values, all others dense as one primitive array. The layout is
+ * chosen by {@link #create(double[])} from the fill ratio. Histograms of
+ * plain counts are serialized as ints.
+ *
+ * @author David Kolb
+ */
+public final class HistogramCell extends DataCell implements HistogramValue {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 1L;
+
+    /** Type of the cell. */
+    public static final DataType TYPE = DataType.getType(HistogramCell.class);
+
+    // a sparse bin costs an int index plus the value, so sparse only pays
+    // off if less than this ratio of the bins are occupied
+    private static final double SPARSE_FILL_RATIO = 0.5;
+
+    private static final int FLAG_SPARSE = 1;
+
+    private static final int FLAG_INTEGRAL = 2;
+
+    private static final HistogramCellSerializer SERIALIZER =
+            new HistogramCellSerializer();
+
+    private final int m_length;
+
+    // sorted indices of the occupied bins, null if dense
+    private final int[] m_bins;
+
+    private final double[] m_values;
+
+    private HistogramCell(final int length, final int[] bins,
+            final double[] values) {
+        m_length = length;
+        m_bins = bins;
+        m_values = values;
+    }
+
+    /**
+     * Creates a cell, sparse if only few bins are occupied.
+     *
+     * @param counts the histogram
+     * @return the new cell
+     */
+    public static HistogramCell create(final int[] counts) {
+        double[] values = new double[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            values[i] = counts[i];
+        }
+        return create(values, false);
+    }
+
+    /**
+     * Creates a cell, sparse if only few bins are occupied.
+     *
+     * @param values the histogram, not referenced by the cell
+     * @return the new cell
+     */
+    public static HistogramCell create(final double[] values) {
+        return create(values, true);
+    }
+
+    private static HistogramCell create(final double[] values,
+            final boolean copy) {
+        int nonZero = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                nonZero++;
+            }
+        }
+        if (nonZero >= values.length * SPARSE_FILL_RATIO) {
+            return new HistogramCell(values.length, null,
+                    copy ? values.clone() : values);
+        }
+        int[] bins = new int[nonZero];
+        double[] sparse = new double[nonZero];
+        int k = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                bins[k] = i;
+                sparse[k] = values[i];
+                k++;
+            }
+        }
+        return new HistogramCell(values.length, bins, sparse);
+    }
+
+    /**
+     * @return the serializer of the cell
+     */
+    public static DataCellSerializer<HistogramCell> getCellSerializer() {
+        return SERIALIZER;
+    }
+
+    /**
+     * @return the value class of the cell
+     */
+    public static Class<? extends DataValue> getPreferredValueClass() {
+        return HistogramValue.class;
+    }
+
+    /**
+     * @return whether the histogram is stored sparse
+     */
+    public boolean isSparse() {
+        return m_bins != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getLength() {
+        return m_length;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getValue(final int bin) {
+        if (m_bins == null) {
+            return m_values[bin];
+        }
+        int k = Arrays.binarySearch(m_bins, bin);
+        return k < 0 ? 0 : m_values[k];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNumNonZero() {
+        if (m_bins != null) {
+            return m_bins.length;
+        }
+        int nonZero = 0;
+        for (int i = 0; i < m_values.length; i++) {
+            if (m_values[i] != 0) {
+                nonZero++;
+            }
+        }
+        return nonZero;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int nextNonZero(final int from) {
+        if (m_bins == null) {
+            for (int i = Math.max(from, 0); i < m_values.length; i++) {
+                if (m_values[i] != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        int k = Arrays.binarySearch(m_bins, Math.max(from, 0));
+        if (k < 0) {
+            k = -k - 1;
+        }
+        return k < m_bins.length ? m_bins[k] : -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected boolean equalsDataCell(final DataCell dc) {
+        HistogramCell other = (HistogramCell)dc;
+        if (m_length != other.m_length) {
+            return false;
+        }
+        for (int i = nextNonZero(0), j = other.nextNonZero(0); i >= 0 || j >= 0;
+                i = nextNonZero(i + 1), j = other.nextNonZero(j + 1)) {
+            if (i != j || getValue(i) != other.getValue(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int hash = m_length;
+        for (int i = nextNonZero(0); i >= 0; i = nextNonZero(i + 1)) {
+            long bits = Double.doubleToLongBits(getValue(i));
+            hash = 31 * hash + 31 * i + (int)(bits ^ (bits >>> 32));
+        }
+        return hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = nextNonZero(0); i >= 0; i = nextNonZero(i + 1)) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(i).append(':').append(getValue(i));
+        }
+        return sb.append("] (").append(m_length).append(" bins)").toString();
+    }
+
+    private boolean isIntegral() {
+        for (int i = 0; i < m_values.length; i++) {
+            if (m_values[i] != (int)m_values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class HistogramCellSerializer
+            implements DataCellSerializer<HistogramCell> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void serialize(final HistogramCell cell,
+                final DataCellDataOutput output) throws IOException {
+            boolean integral = cell.isIntegral();
+            output.writeByte((cell.isSparse() ? FLAG_SPARSE : 0)
+                    | (integral ? FLAG_INTEGRAL : 0));
+            output.writeInt(cell.m_length);
+            output.writeInt(cell.m_values.length);
+            for (int i = 0; i < cell.m_values.length; i++) {
+                if (cell.m_bins != null) {
+                    output.writeInt(cell.m_bins[i]);
+                }
+                if (integral) {
+                    output.writeInt((int)cell.m_values[i]);
+                } else {
+                    output.writeDouble(cell.m_values[i]);
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public HistogramCell deserialize(final DataCellDataInput input)
+                throws IOException {
+            int flags = input.readByte();
+            int length = input.readInt();
+            int size = input.readInt();
+            int[] bins = (flags & FLAG_SPARSE) != 0 ? new int[size] : null;
+            double[] values = new double[size];
+            for (int i = 0; i < size; i++) {
+                if (bins != null) {
+                    bins[i] = input.readInt();
+                }
+                if ((flags & FLAG_INTEGRAL) != 0) {
+                    values[i] = input.readInt();
+                } else {
+                    values[i] = input.readDouble();
+                }
+            }
+            return new HistogramCell(length, bins, values);
+        }
+    }
+}
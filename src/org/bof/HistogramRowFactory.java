@@ -0,0 +1,128 @@
+package org.bof;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+
+/**
+ * Creates the output spec and rows of histogram tables, either with one
+ * column per bin or with the whole histogram in one {@link HistogramCell}.
+ * The last column always holds the image id. Weighted histograms use double
+ * instead of int columns.
+ *
+ * @author David Kolb
+ */
+public class HistogramRowFactory {
+
+    /** Output mode with one numeric column per bin. */
+    public static final String MODE_COLUMNS = "Columns";
+
+    /** Output mode with one histogram vector per row. */
+    public static final String MODE_VECTOR = "Vector";
+
+    /** All output modes, the first one is the default. */
+    public static final String[] OUTPUT_MODES = {MODE_COLUMNS, MODE_VECTOR};
+
+    /** Name of the histogram column in vector mode. */
+    public static final String HISTOGRAM_COLUMN = "histogram";
+
+    /** Name of the image id column. */
+    public static final String IMAGE_ID_COLUMN = "imgToString";
+
+    // most counts are small, their cells are shared
+    private static final IntCell[] SMALL_COUNTS = new IntCell[256];
+
+    static {
+        for (int i = 0; i < SMALL_COUNTS.length; i++) {
+            SMALL_COUNTS[i] = new IntCell(i);
+        }
+    }
+
+    private static final DoubleCell ZERO = new DoubleCell(0);
+
+    private final int m_length;
+
+    private final boolean m_vector;
+
+    private final boolean m_weighted;
+
+    /**
+     * @param length the number of bins
+     * @param outputMode one of {@link #OUTPUT_MODES}
+     * @param weighted whether the rows hold weights instead of counts
+     */
+    public HistogramRowFactory(final int length, final String outputMode,
+            final boolean weighted) {
+        m_length = length;
+        m_vector = MODE_VECTOR.equals(outputMode);
+        m_weighted = weighted;
+    }
+
+    /**
+     * @return the spec of the histogram table
+     */
+    public DataTableSpec createSpec() {
+        DataColumnSpec imgSpec = new DataColumnSpecCreator(IMAGE_ID_COLUMN,
+                StringCell.TYPE).createSpec();
+        if (m_vector) {
+            return new DataTableSpec(new DataColumnSpecCreator(
+                    HISTOGRAM_COLUMN, HistogramCell.TYPE).createSpec(), imgSpec);
+        }
+        DataColumnSpec[] allColSpecs = new DataColumnSpec[m_length + 1];
+        for (int i = 0; i < m_length; i++) {
+            allColSpecs[i] = new DataColumnSpecCreator("cluster_" + i,
+                    m_weighted ? DoubleCell.TYPE : IntCell.TYPE).createSpec();
+        }
+        allColSpecs[m_length] = imgSpec;
+        return new DataTableSpec(allColSpecs);
+    }
+
+    /**
+     * @param key the key of the row
+     * @param counts the histogram, not referenced by the row
+     * @param imgId the id of the image
+     * @return the histogram row
+     */
+    public DataRow createRow(final RowKey key, final int[] counts,
+            final String imgId) {
+        if (m_vector) {
+            return new DefaultRow(key, HistogramCell.create(counts),
+                    new StringCell(imgId));
+        }
+        DataCell[] cells = new DataCell[m_length + 1];
+        for (int k = 0; k < m_length; k++) {
+            int count = counts[k];
+            cells[k] = count >= 0 && count < SMALL_COUNTS.length
+                    ? SMALL_COUNTS[count] : new IntCell(count);
+        }
+        cells[m_length] = new StringCell(imgId);
+        return new DefaultRow(key, cells);
+    }
+
+    /**
+     * @param key the key of the row
+     * @param weights the weighted histogram, not referenced by the row
+     * @param imgId the id of the image
+     * @return the histogram row
+     */
+    public DataRow createRow(final RowKey key, final double[] weights,
+            final String imgId) {
+        if (m_vector) {
+            return new DefaultRow(key, HistogramCell.create(weights),
+                    new StringCell(imgId));
+        }
+        DataCell[] cells = new DataCell[m_length + 1];
+        for (int k = 0; k < m_length; k++) {
+            cells[k] = weights[k] == 0 ? ZERO : new DoubleCell(weights[k]);
+        }
+        cells[m_length] = new StringCell(imgId);
+        return new DefaultRow(key, cells);
+    }
+}
@@ -0,0 +1,37 @@
+package org.bof;
+
+import org.knime.core.data.DataValue;
+
+/**
+ * Interface of cells holding a complete histogram as a single vector.
+ *
+ * @author David Kolb
+ */
+public interface HistogramValue extends DataValue {
+
+    /**
+     * @return the number of bins
+     */
+    int getLength();
+
+    /**
+     * @param bin the index of the bin
+     * @return the value of the bin
+     */
+    double getValue(int bin);
+
+    /**
+     * @return the number of bins with a value other than zero
+     */
+    int getNumNonZero();
+
+    /**
+     * Used to iterate over the occupied bins only:
+     * <code>for (int i = h.nextNonZero(0); i >= 0; i = h.nextNonZero(i + 1))</code>
+     *
+     * @param from the first bin to look at
+     * @return the index of the first non-zero bin at or after
+     *         <code>from</code>, -1 if there is none
+     */
+    int nextNonZero(int from);
+}
@@ -0,0 +1,168 @@
+package org.bof;
+
+import java.util.Arrays;
+
+import org.bof.histogram.HistogramSink;
+import org.bof.histogram.HistogramWeighting;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.RowKey;
+import org.knime.core.data.StringValue;
+import org.knime.core.node.BufferedDataContainer;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.ExecutionContext;
+import org.knime.core.node.streamable.RowOutput;
+
+/**
+ * Weights the finished histograms and pushes them as rows.
+ * Histograms with fractional counts are written as doubles even if they
+ * are not weighted.
+ * <p>
+ * Weightings which need the document frequencies of all images (TF-IDF)
+ * first buffer the histograms as compact {@link HistogramCell}s in a
+ * temporary table while counting the document frequencies, and weight and
+ * push them in one extra pass over that table in {@link #close()}.
+ *
+ * @author David Kolb
+ */
+public class HistogramWriter implements HistogramSink {
+
+    private final HistogramRowFactory m_rowFactory;
+
+    private final HistogramWeighting m_weighting;
+
+    private final RowOutput m_output;
+
+    private final ExecutionContext m_exec;
+
+    private final boolean m_fractional;
+
+    // the integer counts of a histogram as doubles
+    private final double[] m_doubleCounts;
+
+    // the counts of a buffered histogram, TF-IDF only
+    private final double[] m_counts;
+
+    private final double[] m_weights;
+
+    private int[] m_intCounts;
+
+    private int m_rowCurser = 0;
+
+    // the buffered histograms and their document frequencies, TF-IDF only
+    private HistogramRowFactory m_bufferFactory;
+
+    private BufferedDataContainer m_buffer;
+
+    private int[] m_documentFrequencies;
+
+    /**
+     * @param length the number of bins
+     * @param outputMode one of {@link HistogramRowFactory#OUTPUT_MODES}
+     * @param weighting the weighting of the histograms
+     * @param fractional whether the counts may be fractional
+     * @param output receives the rows
+     * @param exec used for the temporary table and progress
+     */
+    public HistogramWriter(final int length, final String outputMode,
+            final HistogramWeighting weighting, final boolean fractional,
+            final RowOutput output, final ExecutionContext exec) {
+        m_rowFactory = new HistogramRowFactory(length, outputMode,
+                weighting != HistogramWeighting.RAW || fractional);
+        m_weighting = weighting;
+        m_fractional = fractional;
+        m_output = output;
+        m_exec = exec;
+        m_doubleCounts = new double[length];
+        m_counts = new double[length];
+        m_weights = new double[length];
+        if (weighting.needsDocumentFrequencies()) {
+            m_bufferFactory = new HistogramRowFactory(length,
+                    HistogramRowFactory.MODE_VECTOR, false);
+            m_buffer = exec.createDataContainer(m_bufferFactory.createSpec());
+            m_documentFrequencies = new int[length];
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final int[] counts)
+            throws Exception {
+        if (m_weighting == HistogramWeighting.RAW && !m_fractional
+                && m_buffer == null) {
+            m_output.push(m_rowFactory.createRow(nextRowKey(), counts, key));
+            return;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            m_doubleCounts[i] = counts[i];
+        }
+        histogram(key, m_doubleCounts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final double[] counts)
+            throws Exception {
+        RowKey rowKey = nextRowKey();
+        if (m_buffer != null) {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    m_documentFrequencies[i]++;
+                }
+            }
+            m_buffer.addRowToTable(m_bufferFactory.createRow(rowKey, counts,
+                    key));
+        } else if (m_weighting == HistogramWeighting.RAW && !m_fractional) {
+            if (m_intCounts == null) {
+                m_intCounts = new int[counts.length];
+            }
+            for (int i = 0; i < counts.length; i++) {
+                m_intCounts[i] = (int)counts[i];
+            }
+            m_output.push(m_rowFactory.createRow(rowKey, m_intCounts, key));
+        } else {
+            m_weighting.apply(counts, m_weights);
+            m_output.push(m_rowFactory.createRow(rowKey, m_weights, key));
+        }
+    }
+
+    private RowKey nextRowKey() {
+        return new RowKey("Row " + m_rowCurser++);
+    }
+
+    /**
+     * Pushes the buffered histograms, if any, and closes the output.
+     *
+     * @throws Exception if the output failed or the execution was canceled
+     */
+    public void close() throws Exception {
+        if (m_buffer != null) {
+            m_buffer.close();
+            BufferedDataTable buffer = m_buffer.getTable();
+            double[] idf = HistogramWeighting.inverseDocumentFrequencies(
+                    m_documentFrequencies, buffer.getRowCount());
+            int rowIndex = 0;
+            for (DataRow row : buffer) {
+                HistogramValue histogram = (HistogramValue)row.getCell(0);
+                Arrays.fill(m_counts, 0);
+                for (int i = histogram.nextNonZero(0); i >= 0;
+                        i = histogram.nextNonZero(i + 1)) {
+                    m_counts[i] = histogram.getValue(i);
+                }
+                m_weighting.apply(m_counts, idf, m_weights);
+                m_output.push(m_rowFactory.createRow(row.getKey(), m_weights,
+                        ((StringValue)row.getCell(1)).getStringValue()));
+
+                m_exec.checkCanceled();
+                m_exec.setProgress(++rowIndex / (double)buffer.getRowCount(),
+                        "Weighting histogram " + rowIndex);
+            }
+            m_exec.clearTable(buffer);
+            m_buffer = null;
+        }
+        m_output.close();
+    }
+}
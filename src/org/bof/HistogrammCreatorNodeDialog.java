@@ -1,9 +1,18 @@
 package org.bof;
 
+import javax.swing.JFileChooser;
+
+import org.bof.histogram.HistogramWeighting;
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
+import org.knime.core.node.defaultnodesettings.DialogComponentFileChooser;
+import org.knime.core.node.defaultnodesettings.DialogComponentMultiLineString;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.core.node.defaultnodesettings.DialogComponentString;
+import org.knime.core.node.defaultnodesettings.DialogComponentStringSelection;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.util.ColumnFilter;
@@ -50,7 +59,115 @@ public class HistogrammCreatorNodeDialog extends DefaultNodeSettingsPane {
                 	HistogrammCreatorNodeModel.CFGKEY_COLUMN_NAME,
                 	""),
                     "column name:"));               
-                    
+
+        // one "column, pattern, range" line per further vocabulary
+        addDialogComponent(new DialogComponentMultiLineString(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_VOCABULARIES,
+                	""),
+                    "additional vocabularies:"));
+
+        addDialogComponent(new DialogComponentStringSelection(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_OUTPUT_MODE,
+                	HistogramRowFactory.MODE_COLUMNS),
+                    "output:", HistogramRowFactory.OUTPUT_MODES));
+
+        addDialogComponent(new DialogComponentStringSelection(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_WEIGHTING,
+                	HistogramWeighting.RAW.getLabel()),
+                    "weighting:", HistogramWeighting.labels()));
+
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelIntegerBounded(
+                	HistogrammCreatorNodeModel.CFGKEY_THREADS,
+                	HistogrammCreatorNodeModel.DEFAULT_THREADS,
+                    1, Integer.MAX_VALUE),
+                    "threads:", /*step*/ 1));
+
+        createNewGroup("Grouping");
+
+        // column the keypoints are grouped by
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_GROUP_COLUMN,
+                	HistogrammCreatorNodeModel.IMAGE_COLUMN),
+                    "group column (empty for row key prefix):"));
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_ROWKEY_DELIMITER,
+                	"_"),
+                    "row key delimiter:"));
+
+        addDialogComponent(new DialogComponentBoolean(
+                new SettingsModelBoolean(
+                	HistogrammCreatorNodeModel.CFGKEY_SORTED_INPUT,
+                	true),
+                    "rows of an image are consecutive"));
+
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelIntegerBounded(
+                	HistogrammCreatorNodeModel.CFGKEY_MAX_IMAGES,
+                	HistogrammCreatorNodeModel.DEFAULT_MAX_IMAGES,
+                    1, Integer.MAX_VALUE),
+                    "histograms in memory:", /*step*/ 1000));
+
+        addDialogComponent(new DialogComponentBoolean(
+                new SettingsModelBoolean(
+                	HistogrammCreatorNodeModel.CFGKEY_INCREMENTAL,
+                	false),
+                    "reuse histograms of unchanged images"));
+
+        closeCurrentGroup();
+
+        createNewGroup("Spatial pyramid");
+
+        // level l adds a grid of 2^l x 2^l cells
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelIntegerBounded(
+                	HistogrammCreatorNodeModel.CFGKEY_PYRAMID_LEVELS,
+                	1, 1, HistogrammCreatorNodeModel.MAX_PYRAMID_LEVELS),
+                    "levels (1 for a global histogram):", /*step*/ 1));
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_X_COLUMN,
+                	"X"),
+                    "x column:"));
+
+        addDialogComponent(new DialogComponentString(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_Y_COLUMN,
+                	"Y"),
+                    "y column:"));
+
+        // 0 takes the upper bound of the domain of the coordinate column
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelDoubleBounded(
+                	HistogrammCreatorNodeModel.CFGKEY_IMAGE_WIDTH,
+                	0, 0, Double.MAX_VALUE),
+                    "image width (0 for domain):", /*step*/ 1));
+
+        addDialogComponent(new DialogComponentNumber(
+                new SettingsModelDoubleBounded(
+                	HistogrammCreatorNodeModel.CFGKEY_IMAGE_HEIGHT,
+                	0, 0, Double.MAX_VALUE),
+                    "image height (0 for domain):", /*step*/ 1));
+
+        closeCurrentGroup();
+
+        createNewGroup("Matrix file (empty for none)");
+
+        // memory mapped copy of the histograms for other processes
+        addDialogComponent(new DialogComponentFileChooser(
+                new SettingsModelString(
+                	HistogrammCreatorNodeModel.CFGKEY_MATRIX_FILE,
+                	""),
+                    "histogramMatrixFile", JFileChooser.SAVE_DIALOG, ".bofm"));
+
+        closeCurrentGroup();
     }
 }
 
@@ -1,38 +1,73 @@
 package org.bof;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.bof.histogram.ClusterLabelDecoder;
+import org.bof.histogram.HistogramAggregator;
+import org.bof.histogram.HistogramCache;
+import org.bof.histogram.HistogramMatrixWriter;
+import org.bof.histogram.HistogramMerger;
+import org.bof.histogram.HistogramSink;
+import org.bof.histogram.HistogramStatistics;
+import org.bof.histogram.HistogramTee;
+import org.bof.histogram.HistogramWeighting;
+import org.bof.histogram.ParallelHistogramBuilder;
+import org.bof.histogram.ParallelHistogramBuilder.PartialHistogramHandler;
+import org.bof.histogram.VocabularyLayout;
 import org.knime.core.data.DataCell;
-import org.knime.core.data.DataColumnDomainCreator;
+import org.knime.core.data.DataColumnDomain;
 import org.knime.core.data.DataColumnSpec;
-import org.knime.core.data.DataColumnSpecCreator;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.data.RowKey;
-import org.knime.core.data.def.DefaultRow;
-import org.knime.core.data.def.DoubleCell;
-import org.knime.core.data.def.IntCell;
-import org.knime.core.data.def.StringCell;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.StringValue;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.defaultnodesettings.SettingsModel;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
+import org.knime.core.node.defaultnodesettings.SettingsModelDoubleBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.KNIMEConstants;
 import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
-import org.knime.knip.base.data.img.ImgPlusCell;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.InputPortRole;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
+import org.knime.knip.base.ThreadPoolExecutorService;
 
 
 /**
  * This is the model implementation of HistogrammCreator.
  * Creates a histrogram of a column in a specific range by counting all occurences of the values in this column. Also includes missing values in the histogram.
+ * The input is read in a single pass (or streamed row by row). Keypoints are
+ * grouped into images either by a grouping column or by their row key prefix.
  *
  * @author David Kolb
  */
@@ -50,9 +85,61 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     /** The config key for the pattern. */
     static final String CFGKEY_PATTERN = "pattern";
 
+    /** The config key for the column the keypoints are grouped by. */
+    static final String CFGKEY_GROUP_COLUMN = "groupColumn";
+    /** The config key for the delimiter of the row key prefix. */
+    static final String CFGKEY_ROWKEY_DELIMITER = "rowKeyDelimiter";
+    /** The config key for the flag whether the input is grouped by image. */
+    static final String CFGKEY_SORTED_INPUT = "sortedInput";
+    /** The config key for the number of histograms held in memory. */
+    static final String CFGKEY_MAX_IMAGES = "maxImagesInMemory";
+
+    /** The config key for the output mode. */
+    static final String CFGKEY_OUTPUT_MODE = "outputMode";
+
+    /** The config key for the number of threads. */
+    static final String CFGKEY_THREADS = "threads";
+
+    /** The config key for the weighting. */
+    static final String CFGKEY_WEIGHTING = "weighting";
+
+    /** The config key for the number of spatial pyramid levels. */
+    static final String CFGKEY_PYRAMID_LEVELS = "pyramidLevels";
+    /** The config key for the column of the x coordinates. */
+    static final String CFGKEY_X_COLUMN = "xColumn";
+    /** The config key for the column of the y coordinates. */
+    static final String CFGKEY_Y_COLUMN = "yColumn";
+    /** The config key for the image width. */
+    static final String CFGKEY_IMAGE_WIDTH = "imageWidth";
+    /** The config key for the image height. */
+    static final String CFGKEY_IMAGE_HEIGHT = "imageHeight";
+
+    /** The config key for the flag whether unchanged images are reused. */
+    static final String CFGKEY_INCREMENTAL = "incremental";
+
+    /** The config key for the additional vocabularies. */
+    static final String CFGKEY_VOCABULARIES = "vocabularies";
+
+    /** The config key for the matrix file, empty if none is written. */
+    static final String CFGKEY_MATRIX_FILE = "matrixFile";
+
+    /** Name of the file holding the cached histograms in the internals. */
+    private static final String CACHE_FILE = "histogramCache.bin";
+
+    /** Name of the file holding the statistics in the internals. */
+    private static final String STATISTICS_FILE = "statistics.bin";
+
     /** initial default count value. */
     static final int DEFAULT_COUNT = 1;
 	public static final int IN_PORT = 0;
+	/** Name of the column holding the image of each keypoint. */
+	static final String IMAGE_COLUMN = "Image";
+	/** Default number of threads, the rows are counted on the node thread. */
+	static final int DEFAULT_THREADS = 1;
+	/** Default number of histograms held in memory. */
+	static final int DEFAULT_MAX_IMAGES = 10000;
+	/** Maximum number of spatial pyramid levels, 4^4 cells per word. */
+	static final int MAX_PYRAMID_LEVELS = 5;
 
     // example value: the models count variable filled from the dialog 
     // and used in the models execution method. The default components of the
@@ -71,8 +158,117 @@ public class HistogrammCreatorNodeModel extends NodeModel {
  	// the settings model storing the pattern
   	private final SettingsModelString m_pattern = new SettingsModelString(
   			HistogrammCreatorNodeModel.CFGKEY_PATTERN, "");
+
+    // the settings model storing the column the keypoints are grouped by,
+    // empty to group by the row key prefix
+    private final SettingsModelString m_groupColumn = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_GROUP_COLUMN, IMAGE_COLUMN);
+
+    // the settings model storing the delimiter of the row key prefix
+    private final SettingsModelString m_rowKeyDelimiter = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_ROWKEY_DELIMITER, "_");
+
+    // the settings model storing whether the rows of an image are consecutive
+    private final SettingsModelBoolean m_sortedInput = new SettingsModelBoolean(
+            HistogrammCreatorNodeModel.CFGKEY_SORTED_INPUT, true);
+
+    // the settings model storing the number of histograms held in memory
+    private final SettingsModelIntegerBounded m_maxImages =
+        new SettingsModelIntegerBounded(HistogrammCreatorNodeModel.CFGKEY_MAX_IMAGES,
+                    HistogrammCreatorNodeModel.DEFAULT_MAX_IMAGES,
+                    1, Integer.MAX_VALUE);
+
+    // decoder of the cluster labels, created in configure
+    private ClusterLabelDecoder[] m_decoders;
+
+    // the settings model storing the output mode
+    private final SettingsModelString m_outputMode = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_OUTPUT_MODE,
+            HistogramRowFactory.MODE_COLUMNS);
+
+    // the settings model storing the number of threads
+    private final SettingsModelIntegerBounded m_threads =
+        new SettingsModelIntegerBounded(HistogrammCreatorNodeModel.CFGKEY_THREADS,
+                    HistogrammCreatorNodeModel.DEFAULT_THREADS,
+                    1, Integer.MAX_VALUE);
+
+    // the settings model storing the weighting of the histograms
+    private final SettingsModelString m_weighting = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_WEIGHTING,
+            HistogramWeighting.RAW.getLabel());
+
+    // the settings model storing the number of spatial pyramid levels,
+    // 1 for the global histogram only
+    private final SettingsModelIntegerBounded m_pyramidLevels =
+        new SettingsModelIntegerBounded(HistogrammCreatorNodeModel.CFGKEY_PYRAMID_LEVELS,
+                    1, 1, MAX_PYRAMID_LEVELS);
+
+    // the settings models storing the columns of the keypoint coordinates
+    private final SettingsModelString m_xColumn = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_X_COLUMN, "X");
+
+    private final SettingsModelString m_yColumn = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_Y_COLUMN, "Y");
+
+    // the settings models storing the image size, 0 to take the upper bound
+    // of the domain of the coordinate column
+    private final SettingsModelDoubleBounded m_imageWidth =
+        new SettingsModelDoubleBounded(HistogrammCreatorNodeModel.CFGKEY_IMAGE_WIDTH,
+                    0, 0, Double.MAX_VALUE);
+
+    private final SettingsModelDoubleBounded m_imageHeight =
+        new SettingsModelDoubleBounded(HistogrammCreatorNodeModel.CFGKEY_IMAGE_HEIGHT,
+                    0, 0, Double.MAX_VALUE);
+
+    // the settings model storing whether the histograms of images with
+    // unchanged rows are taken from the last execution
+    private final SettingsModelBoolean m_incremental = new SettingsModelBoolean(
+            HistogrammCreatorNodeModel.CFGKEY_INCREMENTAL, false);
+
+    // further vocabularies counted in the same pass, one
+    // "column, pattern, range" triple per line
+    private final SettingsModelString m_vocabularies = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_VOCABULARIES, "");
+
+    // the histograms are additionally written to this matrix file
+    private final SettingsModelString m_matrixFile = new SettingsModelString(
+            HistogrammCreatorNodeModel.CFGKEY_MATRIX_FILE, "");
+
+    // the histograms of the last execution, kept over resets and saved with
+    // the internals, null if not incremental
+    private HistogramCache m_cache;
+
+    // metrics and vocabulary statistics of the last execution, shown in the
+    // view, null if not executed
+    private HistogramStatistics m_statistics;
+
+    // settings added later on by their config keys, workflows of older
+    // versions do not contain them
+    private final Map<String, SettingsModel> m_optionalSettings =
+        createOptionalSettings();
     
 
+    private Map<String, SettingsModel> createOptionalSettings() {
+        Map<String, SettingsModel> settings =
+            new LinkedHashMap<String, SettingsModel>();
+        settings.put(CFGKEY_GROUP_COLUMN, m_groupColumn);
+        settings.put(CFGKEY_ROWKEY_DELIMITER, m_rowKeyDelimiter);
+        settings.put(CFGKEY_SORTED_INPUT, m_sortedInput);
+        settings.put(CFGKEY_MAX_IMAGES, m_maxImages);
+        settings.put(CFGKEY_OUTPUT_MODE, m_outputMode);
+        settings.put(CFGKEY_THREADS, m_threads);
+        settings.put(CFGKEY_WEIGHTING, m_weighting);
+        settings.put(CFGKEY_PYRAMID_LEVELS, m_pyramidLevels);
+        settings.put(CFGKEY_X_COLUMN, m_xColumn);
+        settings.put(CFGKEY_Y_COLUMN, m_yColumn);
+        settings.put(CFGKEY_IMAGE_WIDTH, m_imageWidth);
+        settings.put(CFGKEY_IMAGE_HEIGHT, m_imageHeight);
+        settings.put(CFGKEY_INCREMENTAL, m_incremental);
+        settings.put(CFGKEY_MATRIX_FILE, m_matrixFile);
+        settings.put(CFGKEY_VOCABULARIES, m_vocabularies);
+        return settings;
+    }
+
     /**
      * Constructor for the node model.
      */
@@ -89,108 +285,675 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     protected BufferedDataTable[] execute(final BufferedDataTable[] inData,
             final ExecutionContext exec) throws Exception {
 
-        // TODO do something here
-        logger.info("Node Model Stub... this is not yet implemented !");       
-        
-        DataTableSpec outputSpec = createOutputColumnSpec();
-        
         // the execution context will provide us with storage capacity, in this
         // case a data container to which we will add rows sequentially
         // Note, this container can also handle arbitrary big data tables, it
         // will buffer to disc if necessary.
-        BufferedDataContainer container = exec.createDataContainer(outputSpec);
-        
-        int[] histoCount = new int[m_range.getIntValue()];      
-        
-        int colIndexCluster = inData[IN_PORT].getDataTableSpec().findColumnIndex(
-                m_column.getStringValue());
-        
-        int colIndexImage = inData[IN_PORT].getDataTableSpec().findColumnIndex(
-                "Image");
-        
-        ArrayList<DataRow> distinctImg = new ArrayList<DataRow>();
-        ArrayList< ArrayList<DataRow> > distinctImgs = new ArrayList< ArrayList<DataRow> >();    
-        long oldHash = 0;
-        
-        int rowCount = 1;
-        for (DataRow currRow : inData[IN_PORT]) {
-        	ImgPlusCell<?> img = (ImgPlusCell<?>)currRow.getCell(colIndexImage);
-        	long newHash = img.hashCode();
-        	
-        	//end of table reached
-        	if( rowCount == inData[IN_PORT].getRowCount() ){
-        		distinctImg.add(currRow);
-        		distinctImgs.add(new ArrayList<DataRow>(distinctImg));
-        	}
-        	//curr img equal to img before
-        	else if( oldHash == 0 || newHash == oldHash  ){
-        		distinctImg.add(currRow);
-        	}        	
-        	//curr img not equal to img before
-        	else{
-        		distinctImgs.add(new ArrayList<DataRow>(distinctImg));
-        		distinctImg.clear();
-        		distinctImg.add(currRow);
-        	}  	
-        	oldHash = newHash;
-        	rowCount++;
+        BufferedDataContainer container = exec.createDataContainer(
+                createOutputColumnSpec());
+        BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(container);
+
+        createHistograms(new DataTableRowInput(inData[IN_PORT]), output,
+                inData[IN_PORT].getRowCount(), exec);
+
+        return new BufferedDataTable[]{output.getDataTable()};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public InputPortRole[] getInputPortRoles() {
+        return new InputPortRole[]{InputPortRole.NONDISTRIBUTED_STREAMABLE};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputPortRole[] getOutputPortRoles() {
+        return new OutputPortRole[]{OutputPortRole.NONDISTRIBUTED};
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(
+            final PartitionInfo partitionInfo, final PortObjectSpec[] inSpecs)
+            throws InvalidSettingsException {
+        return new StreamableOperator() {
+            @Override
+            public void runFinal(final PortInput[] inputs,
+                    final PortOutput[] outputs, final ExecutionContext exec)
+                    throws Exception {
+                // the row count of a stream is unknown
+                createHistograms((RowInput)inputs[IN_PORT],
+                        (RowOutput)outputs[0], -1, exec);
+            }
+        };
+    }
+
+    /**
+     * Reads the keypoint rows in a single pass and pushes one histogram row
+     * per image. On grouped input a histogram is pushed as soon as the next
+     * image starts, so only the histogram of the current image is kept in
+     * memory. Otherwise the histograms are aggregated by their image key.
+     *
+     * @param input the keypoint rows
+     * @param output receives one histogram row per image
+     * @param rowCount the number of input rows or -1 if unknown
+     * @param exec used for progress and cancellation
+     */
+    private void createHistograms(final RowInput input, final RowOutput output,
+            final long rowCount, final ExecutionContext exec) throws Exception {
+
+        DataTableSpec inSpec = input.getDataTableSpec();
+        List<Vocabulary> vocabularies = getVocabularies();
+        int[] colIndicesCluster = new int[vocabularies.size()];
+        for (int v = 0; v < colIndicesCluster.length; v++) {
+            colIndicesCluster[v] = inSpec.findColumnIndex(
+                    vocabularies.get(v).m_column);
         }
-       
-        
-        int rowCurser = 0;
-        for(ArrayList<DataRow> img : distinctImgs){
-        	for (DataRow currRow : img) {
-            	StringCell currCell = (StringCell)currRow.getCell(colIndexCluster);
-            	String currValue = currCell.getStringValue();
-            	
-            	String prePattern = currValue.substring(0, m_pattern.getStringValue().length());
-            	String postPattern = currValue.substring(m_pattern.getStringValue().length());
-            	    	
-            	if (prePattern.equals(m_pattern.getStringValue()) == false) {
-                    throw new InvalidSettingsException(
-                            "wrong pattern specified: " 
-                            + m_pattern.getStringValue() 
-                            + " . Please (re-)configure the node.");
+
+        // without a grouping column the row key prefix is used
+        int colIndexGroup = -1;
+        if (!m_groupColumn.getStringValue().isEmpty()) {
+            colIndexGroup = inSpec.findColumnIndex(m_groupColumn.getStringValue());
+        }
+
+        // normally created by configure, the stream may skip it though
+        ClusterLabelDecoder[] decoders = m_decoders;
+        if (decoders == null) {
+            decoders = createDecoders(inSpec, vocabularies);
+        }
+
+        // all vocabularies and levels of a spatial pyramid go into one flat
+        // histogram
+        VocabularyLayout layout = createLayout(inSpec, decoders);
+        int[] colIndicesXY = null;
+        if (layout.hasPyramid()) {
+            colIndicesXY = new int[]{
+                    inSpec.findColumnIndex(m_xColumn.getStringValue()),
+                    inSpec.findColumnIndex(m_yColumn.getStringValue())};
+        }
+        KeypointCounter counter = new KeypointCounter(colIndicesCluster,
+                layout, colIndicesXY);
+
+        // weights and pushes one row per finished histogram
+        HistogramWriter writer = new HistogramWriter(layout.getLength(),
+                m_outputMode.getStringValue(), getWeighting(), false, output,
+                exec);
+        HistogramMatrixWriter matrixWriter = null;
+        HistogramSink writers = writer;
+        if (!m_matrixFile.getStringValue().isEmpty()) {
+            matrixWriter = new HistogramMatrixWriter(
+                    new File(m_matrixFile.getStringValue()), layout.getLength(),
+                    getWeighting(), false);
+            writers = new HistogramTee(writer, matrixWriter);
+        }
+        HistogramStatistics sink = new HistogramStatistics(layout, writers);
+        sink.start();
+
+        // unchanged images are only recognized on grouped input, hashing
+        // their rows is cheaper than counting them on several threads
+        HistogramCache cache = null;
+        if (m_incremental.getBooleanValue()) {
+            long fingerprint = getSettingsFingerprint(layout);
+            cache = m_cache;
+            if (cache == null || cache.getFingerprint() != fingerprint) {
+                cache = new HistogramCache(fingerprint);
+            }
+        }
+
+        try {
+            if (cache != null) {
+                createGroupedHistograms(input, sink, counter, colIndexGroup,
+                        cache, rowCount, exec);
+            } else if (m_threads.getIntValue() > 1) {
+                createParallelHistograms(input, sink, counter, colIndexGroup,
+                        rowCount, exec);
+            } else if (m_sortedInput.getBooleanValue()) {
+                createGroupedHistograms(input, sink, counter, colIndexGroup,
+                        null, rowCount, exec);
+            } else {
+                createAggregatedHistograms(input, sink, counter, colIndexGroup,
+                        rowCount, exec);
+            }
+
+            input.close();
+            long start = System.nanoTime();
+            writer.close();
+            if (matrixWriter != null) {
+                matrixWriter.close();
+            }
+            sink.addWriteTime(System.nanoTime() - start);
+        } catch (Exception e) {
+            if (cache != null) {
+                cache.rollback();
+            }
+            if (matrixWriter != null) {
+                matrixWriter.discard();
+            }
+            throw e;
+        }
+
+        if (cache != null) {
+            logger.info("Reused the histograms of " + cache.getNumHits()
+                    + " unchanged images, counted " + cache.getNumMisses()
+                    + " images");
+            cache.commit();
+        }
+        m_cache = cache;
+
+        sink.stop();
+        m_statistics = sink;
+        logger.info("Created " + sink.getImages() + " histograms from "
+                + sink.getRows() + " rows in " + sink.getRunTime() + " s");
+    }
+
+    /**
+     * @return the metrics and vocabulary statistics of the last execution,
+     *         <code>null</code> if the node is not executed
+     */
+    HistogramStatistics getStatistics() {
+        return m_statistics;
+    }
+
+    // with a cache the rows of an image are only hashed while reading and
+    // counted at the end of the image if the hash is not in the cache
+    private void createGroupedHistograms(final RowInput input,
+            final HistogramStatistics sink, final KeypointCounter counter,
+            final int colIndexGroup, final HistogramCache cache,
+            final long rowCount, final ExecutionContext exec) throws Exception {
+
+        String delimiter = m_rowKeyDelimiter.getStringValue();
+        int[] histoCount = new int[counter.getLength()];
+        List<DataRow> imgRows = new ArrayList<DataRow>();
+        long imgHash = 0;
+
+        // key of the image the histogram is currently built for,
+        // null as long as no row has been added
+        String imgId = null;
+        long rowIndex = 0;
+
+        DataRow currRow;
+        while ((currRow = input.poll()) != null) {
+            String key = getGroupKey(currRow, colIndexGroup, delimiter);
+
+            //curr img not equal to img before, flush its histogram
+            if (imgId != null && !imgId.equals(key)) {
+                if (cache != null) {
+                    countCached(imgId, imgHash, imgRows, counter, cache,
+                            histoCount);
+                    imgHash = 0;
                 }
-            	else{
-            		Integer currHistoCount = new Integer(postPattern);
-            		histoCount[currHistoCount]++;
-            	}
+                sink.histogram(imgId, histoCount);
+                Arrays.fill(histoCount, 0);
             }
-            
-            
-            RowKey key = new RowKey("Row " + rowCurser); 
-                
-            DataCell[] cells = new DataCell[m_range.getIntValue() + 1];
-            for(int k = 0 ; k < m_range.getIntValue() ; k++){
-                cells[k] = new IntCell(histoCount[k]);
+            imgId = key;
+
+            if (cache != null) {
+                imgRows.add(currRow);
+                imgHash = counter.hash(imgHash, currRow);
+            } else {
+                counter.count(currRow, histoCount);
             }
-            
-            ImgPlusCell<?> imgForId = (ImgPlusCell<?>)img.get(0).getCell(colIndexImage);
-            String imgId = imgForId.getStringValue();		
-            
-            cells[m_range.getIntValue()] = new StringCell(imgId);
-            DataRow row = new DefaultRow(key, cells);
-            container.addRowToTable(row);
-                
-            //clear histoCount Array for next iteration
-            for(int j = 0 ; j < m_range.getIntValue() ; j++){
-                histoCount[j] = 0;
-            }
-                
+
             // check if the execution monitor was canceled
             exec.checkCanceled();
-            exec.setProgress(rowCurser / (double)m_range.getIntValue(), 
-                "Adding row " + rowCurser);
-            
-            rowCurser++;
+            reportProgress(exec, ++rowIndex, rowCount);
+        }
+
+        //end of table reached
+        if (imgId != null) {
+            if (cache != null) {
+                countCached(imgId, imgHash, imgRows, counter, cache,
+                        histoCount);
+            }
+            sink.histogram(imgId, histoCount);
+        }
+        sink.setRows(rowIndex);
+        sink.updatePeakMemory(4L * histoCount.length);
+    }
+
+    // takes the histogram of an image from the cache or counts its rows
+    private static void countCached(final String imgId, final long imgHash,
+            final List<DataRow> imgRows, final KeypointCounter counter,
+            final HistogramCache cache, final int[] histoCount)
+            throws InvalidSettingsException {
+        if (!cache.lookup(imgId, imgHash, histoCount)) {
+            for (DataRow row : imgRows) {
+                counter.count(row, histoCount);
+            }
+            cache.put(imgId, imgHash, histoCount);
+        }
+        imgRows.clear();
+    }
+
+    private void createAggregatedHistograms(final RowInput input,
+            final HistogramStatistics sink, final KeypointCounter counter,
+            final int colIndexGroup, final long rowCount,
+            final ExecutionContext exec) throws Exception {
+
+        String delimiter = m_rowKeyDelimiter.getStringValue();
+
+        HistogramAggregator aggregator = new HistogramAggregator(
+                counter.getLength(), m_maxImages.getIntValue(),
+                new File(KNIMEConstants.getKNIMETempDir()));
+        try {
+            long rowIndex = 0;
+            DataRow currRow;
+            while ((currRow = input.poll()) != null) {
+                int[] histoCount = aggregator.histogram(
+                        getGroupKey(currRow, colIndexGroup, delimiter));
+                counter.count(currRow, histoCount);
+
+                // check if the execution monitor was canceled
+                exec.checkCanceled();
+                reportProgress(exec, ++rowIndex, rowCount);
+            }
+
+            if (aggregator.getNumSpills() > 0) {
+                logger.info("Spilled partial histograms of "
+                        + aggregator.getNumImages() + " images "
+                        + aggregator.getNumSpills() + " times to disk");
+            }
+
+            sink.setRows(rowIndex);
+            sink.updatePeakMemory(aggregator.getAllocatedBytes());
+            aggregator.finish(sink);
+        } finally {
+            aggregator.close();
+        }
+    }
+
+    // decodes and counts chunks of rows on several threads, the histograms
+    // are merged or aggregated in input order
+    private void createParallelHistograms(final RowInput input,
+            final HistogramStatistics sink, final KeypointCounter counter,
+            final int colIndexGroup, final long rowCount,
+            final ExecutionContext exec) throws Exception {
+
+        String delimiter = m_rowKeyDelimiter.getStringValue();
+
+        final HistogramAggregator aggregator = new HistogramAggregator(
+                counter.getLength(), m_maxImages.getIntValue(),
+                new File(KNIMEConstants.getKNIMETempDir()));
+        HistogramMerger merger = null;
+        PartialHistogramHandler handler;
+        if (m_sortedInput.getBooleanValue()) {
+            merger = new HistogramMerger(counter.getLength(), sink);
+            handler = merger;
+        } else {
+            handler = new PartialHistogramHandler() {
+                @Override
+                public void partialHistogram(final String key,
+                        final int[] bins, final int[] counts)
+                        throws Exception {
+                    int[] histoCount = aggregator.histogram(key);
+                    for (int i = 0; i < bins.length; i++) {
+                        histoCount[bins[i]] += counts[i];
+                    }
+                }
+            };
+        }
+
+        // the chunks are counted on a sub-pool of the global KNIME pool
+        ParallelHistogramBuilder builder = new ParallelHistogramBuilder(
+                counter.m_layout, new ThreadPoolExecutorService(
+                        KNIMEConstants.GLOBAL_THREAD_POOL.createSubPool(
+                                m_threads.getIntValue())),
+                m_threads.getIntValue(),
+                ParallelHistogramBuilder.DEFAULT_CHUNK_SIZE, handler);
+        try {
+            long rowIndex = 0;
+            DataRow currRow;
+            while ((currRow = input.poll()) != null) {
+                String key = getGroupKey(currRow, colIndexGroup, delimiter);
+                if (!counter.m_layout.hasPyramid()) {
+                    builder.add(key, counter.getLabels(currRow), 0, 0);
+                } else if (counter.readCoordinates(currRow)) {
+                    builder.add(key, counter.getLabels(currRow),
+                            counter.m_x, counter.m_y);
+                } else {
+                    builder.add(key, counter.getMissingLabels(), 0, 0);
+                }
+
+                // check if the execution monitor was canceled
+                exec.checkCanceled();
+                reportProgress(exec, ++rowIndex, rowCount);
+            }
+            builder.finish();
+            sink.setRows(rowIndex);
+            // one histogram per worker and the merged or aggregated ones
+            sink.updatePeakMemory(4L * counter.getLength()
+                    * m_threads.getIntValue()
+                    + (merger != null ? 4L * counter.getLength()
+                            : aggregator.getAllocatedBytes()));
+
+            if (merger != null) {
+                merger.finish();
+            } else {
+                aggregator.finish(sink);
+            }
+        } catch (ParallelHistogramBuilder.InvalidLabelException e) {
+            throw new InvalidSettingsException(e.getMessage()
+                    + " . Please (re-)configure the node.", e);
+        } finally {
+            builder.close();
+            aggregator.close();
+        }
+    }
+
+    // the image key of a row, either the value of the grouping column or
+    // the part of the row key in front of the delimiter
+    static String getGroupKey(final DataRow row, final int colIndexGroup,
+            final String delimiter) {
+        if (colIndexGroup < 0) {
+            String key = row.getKey().getString();
+            int end = delimiter.isEmpty() ? -1 : key.indexOf(delimiter);
+            return end < 0 ? key : key.substring(0, end);
+        }
+        DataCell cell = row.getCell(colIndexGroup);
+        if (cell instanceof StringValue) {
+            return ((StringValue)cell).getStringValue();
+        }
+        return cell.toString();
+    }
+
+    // counts the keypoint of a row into the histogram of its image, once
+    // per vocabulary and on every pyramid level if there is a pyramid
+    private static final class KeypointCounter {
+
+        private final int[] m_colIndicesCluster;
+
+        private final VocabularyLayout m_layout;
+
+        // null for plain histograms
+        private final int[] m_colIndicesXY;
+
+        // the labels of the last row read, one per vocabulary
+        private final String[] m_labels;
+
+        // the coordinates of the last row read
+        private double m_x;
+
+        private double m_y;
+
+        KeypointCounter(final int[] colIndicesCluster,
+                final VocabularyLayout layout, final int[] colIndicesXY) {
+            m_colIndicesCluster = colIndicesCluster;
+            m_layout = layout;
+            m_colIndicesXY = colIndicesXY;
+            m_labels = new String[colIndicesCluster.length];
+        }
+
+        int getLength() {
+            return m_layout.getLength();
+        }
+
+        // the cluster labels of a row, null where missing, the array is
+        // reused for the next row
+        String[] getLabels(final DataRow row) {
+            for (int v = 0; v < m_labels.length; v++) {
+                DataCell cell = row.getCell(m_colIndicesCluster[v]);
+                m_labels[v] = cell.isMissing() ? null
+                        : ((StringValue)cell).getStringValue();
+            }
+            return m_labels;
+        }
+
+        // the labels of a keypoint which is not counted
+        String[] getMissingLabels() {
+            Arrays.fill(m_labels, null);
+            return m_labels;
+        }
+
+        // false if a coordinate is missing
+        boolean readCoordinates(final DataRow row) {
+            DataCell x = row.getCell(m_colIndicesXY[0]);
+            DataCell y = row.getCell(m_colIndicesXY[1]);
+            if (x.isMissing() || y.isMissing()) {
+                return false;
+            }
+            m_x = ((DoubleValue)x).getDoubleValue();
+            m_y = ((DoubleValue)y).getDoubleValue();
+            return true;
+        }
+
+        // mixes everything the histogram depends on into the hash of an image
+        long hash(final long hash, final DataRow row) {
+            long h = HistogramCache.mix(hash, row.getKey().getString());
+            for (String label : getLabels(row)) {
+                h = HistogramCache.mix(h, label);
+            }
+            if (m_layout.hasPyramid()) {
+                if (readCoordinates(row)) {
+                    h = HistogramCache.mix(h, Double.doubleToLongBits(m_x));
+                    h = HistogramCache.mix(h, Double.doubleToLongBits(m_y));
+                } else {
+                    h = HistogramCache.mix(h, -1L);
+                }
+            }
+            return h;
+        }
+
+        // keypoints with a missing label or coordinate are not counted
+        void count(final DataRow row, final int[] histoCount)
+                throws InvalidSettingsException {
+            if (m_layout.hasPyramid() && !readCoordinates(row)) {
+                return;
+            }
+            String[] labels = getLabels(row);
+            for (int v = 0; v < labels.length; v++) {
+                if (labels[v] == null) {
+                    continue;
+                }
+                ClusterLabelDecoder decoder = m_layout.getDecoder(v);
+                int bin = decoder.decode(labels[v]);
+                if (bin == ClusterLabelDecoder.INVALID) {
+                    throw new InvalidSettingsException(
+                            decoder.getErrorMessage(labels[v])
+                            + " . Please (re-)configure the node.");
+                }
+                if (m_layout.hasPyramid()) {
+                    m_layout.add(histoCount, v, bin, m_x, m_y);
+                } else {
+                    histoCount[m_layout.getOffset(v) + bin]++;
+                }
+            }
+        }
+    }
+
+    // the column, pattern and range of one vocabulary
+    private static final class Vocabulary {
+
+        private final String m_column;
+
+        private final String m_pattern;
+
+        private final int m_range;
+
+        Vocabulary(final String column, final String pattern,
+                final int range) {
+            m_column = column;
+            m_pattern = pattern;
+            m_range = range;
+        }
+    }
+
+    // the vocabulary of the main settings followed by the additional ones,
+    // given as "column, pattern, range" per line
+    private List<Vocabulary> getVocabularies() throws InvalidSettingsException {
+        List<Vocabulary> vocabularies = new ArrayList<Vocabulary>();
+        vocabularies.add(new Vocabulary(m_column.getStringValue(),
+                m_pattern.getStringValue(), m_range.getIntValue()));
+        String[] lines = m_vocabularies.getStringValue().split("\\r?\\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            // column names may contain commas, the pattern and range follow
+            // the last two
+            int rangeStart = line.lastIndexOf(',');
+            int patternStart = rangeStart > 0
+                    ? line.lastIndexOf(',', rangeStart - 1) : -1;
+            int range = 0;
+            if (patternStart > 0) {
+                try {
+                    range = Integer.parseInt(
+                            line.substring(rangeStart + 1).trim());
+                } catch (NumberFormatException e) {
+                    // reported below
+                }
+            }
+            if (range < 1) {
+                throw new InvalidSettingsException("Line " + (i + 1)
+                        + " of the additional vocabularies is not of the form"
+                        + " \"column, pattern, range\""
+                        + " . Please (re-)configure the node.");
+            }
+            vocabularies.add(new Vocabulary(
+                    line.substring(0, patternStart).trim(),
+                    line.substring(patternStart + 1, rangeStart).trim(),
+                    range));
+        }
+        return vocabularies;
+    }
+
+    private ClusterLabelDecoder[] createDecoders(final DataTableSpec inSpec,
+            final List<Vocabulary> vocabularies)
+            throws InvalidSettingsException {
+        ClusterLabelDecoder[] decoders =
+            new ClusterLabelDecoder[vocabularies.size()];
+        for (int v = 0; v < decoders.length; v++) {
+            Vocabulary vocabulary = vocabularies.get(v);
+            DataColumnSpec columnSpec = inSpec.getColumnSpec(
+                    vocabulary.m_column);
+            if (columnSpec == null) {
+                throw new InvalidSettingsException(
+                        "Input table contains not the column "
+                        + vocabulary.m_column
+                        + " . Please (re-)configure the node.");
+            }
+            decoders[v] = createDecoder(columnSpec, vocabulary.m_pattern,
+                    vocabulary.m_range);
+        }
+        return decoders;
+    }
+
+    // the blocks of the vocabularies, the image size of a pyramid is taken
+    // from the domain of the coordinate columns unless it is set
+    private VocabularyLayout createLayout(final DataTableSpec inSpec,
+            final ClusterLabelDecoder[] decoders)
+            throws InvalidSettingsException {
+        double width = 1;
+        double height = 1;
+        if (m_pyramidLevels.getIntValue() > 1) {
+            width = getImageSize(inSpec, m_xColumn.getStringValue(),
+                    m_imageWidth.getDoubleValue());
+            height = getImageSize(inSpec, m_yColumn.getStringValue(),
+                    m_imageHeight.getDoubleValue());
+        }
+        try {
+            return new VocabularyLayout(decoders,
+                    m_pyramidLevels.getIntValue(), width, height);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage()
+                    + " . Please (re-)configure the node.", e);
+        }
+    }
+
+    private static double getImageSize(final DataTableSpec inSpec,
+            final String column, final double size)
+            throws InvalidSettingsException {
+        DataColumnSpec columnSpec = inSpec.getColumnSpec(column);
+        if (columnSpec == null
+                || !columnSpec.getType().isCompatible(DoubleValue.class)) {
+            throw new InvalidSettingsException(
+                    "Input table contains not the numeric coordinate column "
+                    + column + " . Please (re-)configure the node.");
+        }
+        if (size > 0) {
+            return size;
+        }
+        DataColumnDomain domain = columnSpec.getDomain();
+        if (!domain.hasUpperBound()) {
+            throw new InvalidSettingsException("The domain of column "
+                    + column + " has no upper bound"
+                    + " . Please set the image size.");
+        }
+        return ((DoubleValue)domain.getUpperBound()).getDoubleValue();
+    }
+
+    // identifies the settings the raw histograms depend on, the weighting
+    // is applied after the cache
+    private long getSettingsFingerprint(final VocabularyLayout layout) {
+        long h = HistogramCache.mix(0, m_column.getStringValue());
+        h = HistogramCache.mix(h, m_pattern.getStringValue());
+        h = HistogramCache.mix(h, m_range.getIntValue());
+        h = HistogramCache.mix(h, m_vocabularies.getStringValue());
+        h = HistogramCache.mix(h, m_groupColumn.getStringValue());
+        h = HistogramCache.mix(h, m_rowKeyDelimiter.getStringValue());
+        h = HistogramCache.mix(h, m_pyramidLevels.getIntValue());
+        if (layout.hasPyramid()) {
+            h = HistogramCache.mix(h, m_xColumn.getStringValue());
+            h = HistogramCache.mix(h, m_yColumn.getStringValue());
+            h = HistogramCache.mix(h, Double.doubleToLongBits(layout.getWidth()));
+            h = HistogramCache.mix(h, Double.doubleToLongBits(layout.getHeight()));
+        }
+        return h;
+    }
+
+    // the number of bins of a histogram, with all vocabularies and pyramid
+    // levels
+    private int getNumBins() throws InvalidSettingsException {
+        int length = 0;
+        for (Vocabulary vocabulary : getVocabularies()) {
+            for (int l = 0; l < m_pyramidLevels.getIntValue(); l++) {
+                length += vocabulary.m_range << (2 * l);
+            }
+        }
+        return length;
+    }
+
+    // decoder of the cluster labels, with a lookup table if the domain of
+    // the column lists the possible labels
+    private static ClusterLabelDecoder createDecoder(
+            final DataColumnSpec columnSpec, final String pattern,
+            final int range) throws InvalidSettingsException {
+        if (!columnSpec.getType().isCompatible(StringValue.class)) {
+            throw new InvalidSettingsException(
+                    "Column " + columnSpec.getName()
+                    + " does not contain cluster labels"
+                    + " . Please (re-)configure the node.");
+        }
+        List<String> labels = null;
+        DataColumnDomain domain = columnSpec.getDomain();
+        if (domain.hasValues()) {
+            labels = new ArrayList<String>(domain.getValues().size());
+            for (DataCell value : domain.getValues()) {
+                labels.add(((StringValue)value).getStringValue());
+            }
+        }
+        try {
+            return new ClusterLabelDecoder(pattern, range, labels);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage()
+                    + " . Please (re-)configure the node.", e);
+        }
+    }
+
+    private static void reportProgress(final ExecutionContext exec,
+            final long rowIndex, final long rowCount) {
+        if (rowCount > 0) {
+            exec.setProgress(rowIndex / (double)rowCount,
+                    "Reading row " + rowIndex);
+        } else {
+            exec.setMessage("Reading row " + rowIndex);
         }
-        
-        
-        // once we are done, we close the container and return its table
-        container.close();
-        BufferedDataTable out = container.getTable();
-        return new BufferedDataTable[]{out};
     }
 
     /**
@@ -200,7 +963,9 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     protected void reset() {
         // TODO Code executed on reset.
         // Models build during execute are cleared here.
-        // Also data handled in load/saveInternals will be erased here.
+        // The histogram cache is kept on purpose, every re-execution is
+        // preceded by a reset.
+        m_statistics = null;
     }
 
     /**
@@ -233,6 +998,38 @@ public class HistogrammCreatorNodeModel extends NodeModel {
                     + " . Please (re-)configure the node.");
         }
 
+        // labels listed in the domain are validated and resolved only once
+        m_decoders = createDecoders(inSpecs[IN_PORT], getVocabularies());
+
+        if (!m_groupColumn.getStringValue().isEmpty()
+                && !inSpecs[IN_PORT].containsName(m_groupColumn.getStringValue())) {
+            throw new InvalidSettingsException(
+                    "Input table contains not the grouping column "
+                    + m_groupColumn.getStringValue()
+                    + " . Please (re-)configure the node.");
+        }
+
+        // checks the coordinate columns and the image size
+        createLayout(inSpecs[IN_PORT], m_decoders);
+
+        // unchanged images are only recognized by their consecutive rows
+        if (m_incremental.getBooleanValue()
+                && !m_sortedInput.getBooleanValue()) {
+            throw new InvalidSettingsException(
+                    "Reusing unchanged images needs sorted input"
+                    + " . Please (re-)configure the node.");
+        }
+
+        if (!m_matrixFile.getStringValue().isEmpty()) {
+            File parent = new File(m_matrixFile.getStringValue())
+                    .getAbsoluteFile().getParentFile();
+            if (parent == null || !parent.isDirectory()) {
+                throw new InvalidSettingsException(
+                        "The directory of the matrix file does not exist"
+                        + " . Please (re-)configure the node.");
+            }
+        }
+
     	
         // and the DataTableSpec for the appended part
         DataTableSpec appendedSpec = createOutputColumnSpec();
@@ -241,15 +1038,31 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     }
 
     
-    private DataTableSpec createOutputColumnSpec() {
-    	DataColumnSpec[] allColSpecs = new DataColumnSpec[m_range.getIntValue() + 1];
-        for(int i = 0 ; i < m_range.getIntValue() ; i++ ){
-        	allColSpecs[i] = new DataColumnSpecCreator("cluster_" + i, IntCell.TYPE).createSpec();
-        }      
-        allColSpecs[m_range.getIntValue()] = new DataColumnSpecCreator("imgToString", StringCell.TYPE).createSpec();
-        DataTableSpec outputSpec = new DataTableSpec(allColSpecs);
-        
-        return outputSpec;
+    private DataTableSpec createOutputColumnSpec()
+            throws InvalidSettingsException {
+        return createRowFactory().createSpec();
+    }
+
+    private HistogramRowFactory createRowFactory()
+            throws InvalidSettingsException {
+        return new HistogramRowFactory(getNumBins(),
+                m_outputMode.getStringValue(),
+                getWeighting() != HistogramWeighting.RAW);
+    }
+
+    private HistogramWeighting getWeighting() throws InvalidSettingsException {
+        return getWeighting(m_weighting.getStringValue());
+    }
+
+    // the weighting of a label, also used by the DescriptorQuantizer
+    static HistogramWeighting getWeighting(final String label)
+            throws InvalidSettingsException {
+        try {
+            return HistogramWeighting.fromLabel(label);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSettingsException(e.getMessage()
+                    + " . Please (re-)configure the node.", e);
+        }
     }
     
     
@@ -263,6 +1076,9 @@ public class HistogrammCreatorNodeModel extends NodeModel {
         m_range.saveSettingsTo(settings);
         m_column.saveSettingsTo(settings);
         m_pattern.saveSettingsTo(settings);
+        for (SettingsModel model : m_optionalSettings.values()) {
+            model.saveSettingsTo(settings);
+        }
 
     }
 
@@ -279,6 +1095,13 @@ public class HistogrammCreatorNodeModel extends NodeModel {
         m_range.loadSettingsFrom(settings);
         m_column.loadSettingsFrom(settings);
         m_pattern.loadSettingsFrom(settings);
+        for (Map.Entry<String, SettingsModel> entry
+                : m_optionalSettings.entrySet()) {
+            // older workflows keep the default
+            if (settings.containsKey(entry.getKey())) {
+                entry.getValue().loadSettingsFrom(settings);
+            }
+        }
     }
 
     /**
@@ -295,6 +1118,22 @@ public class HistogrammCreatorNodeModel extends NodeModel {
         m_range.validateSettings(settings);
         m_column.validateSettings(settings);
         m_pattern.validateSettings(settings);
+        for (Map.Entry<String, SettingsModel> entry
+                : m_optionalSettings.entrySet()) {
+            if (settings.containsKey(entry.getKey())) {
+                entry.getValue().validateSettings(settings);
+            }
+        }
+        if (settings.containsKey(CFGKEY_WEIGHTING)) {
+            getWeighting(settings.getString(CFGKEY_WEIGHTING));
+        }
+        if (settings.containsKey(CFGKEY_OUTPUT_MODE)
+                && !Arrays.asList(HistogramRowFactory.OUTPUT_MODES).contains(
+                        settings.getString(CFGKEY_OUTPUT_MODE))) {
+            throw new InvalidSettingsException("Unknown output mode: "
+                    + settings.getString(CFGKEY_OUTPUT_MODE)
+                    + " . Please (re-)configure the node.");
+        }
     }
     
     /**
@@ -304,6 +1143,21 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     protected void loadInternals(final File internDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
+
+        File cacheFile = new File(internDir, CACHE_FILE);
+        if (cacheFile.exists()) {
+            m_cache = HistogramCache.read(cacheFile);
+        }
+        File statisticsFile = new File(internDir, STATISTICS_FILE);
+        if (statisticsFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(statisticsFile)));
+            try {
+                m_statistics = HistogramStatistics.read(in);
+            } finally {
+                in.close();
+            }
+        }
         
         // TODO load internal data. 
         // Everything handed to output ports is loaded automatically (data
@@ -321,6 +1175,19 @@ public class HistogrammCreatorNodeModel extends NodeModel {
     protected void saveInternals(final File internDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
+
+        if (m_cache != null) {
+            m_cache.write(new File(internDir, CACHE_FILE));
+        }
+        if (m_statistics != null) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(internDir, STATISTICS_FILE))));
+            try {
+                m_statistics.write(out);
+            } finally {
+                out.close();
+            }
+        }
        
         // TODO save internal models. 
         // Everything written to output ports is saved automatically (data
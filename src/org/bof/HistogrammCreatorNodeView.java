@@ -1,25 +1,40 @@
 package org.bof;
 
+import java.util.Locale;
+
+import javax.swing.JEditorPane;
+import javax.swing.JScrollPane;
+
+import org.bof.histogram.HistogramStatistics;
 import org.knime.core.node.NodeView;
 
 /**
  * <code>NodeView</code> for the "HistogrammCreator" Node.
  * Creates a histrogram of a column in a specific range by counting all occurences of the values in this column. Also includes missing values in the histogram.
+ * Shows the runtime metrics and the statistics of each vocabulary of the
+ * last execution.
  *
  * @author David Kolb
  */
 public class HistogrammCreatorNodeView extends NodeView<HistogrammCreatorNodeModel> {
 
+    // number of most frequent words listed
+    private static final int TOP_WORDS = 10;
+
+    private final JEditorPane m_pane;
+
     /**
      * Creates a new view.
-     * 
+     *
      * @param nodeModel The model (class: {@link HistogrammCreatorNodeModel})
      */
     protected HistogrammCreatorNodeView(final HistogrammCreatorNodeModel nodeModel) {
         super(nodeModel);
 
-        // TODO instantiate the components of the view here.
-
+        m_pane = new JEditorPane("text/html", "");
+        m_pane.setEditable(false);
+        setComponent(new JScrollPane(m_pane));
+        modelChanged();
     }
 
     /**
@@ -28,15 +43,105 @@ public class HistogrammCreatorNodeView extends NodeView<HistogrammCreatorNodeMod
     @Override
     protected void modelChanged() {
 
-        // TODO retrieve the new model from your nodemodel and 
-        // update the view.
-        HistogrammCreatorNodeModel nodeModel = 
+        HistogrammCreatorNodeModel nodeModel =
             (HistogrammCreatorNodeModel)getNodeModel();
         assert nodeModel != null;
-        
+
         // be aware of a possibly not executed nodeModel! The data you retrieve
         // from your nodemodel could be null, emtpy, or invalid in any kind.
-        
+        HistogramStatistics statistics = nodeModel.getStatistics();
+        if (statistics == null) {
+            m_pane.setText("<html><body>Node is not executed.</body></html>");
+        } else {
+            m_pane.setText(createReport(statistics));
+        }
+        m_pane.setCaretPosition(0);
+    }
+
+    private static String createReport(final HistogramStatistics s) {
+        StringBuilder html = new StringBuilder("<html><body>");
+
+        html.append("<h3>Execution</h3><table>");
+        row(html, "Rows", format("%,d", s.getRows()));
+        row(html, "Images", format("%,d", s.getImages()));
+        row(html, "Run time", format("%.3f s", s.getRunTime()));
+        row(html, "Rows / s", format("%,.0f", s.getRowsPerSecond()));
+        row(html, "Images / s", format("%,.1f", s.getImagesPerSecond()));
+        row(html, "Reading and counting", format("%.3f s", s.getCountTime()));
+        row(html, "Writing", format("%.3f s", s.getWriteTime()));
+        row(html, "Peak accumulator memory",
+                format("%,.1f MB", s.getPeakMemory() / (1024.0 * 1024.0)));
+        html.append("</table>");
+
+        for (int v = 0; v < s.getNumVocabularies(); v++) {
+            appendVocabulary(html, s, v);
+        }
+        html.append("</body></html>");
+        return html.toString();
+    }
+
+    // the statistics of one vocabulary, named by its label prefix if there
+    // are several
+    private static void appendVocabulary(final StringBuilder html,
+            final HistogramStatistics s, final int v) {
+        String name = s.getVocabularyName(v);
+        String title = s.getNumVocabularies() > 1 ? " " + name : "";
+        int numWords = s.getNumWords(v);
+        int occupied = s.getOccupiedWords(v);
+        html.append("<h3>Vocabulary").append(title).append("</h3><table>");
+        row(html, "Words", format("%,d", numWords));
+        row(html, "Used words", format("%,d (%.1f %%)", occupied,
+                100.0 * occupied / numWords));
+        row(html, "Unused words", format("%,d", numWords - occupied));
+        row(html, "Words in more than half of the images",
+                format("%,d", s.getWordsAbove(v, 0.5)));
+        row(html, "Words per image (min / mean / max)", format(
+                "%,.0f / %,.1f / %,.0f", s.getMinWords(v), s.getMeanWords(v),
+                s.getMaxWords(v)));
+        row(html, "Images without words", format("%,d", s.getEmptyImages(v)));
+        html.append("</table>");
+
+        html.append("<h3>Most frequent words").append(title)
+                .append("</h3><table>");
+        html.append("<tr><th align=left>Word</th><th align=left>Images</th></tr>");
+        for (int word : topWords(s, v)) {
+            row(html, name + word, format("%,d (%.1f %%)",
+                    s.getDocumentFrequency(v, word),
+                    100.0 * s.getDocumentFrequency(v, word)
+                            / Math.max(1, s.getImages())));
+        }
+        html.append("</table>");
+    }
+
+    // the words used by most images, selection without sorting all words
+    private static int[] topWords(final HistogramStatistics s, final int v) {
+        int n = Math.min(TOP_WORDS, s.getOccupiedWords(v));
+        int[] top = new int[n];
+        int size = 0;
+        for (int word = 0; word < s.getNumWords(v); word++) {
+            int df = s.getDocumentFrequency(v, word);
+            if (df == 0 || (size == n
+                    && df <= s.getDocumentFrequency(v, top[n - 1]))) {
+                continue;
+            }
+            int j = size < n ? size++ : n - 1;
+            while (j > 0 && s.getDocumentFrequency(v, top[j - 1]) < df) {
+                top[j] = top[j - 1];
+                j--;
+            }
+            top[j] = word;
+        }
+        return top;
+    }
+
+    private static void row(final StringBuilder html, final String name,
+            final String value) {
+        html.append("<tr><td>").append(name).append("</td><td>")
+                .append(value).append("</td></tr>");
+    }
+
+    private static String format(final String format, final Object... args) {
+        return String.format(Locale.US, format, args);
     }
 
     /**
@@ -44,8 +149,7 @@ public class HistogrammCreatorNodeView extends NodeView<HistogrammCreatorNodeMod
      */
     @Override
     protected void onClose() {
-    
-        // TODO things to do when closing the view
+        // nothing to do
     }
 
     /**
@@ -53,9 +157,7 @@ public class HistogrammCreatorNodeView extends NodeView<HistogrammCreatorNodeMod
      */
     @Override
     protected void onOpen() {
-
-        // TODO things to do when opening the view
+        // nothing to do
     }
 
 }
-
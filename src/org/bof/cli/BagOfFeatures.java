@@ -0,0 +1,456 @@
+package org.bof.cli;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.bof.geometric.DescriptorGeometry;
+import org.bof.geometric.DescriptorPipeline;
+import org.bof.geometric.EdgeFilterBank;
+import org.bof.geometric.GeometricBlur;
+import org.bof.geometric.PyramidStorage;
+import org.bof.histogram.CompactDescriptor;
+import org.bof.histogram.DescriptorQuantizer;
+import org.bof.histogram.HistogramMatrixWriter;
+import org.bof.histogram.HistogramSink;
+import org.bof.histogram.HistogramTee;
+import org.bof.histogram.HistogramWeighting;
+
+/**
+ * Command line batch job computing geometric blur descriptors and
+ * bag-of-features histograms for a directory of images, without a KNIME
+ * workbench.
+ * <p>
+ * Every image is converted to gray values and described on a dense grid of
+ * keypoints, the edges of the {@link EdgeFilterBank} are computed channel by
+ * channel while blurring. The descriptors of an image are written to
+ * <code>descriptors/&lt;image&gt;.gbd</code>: the number of keypoints and
+ * the descriptor length as ints, followed by the x and y coordinate and the
+ * values of each keypoint as doubles, all big endian. With a codebook the
+ * descriptors are quantized into one histogram per image, which are written
+ * to <code>histograms.csv</code>.
+ * <p>
+ * With <code>--compact</code> the descriptors are written quantized to
+ * <code>descriptors/&lt;image&gt;.gbc</code> instead, see
+ * {@link CompactDescriptor}: the same header, then the x and y coordinate
+ * as doubles and the quantized descriptor of each keypoint. The histograms
+ * are still computed from the exact descriptors.
+ * <p>
+ * With <code>--pipeline</code> the images run through a
+ * {@link DescriptorPipeline}, the next image is read and blurred while the
+ * current one is sampled. The output is the same.
+ *
+ * @author David Kolb
+ */
+public final class BagOfFeatures {
+
+    private static final String USAGE =
+        "usage: BagOfFeatures --input <dir> --output <dir> [options]\n"
+        + "  --codebook <file>   words, one per line, values separated by\n"
+        + "                      whitespace or commas; enables histograms\n"
+        + "  --step <pixels>     distance of the keypoint grid (10)\n"
+        + "  --min-sigma <s>     sigma of the first blur level (2)\n"
+        + "  --max-sigma <s>     upper end of the blur sigmas (10)\n"
+        + "  --levels <n>        number of blur levels (5)\n"
+        + "  --cascaded          blur each level from the one below\n"
+        + "  --flat              blur on primitive arrays instead of Gauss3\n"
+        + "  --rings <n>         number of sample rings (4)\n"
+        + "  --radius <pixels>   radius of the innermost ring (5)\n"
+        + "  --ring-step <px>    distance between two rings (10)\n"
+        + "  --samples <n>       samples per ring (12)\n"
+        + "  --channels <n>      sampled edge channels, at most 4 (4)\n"
+        + "  --float             keep the blur pyramid as floats\n"
+        + "  --mapped <MB>       memory map float pyramids above this size\n"
+        + "  --pipeline <MB>     blur the next image while sampling one, with\n"
+        + "                      at most MB of pyramids in flight\n"
+        + "  --neighbours <k>    nearest words per descriptor (1)\n"
+        + "  --sigma <s>         soft assignment kernel width (1)\n"
+        + "  --matrix <file>     also write the histograms as a matrix file\n"
+        + "  --weighting <name>  " + Arrays.toString(HistogramWeighting.values())
+        + " (RAW)\n"
+        + "  --threads <n>       threads of the convolutions (all cores)\n"
+        + "  --no-descriptors    do not write the descriptor files\n"
+        + "  --compact <enc>     write quantized descriptor files, "
+        + Arrays.toString(CompactDescriptor.Encoding.values()) + "\n";
+
+    /** File extension of the descriptor files. */
+    public static final String DESCRIPTOR_EXTENSION = ".gbd";
+
+    /** File extension of the quantized descriptor files. */
+    public static final String COMPACT_EXTENSION = ".gbc";
+
+    // images waiting per stage of the pipeline, the reader runs at most
+    // this many images ahead of the blurring
+    private static final int PIPELINE_QUEUE_SIZE = 2;
+
+    private BagOfFeatures() {
+        // main class
+    }
+
+    /**
+     * @param args the command line, see the usage
+     */
+    public static void main(final String[] args) {
+        Map<String, String> options;
+        try {
+            options = parseOptions(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            run(options);
+        } catch (Exception e) {
+            System.err.println("Failed: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, String> parseOptions(final String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: "
+                        + arg);
+            }
+            String name = arg.substring(2);
+            if (name.equals("no-descriptors") || name.equals("cascaded")
+                    || name.equals("float") || name.equals("flat")) {
+                options.put(name, "true");
+            } else if (i + 1 < args.length) {
+                options.put(name, args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value of " + arg);
+            }
+        }
+        if (!options.containsKey("input") || !options.containsKey("output")) {
+            throw new IllegalArgumentException(
+                    "--input and --output are required");
+        }
+        return options;
+    }
+
+    private static void run(final Map<String, String> options)
+            throws Exception {
+        File inputDir = new File(options.get("input"));
+        File outputDir = new File(options.get("output"));
+        File[] files = inputDir.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + inputDir);
+        }
+        // a stable order, so the histograms of two runs can be compared
+        Arrays.sort(files);
+
+        boolean writeDescriptors = !options.containsKey("no-descriptors");
+        File descriptorDir = new File(outputDir, "descriptors");
+        if (writeDescriptors && !descriptorDir.isDirectory()
+                && !descriptorDir.mkdirs()) {
+            throw new IOException("Could not create " + descriptorDir);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create " + outputDir);
+        }
+
+        int step = getInt(options, "step", 10);
+        GeometricBlur blur = new GeometricBlur(
+                getDouble(options, "min-sigma", 2),
+                getDouble(options, "max-sigma", 10),
+                getInt(options, "levels", 5),
+                options.containsKey("cascaded"), new DescriptorGeometry(
+                        getInt(options, "rings", GeometricBlur.RINGS),
+                        getInt(options, "radius", GeometricBlur.FIRST_RADIUS),
+                        getInt(options, "ring-step", GeometricBlur.RING_STEP),
+                        getInt(options, "samples",
+                                GeometricBlur.SAMPLES_PER_RING),
+                        getInt(options, "channels", GeometricBlur.CHANNELS)),
+                options.containsKey("flat"));
+        int length = blur.getGeometry().getLength();
+        PyramidStorage<?> storage = PyramidStorage.doubles();
+        if (options.containsKey("float") || options.containsKey("mapped")) {
+            storage = PyramidStorage.floats(options.containsKey("mapped")
+                    ? (long)getInt(options, "mapped", 0) << 20 : Long.MAX_VALUE);
+        }
+
+        HistogramCsvWriter writer = null;
+        HistogramMatrixWriter matrixWriter = null;
+        DescriptorQuantizer quantizer = null;
+        if (options.containsKey("codebook")) {
+            double[][] codebook = readCodebook(new File(options.get("codebook")));
+            int neighbours = getInt(options, "neighbours", 1);
+            HistogramWeighting weighting = HistogramWeighting.valueOf(
+                    options.containsKey("weighting")
+                    ? options.get("weighting") : "RAW");
+            writer = new HistogramCsvWriter(new File(outputDir,
+                    "histograms.csv"), codebook.length, weighting);
+            HistogramSink sink = writer;
+            if (options.containsKey("matrix")) {
+                matrixWriter = new HistogramMatrixWriter(new File(
+                        options.get("matrix")), codebook.length, weighting,
+                        neighbours > 1);
+                sink = new HistogramTee(writer, matrixWriter);
+            }
+            quantizer = new DescriptorQuantizer(codebook, neighbours,
+                    getDouble(options, "sigma", 1), sink);
+            if (quantizer.getDimension() != length) {
+                throw new IllegalArgumentException("The codebook words have "
+                        + quantizer.getDimension() + " values, descriptors "
+                        + length);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(getInt(options,
+                "threads", Runtime.getRuntime().availableProcessors()));
+        ImageHandler handler = new ImageHandler(writeDescriptors
+                ? descriptorDir : null, length, options.containsKey("compact")
+                ? CompactDescriptor.Encoding.valueOf(options.get("compact"))
+                : null, quantizer);
+        DescriptorPipeline<String, FloatType> pipeline = null;
+        if (options.containsKey("pipeline")) {
+            pipeline = new DescriptorPipeline<String, FloatType>(blur, storage,
+                    true, pool, PIPELINE_QUEUE_SIZE,
+                    (long)getInt(options, "pipeline", 0) << 20, handler);
+        }
+        long start = System.nanoTime();
+        try {
+            for (File file : files) {
+                BufferedImage image = file.isFile() ? ImageIO.read(file) : null;
+                if (image == null) {
+                    System.err.println("Skipping " + file.getName()
+                            + ", not an image");
+                    continue;
+                }
+                int width = image.getWidth();
+                int height = image.getHeight();
+                double[][] grid = createGrid(width, height, step);
+                ArrayImg<FloatType, FloatArray> gray = ArrayImgs.floats(
+                        toGray(image), width, height);
+                if (pipeline != null) {
+                    // blocks while the pipeline is full
+                    pipeline.put(file.getName(), gray, grid[0], grid[1]);
+                } else {
+                    handler.descriptors(file.getName(), grid[0], grid[1],
+                            blur.describeGray(gray, grid[0], grid[1], pool,
+                                    storage));
+                }
+            }
+            if (pipeline != null) {
+                pipeline.finish();
+            }
+            if (quantizer != null) {
+                quantizer.finish();
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            pool.shutdown();
+            if (writer != null) {
+                writer.close();
+            }
+            if (matrixWriter != null) {
+                matrixWriter.close();
+            }
+        }
+        System.out.println("Described " + handler.m_keypoints
+                + " keypoints of " + handler.m_images + " images in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    // luminance in [0, 1], row by row
+    private static float[] toGray(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] rgb = image.getRGB(0, 0, width, height, null, 0, width);
+        float[] gray = new float[rgb.length];
+        for (int i = 0; i < rgb.length; i++) {
+            int r = (rgb[i] >> 16) & 0xff;
+            int g = (rgb[i] >> 8) & 0xff;
+            int b = rgb[i] & 0xff;
+            gray[i] = (0.299f * r + 0.587f * g + 0.114f * b) / 255f;
+        }
+        return gray;
+    }
+
+    // x and y coordinates of a dense grid, half a step away from the border
+    private static double[][] createGrid(final int width, final int height,
+            final int step) {
+        int nx = Math.max(1, width / step);
+        int ny = Math.max(1, height / step);
+        double[][] grid = new double[2][nx * ny];
+        for (int j = 0; j < ny; j++) {
+            for (int i = 0; i < nx; i++) {
+                grid[0][j * nx + i] = Math.min(width - 1, i * step + step / 2);
+                grid[1][j * nx + i] = Math.min(height - 1, j * step + step / 2);
+            }
+        }
+        return grid;
+    }
+
+    private static void writeDescriptors(final File file,
+            final double[] xs, final double[] ys,
+            final double[][] descriptors, final int length)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(descriptors.length);
+            out.writeInt(length);
+            for (int k = 0; k < descriptors.length; k++) {
+                out.writeDouble(xs[k]);
+                out.writeDouble(ys[k]);
+                for (double value : descriptors[k]) {
+                    out.writeDouble(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // writes and quantizes the descriptors of each image, in the order of
+    // the images
+    private static final class ImageHandler implements
+            DescriptorPipeline.DescriptorHandler<String> {
+
+        // null if no descriptor files are written
+        private final File m_descriptorDir;
+
+        private final int m_length;
+
+        // null to write the descriptors as doubles
+        private final CompactDescriptor.Encoding m_encoding;
+
+        // null without a codebook
+        private final DescriptorQuantizer m_quantizer;
+
+        private int m_images;
+
+        private long m_keypoints;
+
+        ImageHandler(final File descriptorDir, final int length,
+                final CompactDescriptor.Encoding encoding,
+                final DescriptorQuantizer quantizer) {
+            m_descriptorDir = descriptorDir;
+            m_length = length;
+            m_encoding = encoding;
+            m_quantizer = quantizer;
+        }
+
+        @Override
+        public void descriptors(final String key, final double[] xs,
+                final double[] ys, final double[][] descriptors)
+                throws Exception {
+            if (m_descriptorDir != null && m_encoding != null) {
+                writeCompactDescriptors(new File(m_descriptorDir, key
+                        + COMPACT_EXTENSION), xs, ys, descriptors, m_length,
+                        m_encoding);
+            } else if (m_descriptorDir != null) {
+                writeDescriptors(new File(m_descriptorDir, key
+                        + DESCRIPTOR_EXTENSION), xs, ys, descriptors, m_length);
+            }
+            if (m_quantizer != null) {
+                for (double[] descriptor : descriptors) {
+                    m_quantizer.add(key, descriptor);
+                }
+            }
+            m_images++;
+            m_keypoints += descriptors.length;
+        }
+    }
+
+    private static void writeCompactDescriptors(final File file,
+            final double[] xs, final double[] ys,
+            final double[][] descriptors, final int length,
+            final CompactDescriptor.Encoding encoding) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(descriptors.length);
+            out.writeInt(length);
+            for (int k = 0; k < descriptors.length; k++) {
+                out.writeDouble(xs[k]);
+                out.writeDouble(ys[k]);
+                CompactDescriptor.create(descriptors[k], encoding).write(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a codebook with one word per line. Values are separated by
+     * whitespace or commas, empty lines and lines starting with
+     * <code>#</code> are skipped.
+     *
+     * @param file the codebook file
+     * @return the words
+     * @throws IOException if the file could not be read or is malformed
+     */
+    public static double[][] readCodebook(final File file) throws IOException {
+        List<double[]> words = new ArrayList<double[]>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), Charset.forName("UTF-8")));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] values = line.split("[\\s,]+");
+                double[] word = new double[values.length];
+                try {
+                    for (int j = 0; j < values.length; j++) {
+                        word[j] = Double.parseDouble(values[j]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Line " + lineNumber + " of "
+                            + file + " is not a word: " + e.getMessage());
+                }
+                words.add(word);
+            }
+        } finally {
+            in.close();
+        }
+        return words.toArray(new double[words.size()][]);
+    }
+
+    private static int getInt(final Map<String, String> options,
+            final String name, final int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static double getDouble(final Map<String, String> options,
+            final String name, final double defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
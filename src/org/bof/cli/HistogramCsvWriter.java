@@ -0,0 +1,167 @@
+package org.bof.cli;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bof.histogram.HistogramSink;
+import org.bof.histogram.HistogramWeighting;
+
+/**
+ * Writes weighted histograms as CSV, one line per image with the image key
+ * followed by one value per bin.
+ * <p>
+ * Weightings which need the document frequencies of all images (TF-IDF)
+ * keep the histograms sparse in memory and write them on {@link #close()}.
+ *
+ * @author David Kolb
+ */
+public class HistogramCsvWriter implements HistogramSink, Closeable {
+
+    private final Writer m_out;
+
+    private final HistogramWeighting m_weighting;
+
+    private final double[] m_counts;
+
+    private final double[] m_weights;
+
+    // the buffered histograms and their document frequencies, TF-IDF only
+    private List<String> m_bufferedKeys;
+
+    private List<int[]> m_bufferedBins;
+
+    private List<double[]> m_bufferedCounts;
+
+    private int[] m_documentFrequencies;
+
+    /**
+     * @param file the CSV file to write
+     * @param length the number of bins
+     * @param weighting the weighting of the histograms
+     * @throws IOException if the file could not be created
+     */
+    public HistogramCsvWriter(final File file, final int length,
+            final HistogramWeighting weighting) throws IOException {
+        m_out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), Charset.forName("UTF-8")));
+        m_weighting = weighting;
+        m_counts = new double[length];
+        m_weights = new double[length];
+        if (weighting.needsDocumentFrequencies()) {
+            m_bufferedKeys = new ArrayList<String>();
+            m_bufferedBins = new ArrayList<int[]>();
+            m_bufferedCounts = new ArrayList<double[]>();
+            m_documentFrequencies = new int[length];
+        }
+
+        m_out.write("image");
+        for (int i = 0; i < length; i++) {
+            m_out.write(",cluster_" + i);
+        }
+        m_out.write('\n');
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final int[] counts)
+            throws IOException {
+        for (int i = 0; i < counts.length; i++) {
+            m_counts[i] = counts[i];
+        }
+        histogram(key, m_counts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final double[] counts)
+            throws IOException {
+        if (m_bufferedKeys == null) {
+            m_weighting.apply(counts, m_weights);
+            writeLine(key, m_weights);
+            return;
+        }
+        int nonZero = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                m_documentFrequencies[i]++;
+                nonZero++;
+            }
+        }
+        int[] bins = new int[nonZero];
+        double[] values = new double[nonZero];
+        int j = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                bins[j] = i;
+                values[j++] = counts[i];
+            }
+        }
+        m_bufferedKeys.add(key);
+        m_bufferedBins.add(bins);
+        m_bufferedCounts.add(values);
+    }
+
+    /**
+     * Writes the buffered histograms, if any, and closes the file.
+     *
+     * @throws IOException if writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (m_bufferedKeys != null) {
+                double[] idf = HistogramWeighting.inverseDocumentFrequencies(
+                        m_documentFrequencies, m_bufferedKeys.size());
+                for (int h = 0; h < m_bufferedKeys.size(); h++) {
+                    int[] bins = m_bufferedBins.get(h);
+                    double[] values = m_bufferedCounts.get(h);
+                    Arrays.fill(m_counts, 0);
+                    for (int i = 0; i < bins.length; i++) {
+                        m_counts[bins[i]] = values[i];
+                    }
+                    m_weighting.apply(m_counts, idf, m_weights);
+                    writeLine(m_bufferedKeys.get(h), m_weights);
+                }
+                m_bufferedKeys = null;
+            }
+        } finally {
+            m_out.close();
+        }
+    }
+
+    private void writeLine(final String key, final double[] values)
+            throws IOException {
+        m_out.write(quote(key));
+        for (double value : values) {
+            m_out.write(',');
+            // raw counts stay integral
+            if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+                m_out.write(Long.toString((long)value));
+            } else {
+                m_out.write(Double.toString(value));
+            }
+        }
+        m_out.write('\n');
+    }
+
+    private static String quote(final String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0
+                && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,242 @@
+package org.bof.geometric;
+
+/**
+ * Where the geometric blur descriptor samples around a keypoint: the center
+ * and <code>rings</code> rings of <code>samplesPerRing</code> samples, ring
+ * <code>r</code> with radius <code>firstRadius + r * ringStep</code>, in
+ * each of the first <code>channels</code> edge channels.
+ * <p>
+ * The offsets of all samples are computed once into a flat table, ordered
+ * like the values of a descriptor within a channel: the center first, then
+ * the rings from the inside out, each one clockwise starting at the top.
+ * Smaller geometries give shorter descriptors which are faster to compute
+ * and to compare.
+ *
+ * @author David Kolb
+ */
+public class DescriptorGeometry {
+
+	/** The geometry of the original descriptor, 196 values. */
+	public static final DescriptorGeometry DEFAULT = new DescriptorGeometry(
+			GeometricBlur.RINGS, GeometricBlur.FIRST_RADIUS,
+			GeometricBlur.RING_STEP, GeometricBlur.SAMPLES_PER_RING,
+			GeometricBlur.CHANNELS);
+
+	private final int m_rings;
+
+	private final int m_firstRadius;
+
+	private final int m_ringStep;
+
+	private final int m_samplesPerRing;
+
+	private final int m_channels;
+
+	// the offsets of each sample and its group, 0 for the center and r + 1
+	// for ring r
+	private final int[] m_xOffsets;
+
+	private final int[] m_yOffsets;
+
+	private final int[] m_groups;
+
+	/**
+	 * @param rings the number of rings, at least 0
+	 * @param firstRadius the radius of the innermost ring
+	 * @param ringStep the distance between two rings
+	 * @param samplesPerRing the number of samples per ring, at least 1
+	 * @param channels the number of sampled edge channels, at least 1
+	 */
+	public DescriptorGeometry(final int rings, final int firstRadius,
+			final int ringStep, final int samplesPerRing, final int channels) {
+		if (rings < 0 || firstRadius < 0 || ringStep < 0
+				|| samplesPerRing < 1 || channels < 1) {
+			throw new IllegalArgumentException("Invalid descriptor geometry: "
+					+ rings + " rings, radius " + firstRadius + " + " + ringStep
+					+ ", " + samplesPerRing + " samples, " + channels
+					+ " channels");
+		}
+		m_rings = rings;
+		m_firstRadius = firstRadius;
+		m_ringStep = ringStep;
+		m_samplesPerRing = samplesPerRing;
+		m_channels = channels;
+
+		int samples = 1 + rings * samplesPerRing;
+		m_xOffsets = new int[samples];
+		m_yOffsets = new int[samples];
+		m_groups = new int[samples];
+		int s = 1;
+		for (int r = 0; r < rings; r++) {
+			int[][] coordinates = getSampleCoordinates(getRadius(r + 1),
+					samplesPerRing);
+			for (int v = 0; v < samplesPerRing; v++, s++) {
+				m_xOffsets[s] = coordinates[0][v];
+				m_yOffsets[s] = coordinates[1][v];
+				m_groups[s] = r + 1;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of rings
+	 */
+	public int getRings() {
+		return m_rings;
+	}
+
+	/**
+	 * @return the radius of the innermost ring
+	 */
+	public int getFirstRadius() {
+		return m_firstRadius;
+	}
+
+	/**
+	 * @return the distance between two rings
+	 */
+	public int getRingStep() {
+		return m_ringStep;
+	}
+
+	/**
+	 * @return the number of samples per ring
+	 */
+	public int getSamplesPerRing() {
+		return m_samplesPerRing;
+	}
+
+	/**
+	 * @return the number of sampled edge channels
+	 */
+	public int getChannels() {
+		return m_channels;
+	}
+
+	/**
+	 * @return the number of groups, the center and the rings, group
+	 *         <code>g</code> is sampled on blur level <code>g</code>
+	 */
+	public int getGroups() {
+		return m_rings + 1;
+	}
+
+	/**
+	 * @param group 0 for the center, <code>r + 1</code> for ring
+	 *            <code>r</code>
+	 * @return its radius
+	 */
+	public int getRadius(final int group) {
+		return group == 0 ? 0 : m_firstRadius + (group - 1) * m_ringStep;
+	}
+
+	/**
+	 * @param group 0 for the center, <code>r + 1</code> for ring
+	 *            <code>r</code>
+	 * @return its number of samples
+	 */
+	public int getSamples(final int group) {
+		return group == 0 ? 1 : m_samplesPerRing;
+	}
+
+	/**
+	 * @return the number of samples per channel
+	 */
+	public int getSamples() {
+		return m_xOffsets.length;
+	}
+
+	/**
+	 * @return the number of values of a descriptor
+	 */
+	public int getLength() {
+		return m_xOffsets.length * m_channels;
+	}
+
+	/**
+	 * @param sample the index of a sample within a channel
+	 * @return its x offset from the keypoint
+	 */
+	public int getXOffset(final int sample) {
+		return m_xOffsets[sample];
+	}
+
+	/**
+	 * @param sample the index of a sample within a channel
+	 * @return its y offset from the keypoint
+	 */
+	public int getYOffset(final int sample) {
+		return m_yOffsets[sample];
+	}
+
+	/**
+	 * @param sample the index of a sample within a channel
+	 * @return its group, 0 for the center and <code>r + 1</code> for ring
+	 *         <code>r</code>
+	 */
+	public int getGroup(final int sample) {
+		return m_groups[sample];
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int hashCode() {
+		return (((m_rings * 31 + m_firstRadius) * 31 + m_ringStep) * 31
+				+ m_samplesPerRing) * 31 + m_channels;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean equals(final Object obj) {
+		if (!(obj instanceof DescriptorGeometry)) {
+			return false;
+		}
+		DescriptorGeometry other = (DescriptorGeometry) obj;
+		return m_rings == other.m_rings
+				&& m_firstRadius == other.m_firstRadius
+				&& m_ringStep == other.m_ringStep
+				&& m_samplesPerRing == other.m_samplesPerRing
+				&& m_channels == other.m_channels;
+	}
+
+	/**
+	 * @param radius the radius of the ring
+	 * @param samples the number of samples
+	 * @return the sample offsets of the ring, evenly spaced starting at the
+	 *         top clockwise, <code>[0]</code> are the x and <code>[1]</code>
+	 *         the y offsets
+	 */
+	static int[][] getSampleCoordinates(final int radius, final int samples) {
+		int[][] coordinates = new int[2][samples];
+		for (int v = 0; v < samples; v++) {
+			// the angle from the top, mirrored into the first quadrant, so
+			// the ring is symmetric despite rounding
+			double angle = 360.0 * v / samples;
+			int xSign = 1;
+			int ySign = 1;
+			if (angle > 270) {
+				angle = 360 - angle;
+				xSign = -1;
+			} else if (angle > 180) {
+				angle -= 180;
+				xSign = -1;
+				ySign = -1;
+			} else if (angle > 90) {
+				angle = 180 - angle;
+				ySign = -1;
+			}
+			double fromAxis = 90 - angle;
+			coordinates[0][v] = xSign
+					* (int) Math.rint(Math.cos((fromAxis * Math.PI) / 180)
+							* radius);
+			coordinates[1][v] = ySign
+					* (int) Math.rint(Math.sin((fromAxis * Math.PI) / 180)
+							* radius);
+		}
+		return coordinates;
+	}
+}
@@ -0,0 +1,335 @@
+package org.bof.geometric;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Describes a sequence of images in two overlapping stages, so the pyramid
+ * of the next image is blurred while the keypoints of the current one are
+ * sampled.
+ * <p>
+ * Blurring is bound by memory bandwidth and sampling by memory latency,
+ * run one after the other neither phase uses the cores fully. Here each
+ * stage has its own thread, both running their work on the same pool. The
+ * stages are connected by bounded queues and the pyramids which are
+ * blurred but not yet sampled may not exceed a number of bytes, a single
+ * larger pyramid is blurred once no other one is in flight. When the
+ * queues are full or the memory is used up, {@link #put} blocks, so the
+ * reader of the images never runs further ahead than the pipeline.
+ * <p>
+ * Images with few keypoints skip the blur stage and are evaluated sparsely
+ * in the sampling stage, like {@link GeometricBlur#describe} does. The
+ * descriptors are the same as the ones of {@link GeometricBlur#describe}
+ * or {@link GeometricBlur#describeGray} and are handed to the
+ * {@link DescriptorHandler} in input order.
+ *
+ * @param <K> the type of the image keys
+ * @param <T> the type of the images
+ * @author David Kolb
+ */
+public class DescriptorPipeline<K, T extends RealType<T>> implements
+		Closeable {
+
+	// how often blocked calls check whether the other stage failed
+	private static final long POLL_MILLIS = 100;
+
+	/**
+	 * Receives the descriptors of each image on the sampling thread, in the
+	 * order the images were put.
+	 *
+	 * @param <K> the type of the image keys
+	 */
+	public interface DescriptorHandler<K> {
+
+		/**
+		 * @param key the key of the image
+		 * @param xs the x coordinates of the keypoints
+		 * @param ys the y coordinates of the keypoints
+		 * @param descriptors one descriptor per keypoint
+		 * @throws Exception if the descriptors could not be processed
+		 */
+		void descriptors(K key, double[] xs, double[] ys,
+				double[][] descriptors) throws Exception;
+	}
+
+	private final GeometricBlur m_blur;
+
+	private final PyramidStorage<?> m_storage;
+
+	// whether the images are gray images whose edges are computed while
+	// blurring, see GeometricBlur#createEdgePyramid
+	private final boolean m_gray;
+
+	private final ExecutorService m_pool;
+
+	private final DescriptorHandler<K> m_handler;
+
+	private final long m_maxBytes;
+
+	private final BlockingQueue<Job<K, T>> m_images;
+
+	private final BlockingQueue<Job<K, T>> m_pyramids;
+
+	private final Thread m_blurThread;
+
+	private final Thread m_sampleThread;
+
+	// bytes of the pyramids blurred but not yet sampled, guarded by this
+	private long m_bytesInFlight;
+
+	private volatile Throwable m_failure;
+
+	private boolean m_finished;
+
+	/**
+	 * @param blur the blur parameters and the geometry
+	 * @param storage keeps the pyramids
+	 * @param gray whether the images are gray images whose edges are
+	 *            computed while blurring instead of edge images
+	 * @param pool runs the convolutions and the sampling of both stages
+	 * @param queueSize the number of images each stage may have waiting
+	 * @param maxBytes the bytes of the pyramids in flight
+	 * @param handler receives the descriptors
+	 */
+	public DescriptorPipeline(final GeometricBlur blur,
+			final PyramidStorage<?> storage, final boolean gray,
+			final ExecutorService pool, final int queueSize,
+			final long maxBytes, final DescriptorHandler<K> handler) {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("Invalid queue size: "
+					+ queueSize);
+		}
+		m_blur = blur;
+		m_storage = storage;
+		m_gray = gray;
+		m_pool = pool;
+		m_maxBytes = maxBytes;
+		m_handler = handler;
+		m_images = new ArrayBlockingQueue<Job<K, T>>(queueSize);
+		m_pyramids = new ArrayBlockingQueue<Job<K, T>>(queueSize);
+
+		m_blurThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runStage(m_images, true);
+			}
+		}, "Descriptor pipeline blur");
+		m_sampleThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runStage(m_pyramids, false);
+			}
+		}, "Descriptor pipeline sampling");
+		m_blurThread.setDaemon(true);
+		m_sampleThread.setDaemon(true);
+		m_blurThread.start();
+		m_sampleThread.start();
+	}
+
+	/**
+	 * Adds the next image, blocks while the pipeline is full.
+	 *
+	 * @param key the key of the image
+	 * @param img the edge image, x, y and channel, or the gray image, x and
+	 *            y, it must not change until its descriptors are handled
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @throws Exception if a stage failed or thrown by the handler
+	 */
+	public void put(final K key, final RandomAccessibleInterval<T> img,
+			final double[] xs, final double[] ys) throws Exception {
+		if (m_finished) {
+			throw new IllegalStateException("The pipeline is finished");
+		}
+		offer(m_images, new Job<K, T>(key, img, xs, ys));
+	}
+
+	/**
+	 * Waits until the descriptors of all images are handled.
+	 *
+	 * @throws Exception if a stage failed or thrown by the handler
+	 */
+	public void finish() throws Exception {
+		if (!m_finished) {
+			m_finished = true;
+			offer(m_images, Job.<K, T> end());
+		}
+		// a failed stage may leave the other one waiting for its jobs
+		while (m_sampleThread.isAlive()) {
+			m_sampleThread.join(POLL_MILLIS);
+			checkFailure();
+		}
+		while (m_blurThread.isAlive()) {
+			m_blurThread.join(POLL_MILLIS);
+			checkFailure();
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Stops both stages, images which are not handled yet are dropped.
+	 */
+	@Override
+	public void close() {
+		m_finished = true;
+		m_blurThread.interrupt();
+		m_sampleThread.interrupt();
+	}
+
+	// takes the jobs of a stage until the end, a failure stops both stages
+	private void runStage(final BlockingQueue<Job<K, T>> queue,
+			final boolean blurStage) {
+		try {
+			while (true) {
+				Job<K, T> job = queue.take();
+				if (blurStage) {
+					if (job.m_img != null) {
+						blur(job);
+					}
+					offer(m_pyramids, job);
+				} else if (job.m_img != null) {
+					sample(job);
+				}
+				if (job.m_img == null) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed or the other stage failed
+		} catch (Throwable t) {
+			if (m_failure == null) {
+				m_failure = t;
+			}
+			// the other stage may wait for a job which never comes
+			m_blurThread.interrupt();
+			m_sampleThread.interrupt();
+		}
+	}
+
+	private void blur(final Job<K, T> job) throws InterruptedException {
+		long[] dimensions = m_gray ? m_blur.getEdgePyramidDimensions(job.m_img)
+				: m_blur.getPyramidDimensions(job.m_img);
+		if (m_blur.isSparseCheaper(dimensions[0], dimensions[1],
+				dimensions[2], job.m_xs.length)) {
+			return;
+		}
+		job.m_bytes = m_storage.getBytes(dimensions);
+		acquire(job.m_bytes);
+		job.m_pyramid = createPyramid(job.m_img, m_storage);
+	}
+
+	private <P extends RealType<P> & NativeType<P>> Img<P> createPyramid(
+			final RandomAccessibleInterval<T> img,
+			final PyramidStorage<P> storage) {
+		return m_gray ? m_blur.createEdgePyramid(img, m_pool, storage)
+				: m_blur.createPyramid(img, m_pool, storage);
+	}
+
+	private void sample(final Job<K, T> job) throws Exception {
+		double[][] descriptors;
+		if (job.m_pyramid == null) {
+			descriptors = sampleSparse(job.m_img, job.m_xs, job.m_ys);
+		} else {
+			descriptors = samplePyramid(job);
+			// the pyramid is not needed any more
+			job.m_pyramid = null;
+			release(job.m_bytes);
+		}
+		m_handler.descriptors(job.m_key, job.m_xs, job.m_ys, descriptors);
+	}
+
+	// the pyramid has the type of the storage
+	@SuppressWarnings("unchecked")
+	private <P extends RealType<P>> double[][] samplePyramid(
+			final Job<K, T> job) {
+		return GeometricBlur.sample((Img<P>) job.m_pyramid,
+				m_blur.getGeometry(), job.m_xs, job.m_ys, m_pool);
+	}
+
+	private double[][] sampleSparse(
+			final RandomAccessibleInterval<T> img, final double[] xs,
+			final double[] ys) {
+		if (m_gray) {
+			return m_blur.sampleSparse(EdgeFilterBank.filter(img, m_blur
+					.getGeometry().getChannels()), xs, ys, m_pool);
+		}
+		return m_blur.sampleSparse(img, xs, ys, m_pool);
+	}
+
+	// waits until the pyramid fits next to the ones in flight
+	private synchronized void acquire(final long bytes)
+			throws InterruptedException {
+		while (m_bytesInFlight > 0 && m_bytesInFlight + bytes > m_maxBytes) {
+			if (m_failure != null) {
+				throw new InterruptedException();
+			}
+			wait(POLL_MILLIS);
+		}
+		m_bytesInFlight += bytes;
+	}
+
+	private synchronized void release(final long bytes) {
+		m_bytesInFlight -= bytes;
+		notifyAll();
+	}
+
+	// puts a job into a queue, blocks while it is full unless a stage fails
+	private void offer(final BlockingQueue<Job<K, T>> queue, final Job<K, T> job)
+			throws Exception {
+		while (!queue.offer(job, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			checkFailure();
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws Exception {
+		Throwable failure = m_failure;
+		if (failure == null) {
+			return;
+		}
+		m_blurThread.interrupt();
+		m_sampleThread.interrupt();
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		}
+		throw (Error) failure;
+	}
+
+	// an image on its way through the stages, without an image it marks
+	// the end
+	private static final class Job<K, T extends RealType<T>> {
+
+		private final K m_key;
+
+		private final RandomAccessibleInterval<T> m_img;
+
+		private final double[] m_xs;
+
+		private final double[] m_ys;
+
+		// null if the image is evaluated sparsely
+		private Img<?> m_pyramid;
+
+		private long m_bytes;
+
+		Job(final K key, final RandomAccessibleInterval<T> img,
+				final double[] xs, final double[] ys) {
+			m_key = key;
+			m_img = img;
+			m_xs = xs;
+			m_ys = ys;
+		}
+
+		static <K, T extends RealType<T>> Job<K, T> end() {
+			return new Job<K, T>(null, null, null, null);
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package org.bof.geometric;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * A minimal bank of oriented edge filters producing the edge channels the
+ * geometric blur descriptor samples, for use outside of a KNIME workflow
+ * and for the pyramids {@link GeometricBlur#createEdgePyramid} builds
+ * straight from gray images.
+ * <p>
+ * Channel <code>o</code> holds the magnitude of the Sobel derivative in
+ * direction <code>o * 180 / orientations</code> degrees, so edges of
+ * opposite polarity land in the same channel. Borders are mirrored. Each
+ * channel can be computed on its own, so a pyramid needs only one edge
+ * plane at a time.
+ *
+ * @author David Kolb
+ */
+public final class EdgeFilterBank {
+
+	/** Number of orientations, i.e. channels of the edge image. */
+	public static final int ORIENTATIONS = GeometricBlur.CHANNELS;
+
+	private EdgeFilterBank() {
+		// utility class
+	}
+
+	/**
+	 * @param gray the gray values of the image, row by row
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @return the edge image, x, y and channel
+	 */
+	public static ArrayImg<FloatType, FloatArray> filter(final float[] gray,
+			final int width, final int height) {
+		return filter(gray, width, height, ORIENTATIONS);
+	}
+
+	/**
+	 * @param gray the gray image, x and y
+	 * @param orientations the number of channels
+	 * @return the edge image, x, y and channel
+	 */
+	public static <T extends RealType<T>> ArrayImg<FloatType, FloatArray> filter(
+			final RandomAccessibleInterval<T> gray, final int orientations) {
+		return filter(getGrayValues(gray), (int) gray.dimension(0),
+				(int) gray.dimension(1), orientations);
+	}
+
+	/**
+	 * @param gray the gray values of the image, row by row
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param orientations the number of channels
+	 * @return the edge image, x, y and channel
+	 */
+	public static ArrayImg<FloatType, FloatArray> filter(final float[] gray,
+			final int width, final int height, final int orientations) {
+		checkSize(gray, width, height);
+		int plane = width * height;
+		float[] edges = new float[plane * orientations];
+		float[] channel = new float[plane];
+		for (int o = 0; o < orientations; o++) {
+			filter(gray, width, height, o, orientations, channel);
+			System.arraycopy(channel, 0, edges, o * plane, plane);
+		}
+		return ArrayImgs.floats(edges, width, height, orientations);
+	}
+
+	/**
+	 * Computes one channel of the edge image.
+	 *
+	 * @param gray the gray values of the image, row by row
+	 * @param width the width of the image
+	 * @param height the height of the image
+	 * @param orientation the channel
+	 * @param orientations the number of channels
+	 * @param edges receives the edge magnitudes, row by row
+	 */
+	public static void filter(final float[] gray, final int width,
+			final int height, final int orientation, final int orientations,
+			final float[] edges) {
+		checkSize(gray, width, height);
+		double angle = orientation * Math.PI / orientations;
+		float cos = (float) Math.cos(angle);
+		float sin = (float) Math.sin(angle);
+
+		for (int y = 0; y < height; y++) {
+			int up = mirror(y - 1, height) * width;
+			int row = y * width;
+			int down = mirror(y + 1, height) * width;
+			for (int x = 0; x < width; x++) {
+				int left = mirror(x - 1, width);
+				int right = mirror(x + 1, width);
+				float gx = (gray[up + right] + 2 * gray[row + right] + gray[down + right])
+						- (gray[up + left] + 2 * gray[row + left] + gray[down + left]);
+				float gy = (gray[down + left] + 2 * gray[down + x] + gray[down + right])
+						- (gray[up + left] + 2 * gray[up + x] + gray[up + right]);
+				edges[row + x] = Math.abs(gx * cos + gy * sin);
+			}
+		}
+	}
+
+	/**
+	 * @param gray the gray image, x and y
+	 * @return its values, row by row
+	 */
+	public static <T extends RealType<T>> float[] getGrayValues(
+			final RandomAccessibleInterval<T> gray) {
+		long size = gray.dimension(0) * gray.dimension(1);
+		if (gray.numDimensions() != 2 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+					"Expected a two dimensional gray image");
+		}
+		float[] values = new float[(int) size];
+		int i = 0;
+		for (T value : Views.flatIterable(gray)) {
+			values[i++] = value.getRealFloat();
+		}
+		return values;
+	}
+
+	private static void checkSize(final float[] gray, final int width,
+			final int height) {
+		if (gray.length != width * height) {
+			throw new IllegalArgumentException("Expected " + width * height
+					+ " gray values, got " + gray.length);
+		}
+	}
+
+	// mirrors a coordinate without repeating the border pixel
+	private static int mirror(final int i, final int size) {
+		if (size == 1) {
+			return 0;
+		}
+		if (i < 0) {
+			return -i;
+		}
+		if (i >= size) {
+			return 2 * size - 2 - i;
+		}
+		return i;
+	}
+}
@@ -0,0 +1,152 @@
+package org.bof.geometric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.algorithm.gauss3.Gauss3;
+
+/**
+ * A separable Gaussian convolution of one plane held in a primitive array,
+ * an alternative to {@link Gauss3} for the pyramid of {@link GeometricBlur}.
+ * <p>
+ * The rows are convolved into a temporary plane, then the columns of that
+ * plane into the target, both with the half kernel {@link Gauss3} uses and
+ * with mirrored borders like the extended input of {@link Gauss3}. The
+ * inner loops run over consecutive elements of plain double arrays, each
+ * one adding one kernel tap to a whole row, which the JIT compiles to
+ * vector instructions. Bands of rows are convolved in parallel. The result
+ * differs from the one of {@link Gauss3} by rounding only.
+ *
+ * @author David Kolb
+ */
+final class FlatGauss {
+
+	// rows convolved by one task
+	private static final int BAND_SIZE = 32;
+
+	private final int m_width;
+
+	private final int m_height;
+
+	// the rows convolved, before the columns are
+	private final double[] m_rows;
+
+	/**
+	 * @param width the width of the planes
+	 * @param height the height of the planes
+	 */
+	FlatGauss(final int width, final int height) {
+		m_width = width;
+		m_height = height;
+		m_rows = new double[width * height];
+	}
+
+	/**
+	 * @param sigma the sigma of the Gaussian
+	 * @param source the plane to blur, row by row
+	 * @param target the blurred plane, row by row, may be the source
+	 * @param pool runs the bands of rows
+	 */
+	void convolve(final double sigma, final double[] source,
+			final double[] target, final ExecutorService pool) {
+		final double[] kernel = Gauss3.halfkernels(new double[] { sigma })[0];
+		runBands(pool, new Band() {
+			@Override
+			public void convolve(final int from, final int to) {
+				convolveRows(kernel, source, from, to);
+			}
+		});
+		runBands(pool, new Band() {
+			@Override
+			public void convolve(final int from, final int to) {
+				convolveColumns(kernel, target, from, to);
+			}
+		});
+	}
+
+	// the rows from (inclusive) to (exclusive) into m_rows
+	private void convolveRows(final double[] kernel, final double[] source,
+			final int from, final int to) {
+		int radius = kernel.length - 1;
+		double[] padded = new double[m_width + 2 * radius];
+		for (int y = from; y < to; y++) {
+			int row = y * m_width;
+			for (int i = 0; i < padded.length; i++) {
+				padded[i] = source[row
+						+ GeometricBlur.mirror(Math.abs(i - radius), m_width)];
+			}
+			double k0 = kernel[0];
+			for (int x = 0; x < m_width; x++) {
+				m_rows[row + x] = k0 * padded[x + radius];
+			}
+			for (int j = 1; j <= radius; j++) {
+				double k = kernel[j];
+				int left = radius - j;
+				int right = radius + j;
+				for (int x = 0; x < m_width; x++) {
+					m_rows[row + x] += k * (padded[left + x] + padded[right + x]);
+				}
+			}
+		}
+	}
+
+	// the columns of the rows from (inclusive) to (exclusive) of m_rows into
+	// the target, a whole row at a time
+	private void convolveColumns(final double[] kernel,
+			final double[] target, final int from, final int to) {
+		int radius = kernel.length - 1;
+		for (int y = from; y < to; y++) {
+			int row = y * m_width;
+			double k0 = kernel[0];
+			for (int x = 0; x < m_width; x++) {
+				target[row + x] = k0 * m_rows[row + x];
+			}
+			for (int j = 1; j <= radius; j++) {
+				double k = kernel[j];
+				int above = GeometricBlur.mirror(Math.abs(y - j), m_height)
+						* m_width;
+				int below = GeometricBlur.mirror(y + j, m_height) * m_width;
+				for (int x = 0; x < m_width; x++) {
+					target[row + x] += k * (m_rows[above + x] + m_rows[below + x]);
+				}
+			}
+		}
+	}
+
+	// convolves rows from (inclusive) to (exclusive)
+	private interface Band {
+		void convolve(int from, int to);
+	}
+
+	private void runBands(final ExecutorService pool, final Band band) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < m_height; start += BAND_SIZE) {
+			final int from = start;
+			final int to = Math.min(m_height, start + BAND_SIZE);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					band.convolve(from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while blurring", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.bof.geometric;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * Samples descriptors straight from the primitive array of a pyramid held
+ * in one {@link ArrayImg}, without a random access.
+ * <p>
+ * The index of every value of a descriptor relative to its keypoint is
+ * computed once from the strides of the pyramid, with the channels and
+ * levels beyond the pyramid already mirrored. A descriptor is then read
+ * with one addition per value. This only holds for interior keypoints,
+ * whose outermost ring lies inside the image, the others need the mirrored
+ * borders of the random access.
+ *
+ * @author David Kolb
+ */
+final class FlatPyramid {
+
+	private final double[] m_doubles;
+
+	private final float[] m_floats;
+
+	private final int m_width;
+
+	private final int m_height;
+
+	// the distance of the outermost samples from the keypoint
+	private final int m_margin;
+
+	// the index of each value of a descriptor relative to its keypoint
+	private final int[] m_offsets;
+
+	private FlatPyramid(final Object array, final long[] dimensions,
+			final DescriptorGeometry geometry) {
+		m_doubles = array instanceof double[] ? (double[]) array : null;
+		m_floats = array instanceof float[] ? (float[]) array : null;
+		m_width = (int) dimensions[0];
+		m_height = (int) dimensions[1];
+		m_margin = geometry.getRadius(geometry.getGroups() - 1);
+
+		int channelStride = m_width * m_height;
+		int levelStride = channelStride * (int) dimensions[2];
+		int samples = geometry.getSamples();
+		m_offsets = new int[geometry.getLength()];
+		for (int c = 0; c < geometry.getChannels(); c++) {
+			int channel = GeometricBlur.mirror(c, dimensions[2]);
+			for (int s = 0; s < samples; s++) {
+				int level = GeometricBlur.mirror(geometry.getGroup(s),
+						dimensions[3]);
+				m_offsets[c * samples + s] = geometry.getXOffset(s)
+						+ geometry.getYOffset(s) * m_width + channel
+						* channelStride + level * levelStride;
+			}
+		}
+	}
+
+	/**
+	 * @param pyramid a pyramid, x, y, channel and blur level
+	 * @param geometry where the descriptors are sampled
+	 * @return the flat view of the pyramid, <code>null</code> if it is not
+	 *         an array of doubles or floats
+	 */
+	static FlatPyramid create(final RandomAccessibleInterval<?> pyramid,
+			final DescriptorGeometry geometry) {
+		Object array = getArray(pyramid);
+		if (array == null) {
+			return null;
+		}
+		long[] dimensions = new long[pyramid.numDimensions()];
+		pyramid.dimensions(dimensions);
+		return new FlatPyramid(array, dimensions, geometry);
+	}
+
+	/**
+	 * @param pyramid a pyramid, x, y, channel and blur level
+	 * @return its <code>double[]</code> or <code>float[]</code> if it is held
+	 *         in one {@link ArrayImg}, <code>null</code> otherwise
+	 */
+	static Object getArray(final RandomAccessibleInterval<?> pyramid) {
+		if (!(pyramid instanceof ArrayImg)) {
+			return null;
+		}
+		Object access = ((ArrayImg<?, ?>) pyramid).update(null);
+		if (!(access instanceof ArrayDataAccess)) {
+			return null;
+		}
+		Object array = ((ArrayDataAccess<?>) access).getCurrentStorageArray();
+		if (!(array instanceof double[]) && !(array instanceof float[])) {
+			return null;
+		}
+		return array;
+	}
+
+	/**
+	 * @param x the x coordinate of a keypoint
+	 * @param y the y coordinate of a keypoint
+	 * @return whether all samples of the keypoint lie inside the image
+	 */
+	boolean isInterior(final int x, final int y) {
+		return x >= m_margin && y >= m_margin && x < m_width - m_margin
+				&& y < m_height - m_margin;
+	}
+
+	/**
+	 * @param x the x coordinate of an interior keypoint
+	 * @param y the y coordinate of an interior keypoint
+	 * @return its descriptor
+	 */
+	double[] sample(final int x, final int y) {
+		int base = x + y * m_width;
+		double[] descriptor = new double[m_offsets.length];
+		if (m_doubles != null) {
+			for (int i = 0; i < descriptor.length; i++) {
+				descriptor[i] = m_doubles[base + m_offsets[i]];
+			}
+		} else {
+			for (int i = 0; i < descriptor.length; i++) {
+				descriptor[i] = m_floats[base + m_offsets[i]];
+			}
+		}
+		return descriptor;
+	}
+}
@@ -0,0 +1,737 @@
+package org.bof.geometric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.imglib2.ExtendedRandomAccessibleInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.Views;
+
+/**
+ * The geometric blur descriptor on plain imglib2 images and primitive
+ * keypoint coordinates, without any KNIME dependency.
+ * <p>
+ * The descriptor is computed in two phases. {@link #createPyramid} blurs
+ * the sampled edge channels with linearly spaced sigmas, {@link #sample}
+ * then samples the center of each keypoint on level 0 and ring
+ * <code>r</code> of its {@link DescriptorGeometry} on level
+ * <code>r + 1</code>, for each sampled channel, which gives
+ * <code>(rings * samplesPerRing + 1) * channels</code> values per
+ * keypoint, 196 with the default geometry. With less blur levels than
+ * rings plus one the outer rings are sampled on mirrored levels.
+ * <p>
+ * In cascaded mode level <code>l</code> is blurred from level
+ * <code>l - 1</code> with the incremental sigma
+ * <code>sqrt(sigma_l^2 - sigma_(l-1)^2)</code> instead of from the edge
+ * image with <code>sigma_l</code>, which needs much smaller kernels for the
+ * upper levels. The result differs from the direct pyramid by the
+ * truncation of the kernels and the mirrored borders of the intermediate
+ * levels, by at most {@link #CASCADE_TOLERANCE} relative to the largest
+ * value of the edge image.
+ * <p>
+ * The constants below are the ones of {@link DescriptorGeometry#DEFAULT}.
+ * Only the sampled channels and the levels the rings are sampled on are
+ * blurred. With few keypoints on a large image even that is mostly
+ * wasted, {@link #sampleSparse} then evaluates the blur directly at the
+ * sample positions. {@link #describe} picks the cheaper of both from the
+ * number of keypoints and the size of the image.
+ * <p>
+ * A {@link PyramidStorage} decides where the pyramid is kept, by default
+ * as doubles on the heap. With <code>flatConvolution</code> the levels are
+ * blurred by a separable convolution on primitive arrays instead of by
+ * {@link Gauss3}, which gives the same pyramid up to rounding.
+ *
+ * @author David Kolb
+ */
+public class GeometricBlur {
+
+	/** Number of edge channels sampled by default. */
+	public static final int CHANNELS = 4;
+
+	/** Number of samples per ring by default. */
+	public static final int SAMPLES_PER_RING = 12;
+
+	/** Radius of the innermost ring by default. */
+	public static final int FIRST_RADIUS = 5;
+
+	/** Distance between two rings by default. */
+	public static final int RING_STEP = 10;
+
+	/** Number of rings by default, ring r is sampled on blur level r + 1. */
+	public static final int RINGS = 4;
+
+	/** Number of values of a descriptor of the default geometry. */
+	public static final int DESCRIPTOR_LENGTH = (RINGS * SAMPLES_PER_RING + 1)
+			* CHANNELS;
+
+	/**
+	 * Largest difference between a cascaded and a direct pyramid, relative
+	 * to the largest absolute value of the edge image, verified by the
+	 * <code>PyramidToleranceCheck</code> of the benchmarks.
+	 */
+	public static final double CASCADE_TOLERANCE = 1e-2;
+
+	/**
+	 * Largest difference between a float and a double pyramid, relative to
+	 * the largest absolute value of the edge image. Every blurred value is a
+	 * weighted mean of the edge image and rounded to 24 bits once per level
+	 * it is blurred from, the bound leaves room for the rounding of the
+	 * convolution. It is verified by the <code>PyramidToleranceCheck</code>
+	 * of the benchmarks.
+	 */
+	public static final double FLOAT_TOLERANCE = 1e-5;
+
+	/** Number of keypoints sampled by one task. */
+	public static final int SAMPLING_CHUNK_SIZE = 1024;
+
+	// keypoints evaluated sparsely by one task, each one costs about as
+	// much as a thousand sampled from a pyramid
+	private static final int SPARSE_CHUNK_SIZE = 16;
+
+	private final double m_minSigma;
+
+	private final double m_maxSigma;
+
+	private final int m_blurLevels;
+
+	private final boolean m_cascaded;
+
+	private final DescriptorGeometry m_geometry;
+
+	private final boolean m_flatConvolution;
+
+	/**
+	 * @param minSigma the sigma of the first level
+	 * @param maxSigma the upper end of the sigmas, not reached
+	 * @param blurLevels the number of levels, usually 5
+	 */
+	public GeometricBlur(final double minSigma, final double maxSigma,
+			final int blurLevels) {
+		this(minSigma, maxSigma, blurLevels, false);
+	}
+
+	/**
+	 * @param minSigma the sigma of the first level
+	 * @param maxSigma the upper end of the sigmas, not reached
+	 * @param blurLevels the number of levels, usually 5
+	 * @param cascaded whether each level is blurred from the one below
+	 */
+	public GeometricBlur(final double minSigma, final double maxSigma,
+			final int blurLevels, final boolean cascaded) {
+		this(minSigma, maxSigma, blurLevels, cascaded,
+				DescriptorGeometry.DEFAULT);
+	}
+
+	/**
+	 * @param minSigma the sigma of the first level
+	 * @param maxSigma the upper end of the sigmas, not reached
+	 * @param blurLevels the number of levels, usually 5
+	 * @param cascaded whether each level is blurred from the one below
+	 * @param geometry where the descriptors are sampled
+	 */
+	public GeometricBlur(final double minSigma, final double maxSigma,
+			final int blurLevels, final boolean cascaded,
+			final DescriptorGeometry geometry) {
+		this(minSigma, maxSigma, blurLevels, cascaded, geometry, false);
+	}
+
+	/**
+	 * @param minSigma the sigma of the first level
+	 * @param maxSigma the upper end of the sigmas, not reached
+	 * @param blurLevels the number of levels, usually 5
+	 * @param cascaded whether each level is blurred from the one below
+	 * @param geometry where the descriptors are sampled
+	 * @param flatConvolution whether the pyramid is blurred on primitive
+	 *            arrays instead of with {@link Gauss3}
+	 */
+	public GeometricBlur(final double minSigma, final double maxSigma,
+			final int blurLevels, final boolean cascaded,
+			final DescriptorGeometry geometry, final boolean flatConvolution) {
+		m_minSigma = minSigma;
+		m_maxSigma = maxSigma;
+		m_blurLevels = blurLevels;
+		m_cascaded = cascaded;
+		m_geometry = geometry;
+		m_flatConvolution = flatConvolution;
+	}
+
+	/**
+	 * @return the sigma of the first level
+	 */
+	public double getMinSigma() {
+		return m_minSigma;
+	}
+
+	/**
+	 * @return the upper end of the sigmas
+	 */
+	public double getMaxSigma() {
+		return m_maxSigma;
+	}
+
+	/**
+	 * @return the number of blur levels
+	 */
+	public int getBlurLevels() {
+		return m_blurLevels;
+	}
+
+	/**
+	 * @return whether each level is blurred from the one below
+	 */
+	public boolean isCascaded() {
+		return m_cascaded;
+	}
+
+	/**
+	 * @return whether the pyramid is blurred on primitive arrays
+	 */
+	public boolean isFlatConvolution() {
+		return m_flatConvolution;
+	}
+
+	/**
+	 * @return where the descriptors are sampled
+	 */
+	public DescriptorGeometry getGeometry() {
+		return m_geometry;
+	}
+
+	/**
+	 * @param level a blur level
+	 * @return the sigma the level is blurred with
+	 */
+	public double getSigma(final int level) {
+		double stepSize = (m_maxSigma - m_minSigma) / m_blurLevels;
+		return m_minSigma + (level * stepSize);
+	}
+
+	/**
+	 * Computes the descriptors of the keypoints of an image, both phases
+	 * in one call.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the convolutions and the sampling
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint
+	 */
+	public <T extends RealType<T>> double[][] describe(
+			final RandomAccessibleInterval<T> img, final double[] xs,
+			final double[] ys, final ExecutorService pool) {
+		return describe(img, xs, ys, pool, PyramidStorage.doubles());
+	}
+
+	/**
+	 * Computes the descriptors of the keypoints of an image, both phases
+	 * in one call.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the convolutions and the sampling
+	 * @param storage keeps the pyramid, if one is needed
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> double[][] describe(
+			final RandomAccessibleInterval<T> img, final double[] xs,
+			final double[] ys, final ExecutorService pool,
+			final PyramidStorage<P> storage) {
+		if (isSparseCheaper(img, xs.length)) {
+			return sampleSparse(img, xs, ys, pool);
+		}
+		return sample(createPyramid(img, pool, storage), m_geometry, xs, ys,
+				pool);
+	}
+
+	/**
+	 * Computes the descriptors of the keypoints of a gray image, with the
+	 * edge channels computed by the {@link EdgeFilterBank} on the fly, see
+	 * {@link #createEdgePyramid}. Only the sparse evaluation, if it is
+	 * cheaper, needs the whole edge image.
+	 *
+	 * @param gray the gray image, x and y
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the convolutions and the sampling
+	 * @param storage keeps the pyramid, if one is needed
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> double[][] describeGray(
+			final RandomAccessibleInterval<T> gray, final double[] xs,
+			final double[] ys, final ExecutorService pool,
+			final PyramidStorage<P> storage) {
+		int channels = m_geometry.getChannels();
+		if (isSparseCheaper(gray.dimension(0), gray.dimension(1), channels,
+				xs.length)) {
+			return sampleSparse(EdgeFilterBank.filter(gray, channels), xs, ys,
+					pool);
+		}
+		return sample(createEdgePyramid(gray, pool, storage), m_geometry, xs,
+				ys, pool);
+	}
+
+	/**
+	 * Compares the estimated work of both evaluations, the pixel reads and
+	 * multiplications of the convolutions of the pyramid against the ones
+	 * of the kernels evaluated at each sample.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param keypoints the number of keypoints
+	 * @return whether {@link #sampleSparse} is cheaper than
+	 *         {@link #createPyramid} and {@link #sample}
+	 */
+	public boolean isSparseCheaper(final Interval img, final long keypoints) {
+		return isSparseCheaper(img.dimension(0), img.dimension(1),
+				img.dimension(2), keypoints);
+	}
+
+	/**
+	 * @param width the width of the edge image
+	 * @param height the height of the edge image
+	 * @param channels the number of channels of the edge image
+	 * @param keypoints the number of keypoints
+	 * @return whether {@link #sampleSparse} is cheaper than
+	 *         {@link #createPyramid} and {@link #sample}
+	 */
+	public boolean isSparseCheaper(final long width, final long height,
+			final long channels, final long keypoints) {
+		long dense = 0;
+		for (int l = 0; l < getPyramidLevels(); l++) {
+			long taps = 2 * Gauss3.halfkernelsizes(
+					new double[] { getKernelSigma(l) })[0] - 1;
+			dense += 2 * taps;
+		}
+		dense *= width * height * Math.min(channels, m_geometry.getChannels());
+		return new SparseBlur(this).getCost(keypoints) < dense;
+	}
+
+	/**
+	 * @param group 0 for the center, <code>r + 1</code> for ring
+	 *            <code>r</code>
+	 * @return the blur level the group is sampled on, mirrored if there are
+	 *         less than <code>group + 1</code> levels
+	 */
+	public int getSampledLevel(final int group) {
+		return mirror(group, m_blurLevels);
+	}
+
+	/**
+	 * @param index a non-negative index
+	 * @param size the size of the dimension
+	 * @return the index mirrored into the dimension like
+	 *         {@link Views#extendMirrorSingle} does
+	 */
+	static int mirror(final int index, final long size) {
+		if (size == 1) {
+			return 0;
+		}
+		int period = (int) (2 * size - 2);
+		int mirrored = index % period;
+		return mirrored < size ? mirrored : period - mirrored;
+	}
+
+	// the levels which are sampled, the ones above the outermost ring are not
+	private int getPyramidLevels() {
+		return Math.min(m_blurLevels, m_geometry.getGroups());
+	}
+
+	// whether the level is blurred from the level below
+	private boolean isFromPrevious(final int level) {
+		if (!m_cascaded || level == 0) {
+			return false;
+		}
+		double previous = getSigma(level - 1);
+		return getSigma(level) > previous && previous > 0;
+	}
+
+	// the sigma the level is blurred with, incremental if cascaded
+	private double getKernelSigma(final int level) {
+		double sigma = getSigma(level);
+		if (isFromPrevious(level)) {
+			double previous = getSigma(level - 1);
+			return Math.sqrt(sigma * sigma - previous * previous);
+		}
+		return sigma;
+	}
+
+	/**
+	 * First phase: blurs the sampled channels of the image on the sampled
+	 * levels. The pyramid only has the channels and levels the geometry
+	 * samples, see {@link #getPyramidDimensions}.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param pool runs the convolutions
+	 * @return the pyramid of doubles, x, y, channel and blur level
+	 */
+	public <T extends RealType<T>> Img<DoubleType> createPyramid(
+			final RandomAccessibleInterval<T> img, final ExecutorService pool) {
+		return createPyramid(img, pool, PyramidStorage.doubles());
+	}
+
+	/**
+	 * First phase, with the pyramid kept by a storage.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param pool runs the convolutions
+	 * @param storage creates the pyramid
+	 * @return the pyramid, x, y, channel and blur level
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> createPyramid(
+			final RandomAccessibleInterval<T> img, final ExecutorService pool,
+			final PyramidStorage<P> storage) {
+		Img<P> pyramid = storage.create(getPyramidDimensions(img));
+
+		long channels = Math.min(img.dimension(2), m_geometry.getChannels());
+		// Do that for each sampled "edge filter"
+		for (int c = 0; c < channels; c++) {
+			blurChannel(Views.hyperSlice(img, 2, c), pyramid, c, pool);
+		}
+		return pyramid;
+	}
+
+	/**
+	 * First phase straight from a gray image: computes each sampled edge
+	 * channel with the {@link EdgeFilterBank}, one orientation per channel
+	 * of the geometry, and blurs it right away. Only one edge plane exists
+	 * at a time, the edge image is never materialized.
+	 *
+	 * @param gray the gray image, x and y
+	 * @param pool runs the convolutions
+	 * @param storage creates the pyramid
+	 * @return the pyramid, x, y, channel and blur level
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> createEdgePyramid(
+			final RandomAccessibleInterval<T> gray, final ExecutorService pool,
+			final PyramidStorage<P> storage) {
+		int width = (int) gray.dimension(0);
+		int height = (int) gray.dimension(1);
+		int channels = m_geometry.getChannels();
+		Img<P> pyramid = storage.create(getEdgePyramidDimensions(gray));
+
+		float[] values = EdgeFilterBank.getGrayValues(gray);
+		float[] edges = new float[width * height];
+		ArrayImg<FloatType, FloatArray> plane = ArrayImgs.floats(edges, width,
+				height);
+		for (int c = 0; c < channels; c++) {
+			EdgeFilterBank.filter(values, width, height, c, channels, edges);
+			blurChannel(plane, pyramid, c, pool);
+		}
+		return pyramid;
+	}
+
+	// blurs one channel on all sampled levels
+	private <T extends RealType<T>, P extends RealType<P>> void blurChannel(
+			final RandomAccessibleInterval<T> channel, final Img<P> pyramid,
+			final int c, final ExecutorService pool) {
+		if (m_flatConvolution) {
+			blurChannelFlat(channel, pyramid, c, pool);
+			return;
+		}
+		for (int l = 0; l < getPyramidLevels(); l++) {
+			// the incremental sigma from the level below, if there is one
+			double sigma = getKernelSigma(l);
+			try {
+				// Output-Plane
+				IntervalView<P> outputPlane = Views.hyperSlice(
+						Views.hyperSlice(pyramid, 3, l), 2, c);
+
+				double[] sigmas = new double[outputPlane.numDimensions()];
+				Arrays.fill(sigmas, sigma);
+
+				if (isFromPrevious(l)) {
+					IntervalView<P> previousPlane = Views.hyperSlice(
+							Views.hyperSlice(pyramid, 3, l - 1), 2, c);
+					Gauss3.gauss(sigmas,
+							Views.extendMirrorSingle(previousPlane),
+							outputPlane, pool);
+				} else {
+					// mirror the image so theres no border
+					ExtendedRandomAccessibleInterval<T, RandomAccessibleInterval<T>> inputPlane = Views
+							.extendMirrorSingle(channel);
+					Gauss3.gauss(sigmas, inputPlane, outputPlane, pool);
+				}
+			} catch (IncompatibleTypeException e) {
+				// both types are real types
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	// blurChannel with the FlatGauss, each level is blurred into a plane of
+	// doubles, a cascaded level in place, and copied into the pyramid
+	private <T extends RealType<T>, P extends RealType<P>> void blurChannelFlat(
+			final RandomAccessibleInterval<T> channel, final Img<P> pyramid,
+			final int c, final ExecutorService pool) {
+		int width = (int) channel.dimension(0);
+		int height = (int) channel.dimension(1);
+		double[] input = new double[width * height];
+		int i = 0;
+		for (T value : Views.flatIterable(channel)) {
+			input[i++] = value.getRealDouble();
+		}
+
+		FlatGauss gauss = new FlatGauss(width, height);
+		double[] level = new double[width * height];
+		Object array = FlatPyramid.getArray(pyramid);
+		for (int l = 0; l < getPyramidLevels(); l++) {
+			gauss.convolve(getKernelSigma(l), isFromPrevious(l) ? level
+					: input, level, pool);
+
+			if (array != null) {
+				int offset = (int) ((l * pyramid.dimension(2) + c) * width
+						* height);
+				if (array instanceof double[]) {
+					System.arraycopy(level, 0, array, offset, level.length);
+				} else {
+					float[] floats = (float[]) array;
+					for (int j = 0; j < level.length; j++) {
+						floats[offset + j] = (float) level[j];
+					}
+				}
+			} else {
+				int j = 0;
+				for (P value : Views.flatIterable(Views.hyperSlice(
+						Views.hyperSlice(pyramid, 3, l), 2, c))) {
+					value.setReal(level[j++]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The channels and levels the geometry does not sample are left out, the
+	 * samples are mirrored into the remaining ones as before.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @return the dimensions of its pyramid, x, y, channel and blur level
+	 */
+	public long[] getPyramidDimensions(final Interval img) {
+		return new long[] { img.dimension(0), img.dimension(1),
+				Math.min(img.dimension(2), m_geometry.getChannels()),
+				getPyramidLevels() };
+	}
+
+	/**
+	 * @param gray the gray image, x and y
+	 * @return the dimensions of the pyramid of its edges, x, y, channel and
+	 *         blur level
+	 */
+	public long[] getEdgePyramidDimensions(final Interval gray) {
+		return new long[] { gray.dimension(0), gray.dimension(1),
+				m_geometry.getChannels(), getPyramidLevels() };
+	}
+
+	/**
+	 * Second phase: samples the center and the rings around each keypoint.
+	 * Coordinates are truncated to pixels, samples outside of the image are
+	 * mirrored back.
+	 *
+	 * @param pyramid the pyramid created by {@link #createPyramid}
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @return one descriptor of {@link #DESCRIPTOR_LENGTH} values per
+	 *         keypoint
+	 */
+	public static <P extends RealType<P>> double[][] sample(
+			final RandomAccessibleInterval<P> pyramid,
+			final double[] xs, final double[] ys) {
+		return sample(pyramid, DescriptorGeometry.DEFAULT, xs, ys);
+	}
+
+	/**
+	 * Second phase with another geometry than the default one.
+	 *
+	 * @param pyramid the pyramid created by {@link #createPyramid}
+	 * @param geometry where the descriptors are sampled
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint
+	 */
+	public static <P extends RealType<P>> double[][] sample(
+			final RandomAccessibleInterval<P> pyramid,
+			final DescriptorGeometry geometry, final double[] xs,
+			final double[] ys) {
+		double[][] data = new double[xs.length][];
+		sample(pyramid, geometry, xs, ys, 0, xs.length, data);
+		return data;
+	}
+
+	/**
+	 * Second phase on several threads, chunks of
+	 * {@link #SAMPLING_CHUNK_SIZE} keypoints are sampled in parallel.
+	 *
+	 * @param pyramid the pyramid created by {@link #createPyramid}
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the chunks
+	 * @return one descriptor of {@link #DESCRIPTOR_LENGTH} values per
+	 *         keypoint, the same as {@link #sample(RandomAccessibleInterval,
+	 *         double[], double[])}
+	 */
+	public static <P extends RealType<P>> double[][] sample(
+			final RandomAccessibleInterval<P> pyramid,
+			final double[] xs, final double[] ys, final ExecutorService pool) {
+		return sample(pyramid, DescriptorGeometry.DEFAULT, xs, ys, pool);
+	}
+
+	/**
+	 * Second phase on several threads with another geometry than the
+	 * default one.
+	 *
+	 * @param pyramid the pyramid created by {@link #createPyramid}
+	 * @param geometry where the descriptors are sampled
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the chunks
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint
+	 */
+	public static <P extends RealType<P>> double[][] sample(
+			final RandomAccessibleInterval<P> pyramid,
+			final DescriptorGeometry geometry, final double[] xs,
+			final double[] ys, final ExecutorService pool) {
+		if (xs.length <= SAMPLING_CHUNK_SIZE) {
+			return sample(pyramid, geometry, xs, ys);
+		}
+
+		final double[][] data = new double[xs.length][];
+		sampleChunks(xs.length, SAMPLING_CHUNK_SIZE, pool, new Chunk() {
+			@Override
+			public void sample(final int from, final int to) {
+				GeometricBlur.sample(pyramid, geometry, xs, ys, from, to, data);
+			}
+		});
+		return data;
+	}
+
+	/**
+	 * Both phases without a pyramid: evaluates the blur of the sampled
+	 * channels only at the samples of each keypoint, in small chunks of
+	 * keypoints in parallel. Each level is blurred directly, also in
+	 * cascaded mode.
+	 *
+	 * @param img the edge image, x, y and channel
+	 * @param xs the x coordinates of the keypoints
+	 * @param ys the y coordinates of the keypoints
+	 * @param pool runs the chunks
+	 * @return one descriptor of {@link DescriptorGeometry#getLength()}
+	 *         values per keypoint, the same as the ones sampled from the
+	 *         direct pyramid up to rounding
+	 */
+	public <T extends RealType<T>> double[][] sampleSparse(
+			final RandomAccessibleInterval<T> img, final double[] xs,
+			final double[] ys, final ExecutorService pool) {
+		final SparseBlur sparse = new SparseBlur(this);
+		final double[][] data = new double[xs.length][];
+		sampleChunks(xs.length, SPARSE_CHUNK_SIZE, pool, new Chunk() {
+			@Override
+			public void sample(final int from, final int to) {
+				sparse.sample(img, xs, ys, from, to, data);
+			}
+		});
+		return data;
+	}
+
+	// samples keypoints from (inclusive) to (exclusive)
+	private interface Chunk {
+		void sample(int from, int to);
+	}
+
+	// runs the chunks of chunkSize keypoints on the pool
+	private static void sampleChunks(final int keypoints,
+			final int chunkSize, final ExecutorService pool, final Chunk chunk) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int start = 0; start < keypoints; start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(keypoints, start + chunkSize);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunk.sample(from, to);
+					return null;
+				}
+			});
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while sampling the descriptors", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	// samples the keypoints from (inclusive) to (exclusive), each call has
+	// its own random access so calls may run in parallel
+	private static <P extends RealType<P>> void sample(
+			final RandomAccessibleInterval<P> pyramid,
+			final DescriptorGeometry geometry, final double[] xs,
+			final double[] ys, final int from, final int to,
+			final double[][] data) {
+
+		// we assume that we only have one set of keypoints for an whole image
+		// instead of a set of keypoints for every edge channel
+		final RandomAccess<P> rndAccess = Views.extendMirrorSingle(pyramid)
+				.randomAccess();
+		int channels = geometry.getChannels();
+		int samples = geometry.getSamples();
+		// interior keypoints of array pyramids are read without the random
+		// access
+		FlatPyramid flat = FlatPyramid.create(pyramid, geometry);
+
+		for (int k = from; k < to; k++) {
+			int x = (int) xs[k];
+			int y = (int) ys[k];
+			if (flat != null && flat.isInterior(x, y)) {
+				data[k] = flat.sample(x, y);
+				continue;
+			}
+			double[] descriptor = new double[geometry.getLength()];
+
+			// position in the descriptor (column of data array)
+			int arrayCurser = 0;
+
+			for (int c = 0; c < channels; c++) {
+				rndAccess.setPosition(c, 2);
+				// the center, then ring r on blur level r + 1
+				for (int s = 0; s < samples; s++) {
+					rndAccess.setPosition(x + geometry.getXOffset(s), 0);
+					rndAccess.setPosition(y + geometry.getYOffset(s), 1);
+					rndAccess.setPosition(geometry.getGroup(s), 3);
+					descriptor[arrayCurser++] = rndAccess.get().getRealDouble();
+				}
+			}
+			data[k] = descriptor;
+		}
+	}
+}
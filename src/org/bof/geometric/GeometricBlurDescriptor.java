@@ -2,23 +2,11 @@ package org.bof.geometric;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import net.imglib2.ExtendedRandomAccessibleInterval;
-import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImg;
-import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
-import net.imglib2.view.IntervalView;
-import net.imglib2.view.MixedTransformView;
 import net.imglib2.view.Views;
 
 import org.knime.core.node.KNIMEConstants;
@@ -39,21 +27,51 @@ public class GeometricBlurDescriptor<T extends RealType<T> & NativeType<T>>
 	 */
 	private static final long serialVersionUID = 1L;
 
+	// the pyramids of the images described by this node, so a sweep over
+	// the parameters of the keypoint detector blurs every image only once,
+	// created with the budget of the parameters
+	private transient PyramidCache m_pyramidCache;
+
+	// shared by all images of the node, created on first use
+	private transient ThreadPoolExecutorService m_pool;
+
+	// the geometry of the parameter values it was built from
+	private transient DescriptorGeometry m_geometry;
+
+	private transient int[] m_geometryParameters;
+
 	public GeometricBlurDescriptor() {
 		super(-1, new AlgorithmParameter<>("Max Sigma", "maxsigma", "maxsigma",
 				10), new AlgorithmParameter<>("Min Sigma", "minsigma",
 				"minsigma", 2), new AlgorithmParameter<>("Blur Levels",
-				"blurlevels", "blurlevels", 5));
+				"blurlevels", "blurlevels", 5), new AlgorithmParameter<>(
+				"Cascaded Blur", "cascadedblur", "cascadedblur", false),
+				new AlgorithmParameter<>("Float Pyramid", "floatpyramid",
+						"floatpyramid", false), new AlgorithmParameter<>(
+						"Mapped Pyramid MB", "mappedpyramidmb",
+						"mappedpyramidmb", 2048), new AlgorithmParameter<>(
+						"Rings", "rings", "rings", GeometricBlur.RINGS),
+				new AlgorithmParameter<>("First Radius", "firstradius",
+						"firstradius", GeometricBlur.FIRST_RADIUS),
+				new AlgorithmParameter<>("Ring Step", "ringstep", "ringstep",
+						GeometricBlur.RING_STEP), new AlgorithmParameter<>(
+						"Samples Per Ring", "samplesperring", "samplesperring",
+						GeometricBlur.SAMPLES_PER_RING),
+				new AlgorithmParameter<>("Channels", "channels", "channels",
+						GeometricBlur.CHANNELS), new AlgorithmParameter<>(
+						"Compute Edges", "computeedges", "computeedges", false),
+				new AlgorithmParameter<>("Flat Convolution", "flatconvolution",
+						"flatconvolution", false), new AlgorithmParameter<>(
+						"Pyramid Cache MB", "pyramidcachemb", "pyramidcachemb", 0));
 	}
 
 	@Override
 	public String[] getColumnHeaders() {
-		// we use ((4*12)+1)*#channels
-		// 4 sample rings with 12 samples per ring plus the keypoint itself
-		// and then append each edge channel. we want to go for four edge channels
-		// like in the paper
-		// therefore we get a descriptor size of: ((4 * 12) + 1) * 4 = 196
-		String[] columnHeaders = new String[196];
+		// we use ((#rings*#samples)+1)*#channels of the geometry parameters
+		// the sample rings plus the keypoint itself and then append each
+		// edge channel. the defaults are four rings of 12 samples and four
+		// edge channels like in the paper, 196 values
+		String[] columnHeaders = new String[getGeometry().getLength()];
 		for (int i = 1; i <= columnHeaders.length; i++) {
 			columnHeaders[i - 1] = "Descriptor Value #" + i;
 		}
@@ -61,51 +79,6 @@ public class GeometricBlurDescriptor<T extends RealType<T> & NativeType<T>>
 		return columnHeaders;
 	}
 
-	private int[][] getSampleCoordinates( int radius ){
-		// coordinates[0][?] := x
-		// coordinates[1][?] := y
-		int[][] coordinates = new int[2][12];
-				
-		double samplingAngle = 30;
-		
-		//sampling will start at the top of the circle clockwise		
-		//top right
-		// first sample
-		coordinates[0][0] = 0;		
-		coordinates[1][0] = radius;
-		//second sample
-		coordinates[0][1] = (int)Math.rint( Math.cos((samplingAngle * 2 * Math.PI)/180) * radius );		
-		coordinates[1][1] = (int)Math.rint( Math.sin((samplingAngle * 2 * Math.PI)/180) * radius );
-		//third sample
-		coordinates[0][2] = (int)Math.rint( Math.cos((samplingAngle * Math.PI)/180) * radius );		
-		coordinates[1][2] = (int)Math.rint( Math.sin((samplingAngle * Math.PI)/180) * radius );
-		//fourth sample
-		coordinates[0][3] = radius;		
-		coordinates[1][3] = 0;
-		//now we just mirror the samples
-		//bottom right
-		coordinates[0][4] = coordinates[0][2];		
-		coordinates[1][4] = -coordinates[1][2];
-		coordinates[0][5] = coordinates[0][1];		
-		coordinates[1][5] = -coordinates[1][1];
-		coordinates[0][6] = coordinates[0][0];		
-		coordinates[1][6] = -coordinates[1][0];
-		//bottom left
-		coordinates[0][7] = -coordinates[0][5];		
-		coordinates[1][7] = coordinates[1][5];
-		coordinates[0][8] = -coordinates[0][4];		
-		coordinates[1][8] = coordinates[1][4];
-		coordinates[0][9] = -coordinates[0][3];		
-		coordinates[1][9] = coordinates[1][3];
-		//top left
-		coordinates[0][10] = coordinates[0][8];		
-		coordinates[1][10] = -coordinates[1][8];
-		coordinates[0][11] = coordinates[0][7];		
-		coordinates[1][11] = -coordinates[1][7];
-		
-		return coordinates;
-	}
-	
 	// for each keypoint and the given input image (blurred image) extract the
 	// geometric blur descriptor
 	@Override
@@ -126,143 +99,155 @@ public class GeometricBlurDescriptor<T extends RealType<T> & NativeType<T>>
 		double minSigma = 0.0;
 		double maxSigma = 0.0;
 		int blurLevels = 0;
+		boolean cascaded = false;
+		boolean floatPyramid = false;
+		long mappedBytes = Long.MAX_VALUE;
+		boolean computeEdges = false;
+		boolean flatConvolution = false;
+		long cacheBytes = 0;
 		
 		for(AlgorithmParameter<?> param : getParameters()){
-			if(param.getName() == "Max Sigma"){
-				maxSigma = new Double(param.getValueAsString());
+			if("Max Sigma".equals(param.getName())){
+				maxSigma = Double.parseDouble(param.getValueAsString());
+			}
+			else if("Min Sigma".equals(param.getName())){
+				minSigma = Double.parseDouble(param.getValueAsString());
+			}
+			else if("Blur Levels".equals(param.getName())){
+				blurLevels = Integer.parseInt(param.getValueAsString());
 			}
-			else if(param.getName() == "Min Sigma"){
-				minSigma = new Double(param.getValueAsString());
+			else if("Cascaded Blur".equals(param.getName())){
+				cascaded = Boolean.parseBoolean(param.getValueAsString());
 			}
-			else if(param.getName() == "Blur Levels"){
-				blurLevels = new Integer(param.getValueAsString());
+			else if("Float Pyramid".equals(param.getName())){
+				floatPyramid = Boolean.parseBoolean(param.getValueAsString());
+			}
+			else if("Mapped Pyramid MB".equals(param.getName())){
+				mappedBytes = Long.parseLong(param.getValueAsString()) << 20;
+			}
+			else if("Compute Edges".equals(param.getName())){
+				computeEdges = Boolean.parseBoolean(param.getValueAsString());
+			}
+			else if("Flat Convolution".equals(param.getName())){
+				flatConvolution = Boolean.parseBoolean(param.getValueAsString());
+			}
+			else if("Pyramid Cache MB".equals(param.getName())){
+				cacheBytes = Long.parseLong(param.getValueAsString()) << 20;
 			}
 		}
-		
-		
-
-		// yeah
-		double stepSize = (maxSigma - minSigma) / blurLevels;
 
-		long[] newDims = new long[] { img.dimension(0), img.dimension(1),
-				img.dimension(2), blurLevels };
-
-		ArrayImg<DoubleType, ?> tmpImg = new ArrayImgFactory<DoubleType>()
-				.create(newDims, new DoubleType());
+		// the descriptor itself is computed by the headless implementation
+		double[] xs = new double[list.size()];
+		double[] ys = new double[list.size()];
+		for (int k = 0; k < xs.length; k++) {
+			xs[k] = list.get(k).pt.x;
+			ys[k] = list.get(k).pt.y;
+		}
+		GeometricBlur blur = new GeometricBlur(minSigma, maxSigma, blurLevels,
+				cascaded, getGeometry(), flatConvolution);
+		ThreadPoolExecutorService pool = getPool();
+		PyramidCache cache = getPyramidCache(cacheBytes);
+
+		// with computed edges the first plane of the image is the gray
+		// image, its edges are computed channel by channel while blurring
+		RandomAccessibleInterval<T> input = img;
+		long[] dimensions = blur.getPyramidDimensions(img);
+		if (computeEdges) {
+			input = img.numDimensions() > 2 ? Views.hyperSlice(img, 2, 0)
+					: img;
+			dimensions = blur.getEdgePyramidDimensions(input);
+		}
 
-		ThreadPoolExecutorService pool = new ThreadPoolExecutorService(
-	            KNIMEConstants.GLOBAL_THREAD_POOL.createSubPool(KNIPConstants.THREADS_PER_NODE));
-		for (int l = 0; l < blurLevels; l++) {
-			// Do that for each "edge filter"
-			for (int c = 0; c < img.dimension(2); c++) {
-				try {
-				    
-//					IntervalView<T> temp1 = Views.interval(img,
-//							new long[] { 0, 0, 0 }, new long[] {
-//							newDims[0] - 1, newDims[1] - 1, c });
-					
-					//IntervalView<T> tempInput = Views.hyperSlice(img, 2, c);
-					
-					// mirror the image so theres no border
-					ExtendedRandomAccessibleInterval<T, IntervalView<T>> inputPlane = Views.extendMirrorSingle(Views.hyperSlice(img, 2, c));
-					
-					// add 4th dimension
-//					MixedTransformView<T> currentImg = Views.addDimension(temp2);
-					
-					// Output-Plane
-					IntervalView<DoubleType> outputPlane = Views.hyperSlice(Views.hyperSlice(tmpImg, 3, l), 2, c);
-					
-					double[] sigmas = new double[outputPlane.numDimensions()];
-					Arrays.fill(sigmas, minSigma + (l * stepSize));
-					
-					Gauss3.gauss(sigmas, inputPlane, outputPlane, pool);
-				} catch (IncompatibleTypeException e) {
-					e.printStackTrace();
-				}
+		if (blur.isSparseCheaper(dimensions[0], dimensions[1], dimensions[2],
+				xs.length)) {
+			// few keypoints, blurring the whole image would cost more than
+			// evaluating the samples, so the pyramid is not cached either
+			if (computeEdges) {
+				return blur.sampleSparse(EdgeFilterBank.filter(input, blur
+						.getGeometry().getChannels()), xs, ys, pool);
 			}
+			return blur.sampleSparse(img, xs, ys, pool);
+		}
+		// pyramids too large for the heap are mapped, always as floats
+		if (floatPyramid
+				|| PyramidStorage.doubles().getBytes(dimensions) > mappedBytes) {
+			return sample(blur, input, computeEdges, xs, ys,
+					PyramidStorage.floats(mappedBytes), cache, pool);
 		}
+		return sample(blur, input, computeEdges, xs, ys,
+				PyramidStorage.doubles(), cache, pool);
+	}
 
-		double[][] data = new double[list.size()][196];
+	private static <T extends RealType<T>, P extends RealType<P> & NativeType<P>> double[][] sample(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> input,
+			final boolean computeEdges, final double[] xs, final double[] ys,
+			final PyramidStorage<P> storage, final PyramidCache cache,
+			final ThreadPoolExecutorService pool) {
+		return GeometricBlur.sample(computeEdges ? cache.getEdgePyramid(blur,
+				input, storage, pool) : cache.getPyramid(blur, input, storage,
+				pool), blur.getGeometry(), xs, ys, pool);
+	}
 
-		// index of current keypoint 
-		int currentKeyPoint = 0;
-		
-		// we assume that we only have one set of keypoints for an whole image instead of
-		// a set of keypoints for every edge channel
-		// we also assume that we only have four edge channels respectively we only use the
-		// first four channels
-		
-		
-		final RandomAccess<DoubleType> rndAccess = Views.extendMirrorSingle(tmpImg).randomAccess();
-				
-		for (final KeyPoint key : list) {
-		
-		// position in the descriptor (column of data array)
-		int arrayCurser = 0;
-			
-			// loop channels
-			for ( int i = 0 ; i < 4 ; i++ ){
-				//set channel
-				rndAccess.setPosition(i, 2);
-				//set x position
-				rndAccess.setPosition((int) key.pt.x, 0);
-				//set y position
-				rndAccess.setPosition((int) key.pt.y, 1);
-				//set blurlvl
-				rndAccess.setPosition(0,3);
-				
-				
-				data[currentKeyPoint][arrayCurser] = rndAccess.get().get();
-				arrayCurser++;
-				
-				
-				int blurLvl = 1;
-				// sample ring patterns 
-				// we sample four rings in steps of 5 pixels(?) around the keypoint 
-				for ( int j = 5 ; j <= 35 ; j = j+10 ){
-					int[][] coordinates = getSampleCoordinates(j);
-					
-					// get the samples from the calculated coordinates
-					for ( int v = 0 ; v < coordinates[0].length ; v++ ){
-						// set blurLVL
-						rndAccess.setPosition(blurLvl,3);
-						//x						
-						rndAccess.setPosition(coordinates[0][v] + (int)key.pt.x, 0);
-						//y						
-						rndAccess.setPosition(coordinates[1][v] + (int)key.pt.y, 1);
-						data[currentKeyPoint][arrayCurser] = rndAccess.get().get();
-						arrayCurser++;
-					}
-					blurLvl++;
-				}
+	// the geometry of the parameters, the default for missing ones, only
+	// rebuilt when the parameters change
+	private synchronized DescriptorGeometry getGeometry() {
+		int rings = GeometricBlur.RINGS;
+		int firstRadius = GeometricBlur.FIRST_RADIUS;
+		int ringStep = GeometricBlur.RING_STEP;
+		int samplesPerRing = GeometricBlur.SAMPLES_PER_RING;
+		int channels = GeometricBlur.CHANNELS;
+		for (AlgorithmParameter<?> param : getParameters()) {
+			if ("Rings".equals(param.getName())) {
+				rings = Integer.parseInt(param.getValueAsString());
+			} else if ("First Radius".equals(param.getName())) {
+				firstRadius = Integer.parseInt(param.getValueAsString());
+			} else if ("Ring Step".equals(param.getName())) {
+				ringStep = Integer.parseInt(param.getValueAsString());
+			} else if ("Samples Per Ring".equals(param.getName())) {
+				samplesPerRing = Integer.parseInt(param.getValueAsString());
+			} else if ("Channels".equals(param.getName())) {
+				channels = Integer.parseInt(param.getValueAsString());
 			}
-			
-			
-			
-			
+		}
+		int[] parameters = { rings, firstRadius, ringStep, samplesPerRing,
+				channels };
+		if (!Arrays.equals(parameters, m_geometryParameters)) {
+			m_geometry = new DescriptorGeometry(rings, firstRadius, ringStep,
+					samplesPerRing, channels);
+			m_geometryParameters = parameters;
+		}
+		return m_geometry;
+	}
 
-			// Unfortunately we support only 2D since now. In our case we need
-			// the channel (Edge) information. We use another field in the
-			// keypoint ( octave is the channel number )
-			
-			// rndAccess.setPosition(key.octave, 2);
-			
-			// now we have set the random access to the center point on or image
-			// from where it was extracted.
-			// you guys have to implement the function which samples around the
-			// point some other points (as in the paper).
-			// use rndAccess.setPosition(X value, 0)
-			// use rndAccess.setPosition(Y value, 1) to do so..
+	// the cache of the node, replaced when its budget changes, a budget of
+	// 0 caches nothing
+	private synchronized PyramidCache getPyramidCache(final long maxBytes) {
+		if (m_pyramidCache == null || m_pyramidCache.getMaxBytes() != maxBytes) {
+			clearPyramidCache();
+			m_pyramidCache = new PyramidCache(maxBytes);
+		}
+		return m_pyramidCache;
+	}
 
-			// to access the different gauss levels use
-			// rndAccess.setPosition(GAUSS LEVEL,3)
-			
-			// use rndAccess.get() (returns double because the rndAccess is specified 
-			// as double above) to access the pixel the randomAccess is pointing at
-			
-			currentKeyPoint++;
+	/**
+	 * Removes the cached pyramids of the node, e.g. when it is reset or
+	 * disposed.
+	 */
+	public synchronized void clearPyramidCache() {
+		if (m_pyramidCache != null) {
+			m_pyramidCache.clear();
+			m_pyramidCache = null;
 		}
+	}
 
-		return data;
+	// one sub-pool of the global KNIME pool runs the convolutions and the
+	// sampling of all images
+	private synchronized ThreadPoolExecutorService getPool() {
+		if (m_pool == null) {
+			m_pool = new ThreadPoolExecutorService(
+					KNIMEConstants.GLOBAL_THREAD_POOL
+							.createSubPool(KNIPConstants.THREADS_PER_NODE));
+		}
+		return m_pool;
 	}
 }
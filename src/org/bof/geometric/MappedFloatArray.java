@@ -0,0 +1,86 @@
+package org.bof.geometric;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+
+/**
+ * The floats of one cell of a pyramid, memory mapped from a region of a
+ * file. An instance without data creates the cells, each one mapping the
+ * region behind the previous one.
+ *
+ * @author David Kolb
+ */
+final class MappedFloatArray implements FloatAccess,
+		ArrayDataAccess<MappedFloatArray> {
+
+	private static final long serialVersionUID = 1L;
+
+	// the file and the end of its mapped regions, shared by the cells
+	private final transient FileChannel m_channel;
+
+	private final transient long[] m_end;
+
+	private final transient FloatBuffer m_data;
+
+	/**
+	 * @param channel the file the cells are mapped from, it may be closed
+	 *            once all cells have been created
+	 */
+	MappedFloatArray(final FileChannel channel) {
+		this(channel, new long[1], null);
+	}
+
+	private MappedFloatArray(final FileChannel channel, final long[] end,
+			final FloatBuffer data) {
+		m_channel = channel;
+		m_end = end;
+		m_data = data;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public MappedFloatArray createArray(final int numEntities) {
+		long bytes = 4L * numEntities;
+		try {
+			FloatBuffer data = m_channel
+					.map(FileChannel.MapMode.READ_WRITE, m_end[0], bytes)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			m_end[0] += bytes;
+			return new MappedFloatArray(m_channel, m_end, data);
+		} catch (IOException e) {
+			throw new IllegalStateException(
+					"Could not map a cell of the pyramid", e);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public float getValue(final int index) {
+		return m_data.get(index);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void setValue(final int index, final float value) {
+		m_data.put(index, value);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Object getCurrentStorageArray() {
+		return m_data;
+	}
+}
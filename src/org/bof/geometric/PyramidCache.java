@@ -0,0 +1,295 @@
+package org.bof.geometric;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Keeps the blur pyramids of recently described images, so describing an
+ * image again, e.g. with other keypoints, does not repeat the convolutions.
+ * <p>
+ * An image is identified by a 64 bit hash of its size and pixel values
+ * together with all blur parameters, so copies of an image share their
+ * pyramid. Hashing an image costs a small fraction of blurring it. The
+ * cache holds pyramids up to a budget of bytes and evicts the least
+ * recently used ones beyond it. Cached pyramids are shared and must not be
+ * modified. Memory mapped pyramids are never cached.
+ *
+ * @author David Kolb
+ */
+public class PyramidCache {
+
+	private final long m_maxBytes;
+
+	// in access order, the eldest entry is the least recently used
+	private final LinkedHashMap<Key, Entry> m_pyramids =
+			new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+	private long m_bytes;
+
+	private long m_hits;
+
+	private long m_misses;
+
+	/**
+	 * @param maxBytes the budget of the cached pyramids, 0 disables the
+	 *            cache
+	 */
+	public PyramidCache(final long maxBytes) {
+		m_maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached pyramid of an image or blurs the image and caches
+	 * its pyramid.
+	 *
+	 * @param blur the blur parameters
+	 * @param img the edge image, x, y and channel
+	 * @param pool runs the convolutions on a miss
+	 * @return the pyramid of doubles, shared with the cache
+	 */
+	public <T extends RealType<T>> Img<DoubleType> getPyramid(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> img,
+			final ExecutorService pool) {
+		return getPyramid(blur, img, PyramidStorage.doubles(), pool);
+	}
+
+	/**
+	 * Returns the cached pyramid of an image or blurs the image and caches
+	 * its pyramid, unless the storage maps it.
+	 *
+	 * @param blur the blur parameters
+	 * @param img the edge image, x, y and channel
+	 * @param storage creates the pyramid on a miss
+	 * @param pool runs the convolutions on a miss
+	 * @return the pyramid, shared with the cache
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> getPyramid(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> img,
+			final PyramidStorage<P> storage, final ExecutorService pool) {
+		return getPyramid(blur, img, false, storage, pool);
+	}
+
+	/**
+	 * Returns the cached pyramid of a gray image or computes its edges and
+	 * blurs them with {@link GeometricBlur#createEdgePyramid} and caches the
+	 * pyramid, unless the storage maps it.
+	 *
+	 * @param blur the blur parameters
+	 * @param gray the gray image, x and y
+	 * @param storage creates the pyramid on a miss
+	 * @param pool runs the convolutions on a miss
+	 * @return the pyramid, shared with the cache
+	 */
+	public <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> getEdgePyramid(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> gray,
+			final PyramidStorage<P> storage, final ExecutorService pool) {
+		return getPyramid(blur, gray, true, storage, pool);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> getPyramid(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> img,
+			final boolean edges, final PyramidStorage<P> storage,
+			final ExecutorService pool) {
+		long[] dimensions = edges ? blur.getEdgePyramidDimensions(img) : blur
+				.getPyramidDimensions(img);
+		if (m_maxBytes <= 0 || storage.isMapped(dimensions)) {
+			return create(blur, img, edges, storage, pool);
+		}
+		Key key = new Key(blur, img, edges, storage.getBytesPerValue());
+		synchronized (this) {
+			Entry entry = m_pyramids.get(key);
+			if (entry != null) {
+				m_hits++;
+				// the key includes the type of the values
+				return (Img<P>) entry.m_pyramid;
+			}
+			m_misses++;
+		}
+		// blurred outside of the lock, an image requested by two threads at
+		// once is blurred twice
+		Img<P> pyramid = create(blur, img, edges, storage, pool);
+		put(key, new Entry(pyramid, storage.getBytes(dimensions)));
+		return pyramid;
+	}
+
+	private static <T extends RealType<T>, P extends RealType<P> & NativeType<P>> Img<P> create(
+			final GeometricBlur blur, final RandomAccessibleInterval<T> img,
+			final boolean edges, final PyramidStorage<P> storage,
+			final ExecutorService pool) {
+		return edges ? blur.createEdgePyramid(img, pool, storage) : blur
+				.createPyramid(img, pool, storage);
+	}
+
+	private synchronized void put(final Key key, final Entry entry) {
+		if (entry.m_bytes > m_maxBytes) {
+			return;
+		}
+		Entry previous = m_pyramids.put(key, entry);
+		if (previous != null) {
+			m_bytes -= previous.m_bytes;
+		}
+		m_bytes += entry.m_bytes;
+		Iterator<Entry> eldest = m_pyramids.values().iterator();
+		while (m_bytes > m_maxBytes) {
+			m_bytes -= eldest.next().m_bytes;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Removes all pyramids, the counters are kept.
+	 */
+	public synchronized void clear() {
+		m_pyramids.clear();
+		m_bytes = 0;
+	}
+
+	/**
+	 * @return the budget in bytes
+	 */
+	public long getMaxBytes() {
+		return m_maxBytes;
+	}
+
+	/**
+	 * @return the bytes held by the cached pyramids
+	 */
+	public synchronized long getBytes() {
+		return m_bytes;
+	}
+
+	/**
+	 * @return the number of cached pyramids
+	 */
+	public synchronized int size() {
+		return m_pyramids.size();
+	}
+
+	/**
+	 * @return the number of requests served from the cache
+	 */
+	public synchronized long getHits() {
+		return m_hits;
+	}
+
+	/**
+	 * @return the number of requests which blurred the image
+	 */
+	public synchronized long getMisses() {
+		return m_misses;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public synchronized String toString() {
+		return "PyramidCache[" + m_pyramids.size() + " pyramids, " + m_bytes
+				+ " of " + m_maxBytes + " bytes, " + m_hits + " hits, "
+				+ m_misses + " misses]";
+	}
+
+	private static final class Entry {
+
+		private final Img<?> m_pyramid;
+
+		private final long m_bytes;
+
+		Entry(final Img<?> pyramid, final long bytes) {
+			m_pyramid = pyramid;
+			m_bytes = bytes;
+		}
+	}
+
+	// identifies an image, whether its edges are computed, the blur
+	// parameters and convolution, the sampled channels and levels and the
+	// type of the values
+	private static final class Key {
+
+		private final long[] m_dimensions;
+
+		private final long m_hash;
+
+		private final double m_minSigma;
+
+		private final double m_maxSigma;
+
+		private final int m_blurLevels;
+
+		private final boolean m_cascaded;
+
+		private final boolean m_edges;
+
+		private final boolean m_flatConvolution;
+
+		private final int m_bytesPerValue;
+
+		// the sampled channels and levels, the others are not blurred
+		private final int m_channels;
+
+		private final int m_groups;
+
+		<T extends RealType<T>> Key(final GeometricBlur blur,
+				final RandomAccessibleInterval<T> img, final boolean edges,
+				final int bytesPerValue) {
+			m_dimensions = new long[img.numDimensions()];
+			img.dimensions(m_dimensions);
+			m_minSigma = blur.getMinSigma();
+			m_maxSigma = blur.getMaxSigma();
+			m_blurLevels = blur.getBlurLevels();
+			m_cascaded = blur.isCascaded();
+			m_edges = edges;
+			m_flatConvolution = blur.isFlatConvolution();
+			m_bytesPerValue = bytesPerValue;
+			m_channels = blur.getGeometry().getChannels();
+			m_groups = blur.getGeometry().getGroups();
+			long h = 0x9E3779B97F4A7C15L;
+			for (T value : Views.flatIterable(img)) {
+				h = mix(h ^ Double.doubleToLongBits(value.getRealDouble()));
+			}
+			m_hash = h;
+		}
+
+		// the finalizer of splitmix64
+		private static long mix(final long value) {
+			long z = value + 0x9E3779B97F4A7C15L;
+			z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+			z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+			return z ^ (z >>> 31);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (m_hash ^ (m_hash >>> 32));
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return m_hash == other.m_hash
+					&& Arrays.equals(m_dimensions, other.m_dimensions)
+					&& m_minSigma == other.m_minSigma
+					&& m_maxSigma == other.m_maxSigma
+					&& m_blurLevels == other.m_blurLevels
+					&& m_cascaded == other.m_cascaded
+					&& m_edges == other.m_edges
+					&& m_flatConvolution == other.m_flatConvolution
+					&& m_bytesPerValue == other.m_bytesPerValue
+					&& m_channels == other.m_channels
+					&& m_groups == other.m_groups;
+		}
+	}
+}
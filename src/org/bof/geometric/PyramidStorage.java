@@ -0,0 +1,180 @@
+package org.bof.geometric;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.cell.DefaultCell;
+import net.imglib2.img.cell.ListImgCells;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * Where and with which precision the blur pyramid is stored.
+ * <p>
+ * {@link #doubles()} keeps the pyramid as doubles on the heap.
+ * {@link #floats(long)} halves its size, and moves pyramids above a number
+ * of bytes into a cell image whose cells are memory mapped from a temporary
+ * file, so neither the heap nor the size of a Java array limits the size of
+ * the images. Float pyramids differ from double ones by at most
+ * {@link GeometricBlur#FLOAT_TOLERANCE} relative to the largest value of the
+ * edge image.
+ *
+ * @param <P> the type of the values
+ * @author David Kolb
+ */
+public abstract class PyramidStorage<P extends RealType<P> & NativeType<P>> {
+
+	// values per cell of the cell images, 64 MB of floats
+	private static final int CELL_SIZE = 1 << 24;
+
+	private static final PyramidStorage<DoubleType> DOUBLES = new PyramidStorage<DoubleType>(
+			8) {
+		@Override
+		public Img<DoubleType> create(final long[] dimensions) {
+			if (count(dimensions) > Integer.MAX_VALUE) {
+				return new CellImgFactory<DoubleType>(getCellDimensions(dimensions))
+						.create(dimensions, new DoubleType());
+			}
+			return new ArrayImgFactory<DoubleType>().create(dimensions,
+					new DoubleType());
+		}
+
+		@Override
+		public boolean isMapped(final long[] dimensions) {
+			return false;
+		}
+	};
+
+	private final int m_bytesPerValue;
+
+	private PyramidStorage(final int bytesPerValue) {
+		m_bytesPerValue = bytesPerValue;
+	}
+
+	/**
+	 * @return doubles on the heap
+	 */
+	public static PyramidStorage<DoubleType> doubles() {
+		return DOUBLES;
+	}
+
+	/**
+	 * @param mappedBytes pyramids of more bytes are memory mapped,
+	 *            {@link Long#MAX_VALUE} keeps all of them on the heap
+	 * @return floats on the heap or memory mapped
+	 */
+	public static PyramidStorage<FloatType> floats(final long mappedBytes) {
+		return new Floats(mappedBytes);
+	}
+
+	/**
+	 * @param dimensions the dimensions of the pyramid
+	 * @return a pyramid of zeros
+	 */
+	public abstract Img<P> create(long[] dimensions);
+
+	/**
+	 * @param dimensions the dimensions of the pyramid
+	 * @return whether the pyramid is memory mapped
+	 */
+	public abstract boolean isMapped(long[] dimensions);
+
+	/**
+	 * @return the bytes of one value, 8 or 4
+	 */
+	public int getBytesPerValue() {
+		return m_bytesPerValue;
+	}
+
+	/**
+	 * @param dimensions the dimensions of the pyramid
+	 * @return the bytes of the pyramid
+	 */
+	public long getBytes(final long[] dimensions) {
+		return m_bytesPerValue * count(dimensions);
+	}
+
+	private static long count(final long[] dimensions) {
+		long count = 1;
+		for (long d : dimensions) {
+			count *= d;
+		}
+		return count;
+	}
+
+	// whole rows of a plane, x, y, channel and level
+	private static int[] getCellDimensions(final long[] dimensions) {
+		int[] cell = new int[dimensions.length];
+		cell[0] = (int) dimensions[0];
+		cell[1] = (int) Math.max(1,
+				Math.min(dimensions[1], CELL_SIZE / dimensions[0]));
+		for (int d = 2; d < cell.length; d++) {
+			cell[d] = 1;
+		}
+		return cell;
+	}
+
+	private static final class Floats extends PyramidStorage<FloatType> {
+
+		private final long m_mappedBytes;
+
+		Floats(final long mappedBytes) {
+			super(4);
+			m_mappedBytes = mappedBytes;
+		}
+
+		@Override
+		public Img<FloatType> create(final long[] dimensions) {
+			if (isMapped(dimensions)) {
+				return createMapped(dimensions);
+			}
+			if (count(dimensions) > Integer.MAX_VALUE) {
+				return new CellImgFactory<FloatType>(getCellDimensions(dimensions))
+						.create(dimensions, new FloatType());
+			}
+			return new ArrayImgFactory<FloatType>().create(dimensions,
+					new FloatType());
+		}
+
+		@Override
+		public boolean isMapped(final long[] dimensions) {
+			return getBytes(dimensions) > m_mappedBytes;
+		}
+
+		// the cells are mapped one after the other from a temporary file,
+		// which is deleted right away where the platform allows, the
+		// mappings stay valid until they are garbage collected
+		private static Img<FloatType> createMapped(final long[] dimensions) {
+			int[] cellDimensions = getCellDimensions(dimensions);
+			try {
+				File file = File.createTempFile("pyramid", ".bin");
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					ListImgCells<MappedFloatArray> cells = new ListImgCells<MappedFloatArray>(
+							new MappedFloatArray(raf.getChannel()),
+							new Fraction(), dimensions, cellDimensions);
+					CellImg<FloatType, MappedFloatArray, DefaultCell<MappedFloatArray>> img = new CellImg<FloatType, MappedFloatArray, DefaultCell<MappedFloatArray>>(
+							new CellImgFactory<FloatType>(cellDimensions), cells);
+					img.setLinkedType(new FloatType(img));
+					return img;
+				} finally {
+					raf.close();
+					if (!file.delete()) {
+						file.deleteOnExit();
+					}
+				}
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Could not map the pyramid to a temporary file", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,128 @@
+package org.bof.geometric;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Evaluates the blurred edge image only where {@link GeometricBlur} samples
+ * it, instead of blurring every pixel of every level.
+ * <p>
+ * For each keypoint and sampled channel the pixels around the keypoint are
+ * copied into a patch, large enough for the outermost ring and the largest
+ * kernel. Every sample is then the Gaussian of its level evaluated directly
+ * at its position in the patch. The kernels are the ones {@link Gauss3}
+ * uses and the patch is mirrored at the image borders like the input of
+ * the dense pyramid, so both give the same descriptors up to rounding.
+ * Levels and channels which are never sampled are not evaluated at all.
+ *
+ * @author David Kolb
+ */
+final class SparseBlur {
+
+	private final DescriptorGeometry m_geometry;
+
+	// the half kernel of the center, [0], and of ring r, [r + 1]
+	private final double[][] m_kernels;
+
+	// the patch spans the keypoint +- m_radius in x and y
+	private final int m_radius;
+
+	private final int m_side;
+
+	SparseBlur(final GeometricBlur blur) {
+		m_geometry = blur.getGeometry();
+		m_kernels = new double[m_geometry.getGroups()][];
+		int radius = 0;
+		for (int g = 0; g < m_kernels.length; g++) {
+			double sigma = blur.getSigma(blur.getSampledLevel(g));
+			m_kernels[g] = Gauss3.halfkernels(new double[] { sigma })[0];
+			radius = Math.max(radius, m_geometry.getRadius(g)
+					+ m_kernels[g].length - 1);
+		}
+		m_radius = radius;
+		m_side = 2 * radius + 1;
+	}
+
+	/**
+	 * @param keypoints the number of keypoints
+	 * @return the number of pixel reads and multiplications to describe
+	 *         them
+	 */
+	long getCost(final long keypoints) {
+		long perChannel = (long) m_side * m_side;
+		for (int g = 0; g < m_kernels.length; g++) {
+			long taps = 2 * m_kernels[g].length - 1;
+			perChannel += m_geometry.getSamples(g) * taps * taps;
+		}
+		return keypoints * m_geometry.getChannels() * perChannel;
+	}
+
+	// describes the keypoints from (inclusive) to (exclusive), each call has
+	// its own random access and patch so calls may run in parallel
+	<T extends RealType<T>> void sample(final RandomAccessibleInterval<T> img,
+			final double[] xs, final double[] ys, final int from, final int to,
+			final double[][] data) {
+		RandomAccess<T> access = Views.extendMirrorSingle(img).randomAccess();
+		double[] patch = new double[m_side * m_side];
+
+		for (int k = from; k < to; k++) {
+			int x = (int) xs[k];
+			int y = (int) ys[k];
+			double[] descriptor = new double[m_geometry.getLength()];
+			int arrayCurser = 0;
+
+			for (int c = 0; c < m_geometry.getChannels(); c++) {
+				copyPatch(access, x, y, c, patch);
+				for (int s = 0; s < m_geometry.getSamples(); s++) {
+					descriptor[arrayCurser++] = evaluate(patch,
+							m_geometry.getXOffset(s), m_geometry.getYOffset(s),
+							m_kernels[m_geometry.getGroup(s)]);
+				}
+			}
+			data[k] = descriptor;
+		}
+	}
+
+	// copies the pixels of a channel around the keypoint, row by row
+	private <T extends RealType<T>> void copyPatch(
+			final RandomAccess<T> access, final int x, final int y,
+			final int channel, final double[] patch) {
+		access.setPosition(channel, 2);
+		int i = 0;
+		for (int row = 0; row < m_side; row++) {
+			access.setPosition(x - m_radius, 0);
+			access.setPosition(y - m_radius + row, 1);
+			for (int column = 0; column < m_side; column++) {
+				patch[i++] = access.get().getRealDouble();
+				access.fwd(0);
+			}
+		}
+	}
+
+	// the Gaussian of the half kernel at an offset from the keypoint,
+	// separable: each row is filtered at the sample, then the rows are
+	// weighted
+	private double evaluate(final double[] patch, final int dx, final int dy,
+			final double[] kernel) {
+		int center = (m_radius + dy) * m_side + m_radius + dx;
+		double value = kernel[0] * filterRow(patch, center, kernel);
+		for (int j = 1; j < kernel.length; j++) {
+			value += kernel[j]
+					* (filterRow(patch, center - j * m_side, kernel) + filterRow(
+							patch, center + j * m_side, kernel));
+		}
+		return value;
+	}
+
+	private static double filterRow(final double[] patch, final int center,
+			final double[] kernel) {
+		double value = kernel[0] * patch[center];
+		for (int i = 1; i < kernel.length; i++) {
+			value += kernel[i] * (patch[center - i] + patch[center + i]);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,153 @@
+package org.bof.histogram;
+
+import java.util.Collection;
+
+/**
+ * Resolves cluster labels of the form &lt;prefix&gt;&lt;bin&gt; to their bin
+ * index without allocating objects.
+ * <p>
+ * If the possible labels are known in advance (e.g. from the domain of the
+ * column), they are validated once and stored in an open addressing table,
+ * so decoding a label is a single lookup. Labels missing in that table are
+ * parsed digit by digit after the prefix.
+ *
+ * @author David Kolb
+ */
+public final class ClusterLabelDecoder {
+
+    /** Returned for labels that do not match the prefix or the range. */
+    public static final int INVALID = -1;
+
+    private final String m_prefix;
+
+    private final int m_range;
+
+    // open addressing table of the known labels, null if none are known
+    private final String[] m_labels;
+
+    private final int[] m_bins;
+
+    private final int m_mask;
+
+    /**
+     * Creates a decoder which parses every label.
+     *
+     * @param prefix the prefix in front of the bin number
+     * @param range the number of bins
+     */
+    public ClusterLabelDecoder(final String prefix, final int range) {
+        this(prefix, range, null);
+    }
+
+    /**
+     * Creates a decoder with a lookup table for the given labels.
+     *
+     * @param prefix the prefix in front of the bin number
+     * @param range the number of bins
+     * @param labels the possible labels, may be <code>null</code>
+     * @throws IllegalArgumentException if one of the labels is invalid
+     */
+    public ClusterLabelDecoder(final String prefix, final int range,
+            final Collection<String> labels) {
+        m_prefix = prefix;
+        m_range = range;
+        if (labels == null || labels.isEmpty()) {
+            m_labels = null;
+            m_bins = null;
+            m_mask = 0;
+            return;
+        }
+
+        // at most half of the table is used
+        int size = Integer.highestOneBit(Math.max(labels.size(), 1)) << 2;
+        m_labels = new String[size];
+        m_bins = new int[size];
+        m_mask = size - 1;
+        for (String label : labels) {
+            int bin = parse(label);
+            if (bin == INVALID) {
+                throw new IllegalArgumentException(getErrorMessage(label));
+            }
+            int slot = slot(label);
+            while (m_labels[slot] != null && !m_labels[slot].equals(label)) {
+                slot = (slot + 1) & m_mask;
+            }
+            m_labels[slot] = label;
+            m_bins[slot] = bin;
+        }
+    }
+
+    /**
+     * @param label the cluster label
+     * @return the bin of the label or {@link #INVALID}
+     */
+    public int decode(final String label) {
+        if (m_labels != null) {
+            int slot = slot(label);
+            String known;
+            while ((known = m_labels[slot]) != null) {
+                if (known.equals(label)) {
+                    return m_bins[slot];
+                }
+                slot = (slot + 1) & m_mask;
+            }
+        }
+        return parse(label);
+    }
+
+    /**
+     * @param label an invalid label
+     * @return the message describing why the label is invalid
+     */
+    public String getErrorMessage(final String label) {
+        return "Cluster label " + label + " does not match the pattern "
+                + m_prefix + " or exceeds the range " + m_range;
+    }
+
+    /**
+     * @return the prefix in front of the bin number
+     */
+    public String getPrefix() {
+        return m_prefix;
+    }
+
+    /**
+     * @return the number of bins
+     */
+    public int getRange() {
+        return m_range;
+    }
+
+    /**
+     * @return whether the decoder uses a lookup table of known labels
+     */
+    public boolean hasLookupTable() {
+        return m_labels != null;
+    }
+
+    private int slot(final String label) {
+        // String caches its hash code, spread it as the table is small
+        int h = label.hashCode();
+        return (h ^ (h >>> 16)) & m_mask;
+    }
+
+    private int parse(final String label) {
+        int start = m_prefix.length();
+        int end = label.length();
+        if (end <= start || !label.startsWith(m_prefix)) {
+            return INVALID;
+        }
+        long bin = 0;
+        for (int i = start; i < end; i++) {
+            char c = label.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            bin = bin * 10 + (c - '0');
+            if (bin >= m_range) {
+                return INVALID;
+            }
+        }
+        return (int)bin;
+    }
+}
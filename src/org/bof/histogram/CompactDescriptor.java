@@ -0,0 +1,368 @@
+package org.bof.histogram;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A descriptor quantized to one byte or one half precision float per value
+ * with a scale factor of its own, an eighth or a quarter of the size of the
+ * doubles.
+ * <p>
+ * {@link Encoding#UINT8} maps the largest absolute value of the descriptor
+ * to 255 and rounds all values to the nearest step, the error is at most
+ * half a step. Descriptors with negative values are stored as signed bytes
+ * with 127 steps instead. {@link Encoding#FLOAT16} divides the values by
+ * the largest absolute one and keeps 11 significant bits of each.
+ * <p>
+ * Dot products and distances are computed on the quantized values,
+ * between two byte descriptors as sums of integer products which are
+ * scaled once. The squared norm of every descriptor is computed on
+ * creation.
+ *
+ * @author David Kolb
+ */
+public final class CompactDescriptor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How the values are stored.
+     */
+    public enum Encoding {
+
+        /** One byte per value, 8 times smaller than doubles. */
+        UINT8(1),
+
+        /** One half precision float per value, 4 times smaller. */
+        FLOAT16(2);
+
+        private final int m_bytesPerValue;
+
+        private Encoding(final int bytesPerValue) {
+            m_bytesPerValue = bytesPerValue;
+        }
+
+        /**
+         * @return the bytes of one value
+         */
+        public int getBytesPerValue() {
+            return m_bytesPerValue;
+        }
+    }
+
+    private static final int FLAG_FLOAT16 = 1;
+
+    private static final int FLAG_SIGNED = 2;
+
+    private final Encoding m_encoding;
+
+    private final float m_scale;
+
+    // whether the bytes are signed, only for UINT8
+    private final boolean m_signed;
+
+    // the values of UINT8 or the bits of the FLOAT16 values, the other one
+    // is null
+    private final byte[] m_bytes;
+
+    private final short[] m_halves;
+
+    private final double m_norm;
+
+    private CompactDescriptor(final Encoding encoding, final float scale,
+            final boolean signed, final byte[] bytes, final short[] halves) {
+        m_encoding = encoding;
+        m_scale = scale;
+        m_signed = signed;
+        m_bytes = bytes;
+        m_halves = halves;
+        double norm = 0;
+        for (int i = 0; i < getLength(); i++) {
+            double value = getValue(i);
+            norm += value * value;
+        }
+        m_norm = norm;
+    }
+
+    /**
+     * @param values the descriptor
+     * @param encoding how the values are stored
+     * @return the quantized descriptor
+     */
+    public static CompactDescriptor create(final double[] values,
+            final Encoding encoding) {
+        double max = 0;
+        boolean signed = false;
+        for (double value : values) {
+            max = Math.max(max, Math.abs(value));
+            signed |= value < 0;
+        }
+
+        if (encoding == Encoding.FLOAT16) {
+            float scale = (float)max;
+            short[] halves = new short[values.length];
+            for (int i = 0; i < values.length; i++) {
+                halves[i] = scale == 0 ? 0
+                        : toHalf((float)(values[i] / scale));
+            }
+            return new CompactDescriptor(encoding, scale, false, null, halves);
+        }
+
+        int steps = signed ? Byte.MAX_VALUE : 255;
+        float scale = (float)(max / steps);
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            long step = scale == 0 ? 0 : Math.round(values[i] / scale);
+            bytes[i] = (byte)Math.max(-steps, Math.min(steps, step));
+        }
+        return new CompactDescriptor(encoding, scale, signed, bytes, null);
+    }
+
+    /**
+     * @return how the values are stored
+     */
+    public Encoding getEncoding() {
+        return m_encoding;
+    }
+
+    /**
+     * @return the number of values
+     */
+    public int getLength() {
+        return m_bytes != null ? m_bytes.length : m_halves.length;
+    }
+
+    /**
+     * @return the factor the quantized values are multiplied with
+     */
+    public float getScale() {
+        return m_scale;
+    }
+
+    /**
+     * @param i the index of a value
+     * @return the value, up to the quantization error
+     */
+    public double getValue(final int i) {
+        if (m_bytes != null) {
+            return m_scale * getStep(i);
+        }
+        return m_scale * fromHalf(m_halves[i]);
+    }
+
+    /**
+     * @param target receives the values
+     * @param offset the index of the first value in the target
+     */
+    public void getValues(final double[] target, final int offset) {
+        for (int i = 0; i < getLength(); i++) {
+            target[offset + i] = getValue(i);
+        }
+    }
+
+    /**
+     * @return the squared euclidean norm of the values
+     */
+    public double getSquaredNorm() {
+        return m_norm;
+    }
+
+    /**
+     * @param other a descriptor of the same length
+     * @return the dot product of both
+     */
+    public double dot(final CompactDescriptor other) {
+        checkLength(other.getLength());
+        if (m_bytes != null && other.m_bytes != null) {
+            // exact in integers, then scaled once
+            long sum = 0;
+            for (int i = 0; i < m_bytes.length; i++) {
+                sum += getStep(i) * other.getStep(i);
+            }
+            return (double)m_scale * other.m_scale * sum;
+        }
+        double sum = 0;
+        for (int i = 0; i < getLength(); i++) {
+            sum += getValue(i) * other.getValue(i);
+        }
+        return sum;
+    }
+
+    /**
+     * @param values e.g. a word of a codebook
+     * @param offset the index of the first value
+     * @return the dot product with the values
+     */
+    public double dot(final double[] values, final int offset) {
+        double sum = 0;
+        if (m_bytes != null) {
+            for (int i = 0; i < m_bytes.length; i++) {
+                sum += getStep(i) * values[offset + i];
+            }
+        } else {
+            for (int i = 0; i < m_halves.length; i++) {
+                sum += fromHalf(m_halves[i]) * values[offset + i];
+            }
+        }
+        return m_scale * sum;
+    }
+
+    /**
+     * @param other a descriptor of the same length
+     * @return the squared euclidean distance of both
+     */
+    public double squaredDistance(final CompactDescriptor other) {
+        return Math.max(0, m_norm + other.m_norm - 2 * dot(other));
+    }
+
+    /**
+     * @return the bytes of the descriptor as written by {@link #write}
+     */
+    public int getSize() {
+        return 9 + getLength() * m_encoding.getBytesPerValue();
+    }
+
+    /**
+     * Writes the encoding, the length, the scale and the quantized values.
+     *
+     * @param out the output
+     * @throws IOException if thrown by the output
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeByte((m_halves != null ? FLAG_FLOAT16 : 0)
+                | (m_signed ? FLAG_SIGNED : 0));
+        out.writeInt(getLength());
+        out.writeFloat(m_scale);
+        if (m_bytes != null) {
+            out.write(m_bytes);
+        } else {
+            for (short half : m_halves) {
+                out.writeShort(half);
+            }
+        }
+    }
+
+    /**
+     * @param in the input
+     * @return a descriptor written by {@link #write}
+     * @throws IOException if thrown by the input
+     */
+    public static CompactDescriptor read(final DataInput in)
+            throws IOException {
+        int flags = in.readByte();
+        int length = in.readInt();
+        float scale = in.readFloat();
+        if ((flags & FLAG_FLOAT16) != 0) {
+            short[] halves = new short[length];
+            for (int i = 0; i < length; i++) {
+                halves[i] = in.readShort();
+            }
+            return new CompactDescriptor(Encoding.FLOAT16, scale, false, null,
+                    halves);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new CompactDescriptor(Encoding.UINT8, scale,
+                (flags & FLAG_SIGNED) != 0, bytes, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (!(obj instanceof CompactDescriptor)) {
+            return false;
+        }
+        CompactDescriptor other = (CompactDescriptor)obj;
+        if (getLength() != other.getLength()) {
+            return false;
+        }
+        for (int i = 0; i < getLength(); i++) {
+            if (getValue(i) != other.getValue(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int hash = getLength();
+        for (int i = 0; i < getLength(); i++) {
+            long bits = Double.doubleToLongBits(getValue(i));
+            hash = 31 * hash + (int)(bits ^ (bits >>> 32));
+        }
+        return hash;
+    }
+
+    // the quantized value of a byte descriptor
+    private int getStep(final int i) {
+        return m_signed ? m_bytes[i] : m_bytes[i] & 0xff;
+    }
+
+    private void checkLength(final int length) {
+        if (length != getLength()) {
+            throw new IllegalArgumentException("Descriptors of "
+                    + getLength() + " and " + length + " values");
+        }
+    }
+
+    /**
+     * @param value a float
+     * @return the bits of the nearest half precision float, ties to even
+     */
+    static short toHalf(final float value) {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs >= 0x47800000) {
+            // at least 2^16, infinite or NaN
+            return (short)(sign | (abs > 0x7f800000 ? 0x7e00 : 0x7c00));
+        }
+        if (abs < 0x38800000) {
+            // below 2^-14, subnormal or zero
+            if (abs < 0x33000000) {
+                return (short)sign;
+            }
+            int exponent = abs >>> 23;
+            int mantissa = (abs & 0x7fffff) | 0x800000;
+            int shift = 126 - exponent;
+            int half = mantissa >>> shift;
+            int remainder = mantissa & ((1 << shift) - 1);
+            int tie = 1 << (shift - 1);
+            if (remainder > tie || (remainder == tie && (half & 1) != 0)) {
+                half++;
+            }
+            return (short)(sign | half);
+        }
+        // rebias the exponent, a carry of the rounding moves into it
+        int rounded = abs + 0xfff + ((abs >>> 13) & 1);
+        return (short)(sign | ((rounded - 0x38000000) >>> 13));
+    }
+
+    /**
+     * @param half the bits of a half precision float
+     * @return its value
+     */
+    static float fromHalf(final short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+        if (exponent == 0) {
+            float value = mantissa * 0x1p-24f;
+            return sign != 0 ? -value : value;
+        }
+        if (exponent == 31) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        return Float.intBitsToFloat(sign | ((exponent + 112) << 23)
+                | (mantissa << 13));
+    }
+}
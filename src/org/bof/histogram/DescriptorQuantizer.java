@@ -0,0 +1,260 @@
+package org.bof.histogram;
+
+import java.util.Arrays;
+
+/**
+ * Assigns descriptors to the nearest words of a codebook and accumulates
+ * one histogram per image, without materializing the assignments.
+ * <p>
+ * Descriptors are buffered in blocks. The squared distances of a block are
+ * computed as <code>|x|^2 - 2 x.c + |c|^2</code> against tiles of words
+ * small enough to stay in cache while every descriptor of the block passes
+ * by. With more than one neighbour a descriptor is soft assigned to its k
+ * nearest words with weights <code>exp(-d^2 / (2 sigma^2))</code>,
+ * normalized to sum up to one.
+ * <p>
+ * A {@link CompactDescriptor} is not decoded into the block, its dot
+ * products with the words are computed on its quantized values and its
+ * norm is the one computed on its creation.
+ * <p>
+ * The descriptors of an image have to be consecutive.
+ *
+ * @author David Kolb
+ */
+public class DescriptorQuantizer {
+
+    /** Number of descriptors per block. */
+    private static final int BLOCK_SIZE = 256;
+
+    /** Number of words per tile, 64 words of 196 doubles are ~100KB. */
+    private static final int WORD_TILE = 64;
+
+    private final int m_numWords;
+
+    private final int m_dim;
+
+    // row-major words and their squared norms
+    private final double[] m_words;
+
+    private final double[] m_wordNorms;
+
+    private final int m_neighbours;
+
+    private final double m_sigma;
+
+    private final HistogramSink m_sink;
+
+    // the buffered block of descriptors with their image keys
+    private final double[] m_block;
+
+    private final double[] m_blockNorms;
+
+    private final String[] m_blockKeys;
+
+    // the compact descriptors of the block, null where the descriptor is
+    // in m_block
+    private final CompactDescriptor[] m_compactBlock;
+
+    private int m_blockSize;
+
+    // the k nearest words of each descriptor of the block, ascending
+    private final int[] m_nearest;
+
+    private final double[] m_distances;
+
+    private final double[] m_softWeights;
+
+    private final double[] m_histogram;
+
+    private String m_key;
+
+    /**
+     * @param codebook the words, all of the same dimension
+     * @param neighbours the number of nearest words a descriptor is assigned
+     *            to, 1 for hard assignment
+     * @param sigma the width of the soft assignment kernel
+     * @param sink receives the histograms, counts are fractional if
+     *            <code>neighbours > 1</code>
+     */
+    public DescriptorQuantizer(final double[][] codebook, final int neighbours,
+            final double sigma, final HistogramSink sink) {
+        if (codebook.length == 0) {
+            throw new IllegalArgumentException("The codebook is empty");
+        }
+        m_numWords = codebook.length;
+        m_dim = codebook[0].length;
+        m_words = new double[m_numWords * m_dim];
+        m_wordNorms = new double[m_numWords];
+        for (int w = 0; w < m_numWords; w++) {
+            if (codebook[w].length != m_dim) {
+                throw new IllegalArgumentException(
+                        "All words must have the same dimension");
+            }
+            System.arraycopy(codebook[w], 0, m_words, w * m_dim, m_dim);
+            m_wordNorms[w] = dot(codebook[w], 0, codebook[w], 0, m_dim);
+        }
+        m_neighbours = Math.min(neighbours, m_numWords);
+        m_sigma = sigma;
+        m_sink = sink;
+
+        m_block = new double[BLOCK_SIZE * m_dim];
+        m_blockNorms = new double[BLOCK_SIZE];
+        m_blockKeys = new String[BLOCK_SIZE];
+        m_compactBlock = new CompactDescriptor[BLOCK_SIZE];
+        m_nearest = new int[BLOCK_SIZE * m_neighbours];
+        m_distances = new double[BLOCK_SIZE * m_neighbours];
+        m_softWeights = new double[m_neighbours];
+        m_histogram = new double[m_numWords];
+    }
+
+    /**
+     * @return the number of words, i.e. bins of the histograms
+     */
+    public int getNumWords() {
+        return m_numWords;
+    }
+
+    /**
+     * @return the dimension of the descriptors
+     */
+    public int getDimension() {
+        return m_dim;
+    }
+
+    /**
+     * Adds the next descriptor.
+     *
+     * @param key the key of its image
+     * @param descriptor the descriptor, copied
+     * @throws Exception if thrown by the sink
+     */
+    public void add(final String key, final double[] descriptor)
+            throws Exception {
+        System.arraycopy(descriptor, 0, m_block, m_blockSize * m_dim, m_dim);
+        m_blockKeys[m_blockSize] = key;
+        if (++m_blockSize == BLOCK_SIZE) {
+            processBlock();
+        }
+    }
+
+    /**
+     * Adds the next descriptor in its quantized form, its distances are
+     * computed without decoding it.
+     *
+     * @param key the key of its image
+     * @param descriptor the descriptor
+     * @throws Exception if thrown by the sink
+     */
+    public void add(final String key, final CompactDescriptor descriptor)
+            throws Exception {
+        if (descriptor.getLength() != m_dim) {
+            throw new IllegalArgumentException("The descriptor has "
+                    + descriptor.getLength() + " values, the words " + m_dim);
+        }
+        m_compactBlock[m_blockSize] = descriptor;
+        m_blockKeys[m_blockSize] = key;
+        if (++m_blockSize == BLOCK_SIZE) {
+            processBlock();
+        }
+    }
+
+    /**
+     * Processes the remaining descriptors and passes on the histogram of
+     * the last image.
+     *
+     * @throws Exception if thrown by the sink
+     */
+    public void finish() throws Exception {
+        processBlock();
+        if (m_key != null) {
+            flush();
+        }
+    }
+
+    private void processBlock() throws Exception {
+        int n = m_blockSize;
+        int k = m_neighbours;
+        for (int i = 0; i < n; i++) {
+            m_blockNorms[i] = m_compactBlock[i] != null ? m_compactBlock[i]
+                    .getSquaredNorm() : dot(m_block, i * m_dim, m_block,
+                    i * m_dim, m_dim);
+        }
+        Arrays.fill(m_distances, 0, n * k, Double.POSITIVE_INFINITY);
+
+        for (int w0 = 0; w0 < m_numWords; w0 += WORD_TILE) {
+            int w1 = Math.min(m_numWords, w0 + WORD_TILE);
+            for (int i = 0; i < n; i++) {
+                int offset = i * k;
+                CompactDescriptor compact = m_compactBlock[i];
+                for (int w = w0; w < w1; w++) {
+                    double product = compact != null ? compact.dot(m_words,
+                            w * m_dim) : dot(m_block, i * m_dim, m_words,
+                            w * m_dim, m_dim);
+                    double dist = m_blockNorms[i] + m_wordNorms[w] - 2
+                            * product;
+                    if (dist < m_distances[offset + k - 1]) {
+                        insert(offset, k, w, Math.max(dist, 0));
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            String key = m_blockKeys[i];
+            if (m_key != null && !m_key.equals(key)) {
+                flush();
+            }
+            m_key = key;
+            accumulate(i * k);
+            m_blockKeys[i] = null;
+            m_compactBlock[i] = null;
+        }
+        m_blockSize = 0;
+    }
+
+    // insertion into the ascending k nearest list starting at offset
+    private void insert(final int offset, final int k, final int word,
+            final double dist) {
+        int j = offset + k - 1;
+        while (j > offset && m_distances[j - 1] > dist) {
+            m_distances[j] = m_distances[j - 1];
+            m_nearest[j] = m_nearest[j - 1];
+            j--;
+        }
+        m_distances[j] = dist;
+        m_nearest[j] = word;
+    }
+
+    private void accumulate(final int offset) {
+        if (m_neighbours == 1) {
+            m_histogram[m_nearest[offset]]++;
+            return;
+        }
+        // relative to the nearest word to avoid underflow
+        double min = m_distances[offset];
+        double sum = 0;
+        for (int j = 0; j < m_neighbours; j++) {
+            m_softWeights[j] = Math.exp(-(m_distances[offset + j] - min)
+                    / (2 * m_sigma * m_sigma));
+            sum += m_softWeights[j];
+        }
+        for (int j = 0; j < m_neighbours; j++) {
+            m_histogram[m_nearest[offset + j]] += m_softWeights[j] / sum;
+        }
+    }
+
+    private void flush() throws Exception {
+        m_sink.histogram(m_key, m_histogram);
+        Arrays.fill(m_histogram, 0);
+        m_key = null;
+    }
+
+    private static double dot(final double[] a, final int offsetA,
+            final double[] b, final int offsetB, final int length) {
+        double sum = 0;
+        for (int j = 0; j < length; j++) {
+            sum += a[offsetA + j] * b[offsetB + j];
+        }
+        return sum;
+    }
+}
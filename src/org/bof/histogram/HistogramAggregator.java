@@ -0,0 +1,356 @@
+package org.bof.histogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Aggregates histograms per image key on unsorted input.
+ * <p>
+ * The histograms of at most <code>maxInMemory</code> images are held in
+ * memory. If a new image would exceed that budget, all partial histograms
+ * are written to a run file on disk, sorted by the order in which their
+ * images were first seen. {@link #finish(HistogramSink)} merges the runs and
+ * hands out the complete histograms in that same order, so the output does
+ * not depend on the memory budget.
+ *
+ * @author David Kolb
+ */
+public class HistogramAggregator implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // maximum number of runs merged at once
+    private static final int MAX_FAN_IN = 64;
+
+    private final int m_length;
+
+    private final int m_maxInMemory;
+
+    private final File m_tmpDir;
+
+    // all keys seen so far, index is the ordinal of the key
+    private final List<String> m_keys = new ArrayList<String>();
+
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+
+    // entries with a histogram in memory
+    private final List<Entry> m_resident = new ArrayList<Entry>();
+
+    // histograms released by a spill, reused for new entries
+    private final ArrayDeque<int[]> m_pool = new ArrayDeque<int[]>();
+
+    private final List<File> m_runs = new ArrayList<File>();
+
+    private Entry m_last;
+
+    private int m_numSpills;
+
+    // number of histogram arrays allocated, they are never released
+    private int m_numAllocated;
+
+    /**
+     * @param length the number of bins of each histogram
+     * @param maxInMemory the maximum number of histograms held in memory
+     * @param tmpDir directory for the spill files
+     */
+    public HistogramAggregator(final int length, final int maxInMemory,
+            final File tmpDir) {
+        if (maxInMemory < 1) {
+            throw new IllegalArgumentException(
+                    "At least one histogram must fit into memory");
+        }
+        m_length = length;
+        m_maxInMemory = maxInMemory;
+        m_tmpDir = tmpDir;
+    }
+
+    /**
+     * Returns the histogram of the given image that new counts can be added
+     * to. Partial histograms are spilled to disk first if necessary.
+     *
+     * @param key the key of the image
+     * @return the histogram accumulator of the image
+     * @throws IOException if spilling failed
+     */
+    public int[] histogram(final String key) throws IOException {
+        Entry entry = m_last;
+        if (entry == null || !entry.m_key.equals(key)) {
+            entry = m_entries.get(key);
+            if (entry == null) {
+                entry = new Entry(key, m_keys.size());
+                m_keys.add(key);
+                m_entries.put(key, entry);
+            }
+            m_last = entry;
+        }
+        if (entry.m_counts == null) {
+            if (m_resident.size() >= m_maxInMemory) {
+                spill();
+            }
+            int[] counts = m_pool.poll();
+            if (counts == null) {
+                counts = new int[m_length];
+                m_numAllocated++;
+            }
+            entry.m_counts = counts;
+            m_resident.add(entry);
+        }
+        return entry.m_counts;
+    }
+
+    /**
+     * @return the number of distinct images seen so far
+     */
+    public int getNumImages() {
+        return m_keys.size();
+    }
+
+    /**
+     * @return how often the partial histograms were spilled to disk
+     */
+    public int getNumSpills() {
+        return m_numSpills;
+    }
+
+    /**
+     * @return the number of bytes of all histogram arrays allocated so far,
+     *         without the keys
+     */
+    public long getAllocatedBytes() {
+        return 4L * m_length * m_numAllocated;
+    }
+
+    /**
+     * Hands out the complete histogram of each image in the order the
+     * images were first seen.
+     *
+     * @param sink receives the histograms
+     * @throws Exception if reading a run file failed or thrown by the sink
+     */
+    public void finish(final HistogramSink sink) throws Exception {
+        if (m_runs.isEmpty()) {
+            sortResident();
+            for (Entry entry : m_resident) {
+                sink.histogram(entry.m_key, entry.m_counts);
+            }
+        } else {
+            spill();
+            merge(sink);
+        }
+    }
+
+    /**
+     * Deletes all run files.
+     */
+    @Override
+    public void close() {
+        for (File run : m_runs) {
+            run.delete();
+        }
+        m_runs.clear();
+    }
+
+    private void sortResident() {
+        Collections.sort(m_resident, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry o1, final Entry o2) {
+                return Integer.compare(o1.m_ordinal, o2.m_ordinal);
+            }
+        });
+    }
+
+    // write all resident histograms sparse and ordered by ordinal to a new run
+    private void spill() throws IOException {
+        if (m_resident.isEmpty()) {
+            return;
+        }
+        sortResident();
+        m_numSpills++;
+        RunWriter writer = new RunWriter(newRun());
+        try {
+            for (Entry entry : m_resident) {
+                writer.histogram(entry.m_ordinal, entry.m_counts);
+                Arrays.fill(entry.m_counts, 0);
+                m_pool.add(entry.m_counts);
+                entry.m_counts = null;
+            }
+        } finally {
+            writer.close();
+        }
+        m_resident.clear();
+    }
+
+    private File newRun() throws IOException {
+        File run = File.createTempFile("histograms_", ".run", m_tmpDir);
+        m_runs.add(run);
+        return run;
+    }
+
+    // merges the runs, at most MAX_FAN_IN of them are opened at once
+    private void merge(final HistogramSink sink) throws Exception {
+        while (m_runs.size() > MAX_FAN_IN) {
+            List<File> runs = new ArrayList<File>(m_runs.subList(0, MAX_FAN_IN));
+            m_runs.subList(0, MAX_FAN_IN).clear();
+            RunWriter writer = new RunWriter(newRun());
+            try {
+                merge(runs, writer);
+            } finally {
+                writer.close();
+                for (File run : runs) {
+                    run.delete();
+                }
+            }
+        }
+        merge(m_runs, new MergeTarget() {
+            @Override
+            public void histogram(final int ordinal, final int[] counts)
+                    throws Exception {
+                sink.histogram(m_keys.get(ordinal), counts);
+            }
+        });
+    }
+
+    // k-way merge of the given runs by ordinal
+    private void merge(final List<File> runs, final MergeTarget target)
+            throws Exception {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(
+                runs.size(), new Comparator<RunReader>() {
+                    @Override
+                    public int compare(final RunReader o1, final RunReader o2) {
+                        return Integer.compare(o1.m_ordinal, o2.m_ordinal);
+                    }
+                });
+        List<RunReader> readers = new ArrayList<RunReader>();
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            int[] counts = new int[m_length];
+            while (!queue.isEmpty()) {
+                int ordinal = queue.peek().m_ordinal;
+                while (!queue.isEmpty() && queue.peek().m_ordinal == ordinal) {
+                    RunReader reader = queue.poll();
+                    reader.addTo(counts);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                target.histogram(ordinal, counts);
+                Arrays.fill(counts, 0);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private interface MergeTarget {
+
+        void histogram(int ordinal, int[] counts) throws Exception;
+    }
+
+    private static final class Entry {
+
+        private final String m_key;
+
+        private final int m_ordinal;
+
+        private int[] m_counts;
+
+        Entry(final String key, final int ordinal) {
+            m_key = key;
+            m_ordinal = ordinal;
+        }
+    }
+
+    private static final class RunWriter implements MergeTarget, Closeable {
+
+        private final DataOutputStream m_out;
+
+        RunWriter(final File run) throws IOException {
+            m_out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(run), BUFFER_SIZE));
+        }
+
+        // ordinal, number of non-zero bins and the (bin, count) pairs
+        @Override
+        public void histogram(final int ordinal, final int[] counts)
+                throws IOException {
+            int nonZero = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    nonZero++;
+                }
+            }
+            m_out.writeInt(ordinal);
+            m_out.writeInt(nonZero);
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    m_out.writeInt(i);
+                    m_out.writeInt(counts[i]);
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_out.close();
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+
+        private final DataInputStream m_in;
+
+        private int m_ordinal;
+
+        RunReader(final File run) throws IOException {
+            m_in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(run), BUFFER_SIZE));
+        }
+
+        // reads the ordinal of the next histogram, false at the end of the run
+        boolean next() throws IOException {
+            try {
+                m_ordinal = m_in.readInt();
+                return true;
+            } catch (EOFException e) {
+                return false;
+            }
+        }
+
+        void addTo(final int[] counts) throws IOException {
+            int nonZero = m_in.readInt();
+            for (int i = 0; i < nonZero; i++) {
+                int bin = m_in.readInt();
+                counts[bin] += m_in.readInt();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            m_in.close();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package org.bof.histogram;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the histograms of the last execution, keyed by image and a hash
+ * of the rows which contributed to them, so that a re-execution only has to
+ * count the images whose rows changed.
+ * <p>
+ * The histograms are kept sparse. Every execution fills a new generation
+ * from the hits of the previous one and the recounted images; images which
+ * disappeared from the input are dropped by {@link #commit()}. The cache is
+ * only valid for the settings it was built with, which are identified by a
+ * fingerprint.
+ *
+ * @author David Kolb
+ */
+public class HistogramCache {
+
+    // identifies the file format
+    private static final int MAGIC = 0x426f4643;
+
+    private static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final long m_fingerprint;
+
+    // the histograms of the last successful execution
+    private Map<String, Entry> m_previous = new HashMap<String, Entry>();
+
+    // the histograms of the running execution
+    private Map<String, Entry> m_current = new HashMap<String, Entry>();
+
+    private int m_hits;
+
+    private int m_misses;
+
+    /**
+     * @param fingerprint identifies the settings the histograms depend on
+     */
+    public HistogramCache(final long fingerprint) {
+        m_fingerprint = fingerprint;
+    }
+
+    /**
+     * @return the fingerprint of the settings
+     */
+    public long getFingerprint() {
+        return m_fingerprint;
+    }
+
+    /**
+     * @return the number of cached images
+     */
+    public int size() {
+        return m_previous.size();
+    }
+
+    /**
+     * @return the number of images found unchanged since the last commit
+     */
+    public int getNumHits() {
+        return m_hits;
+    }
+
+    /**
+     * @return the number of images which had to be recounted since the last
+     *         commit
+     */
+    public int getNumMisses() {
+        return m_misses;
+    }
+
+    /**
+     * Looks up the histogram of an image and keeps it for the next
+     * generation if its rows did not change.
+     *
+     * @param key the key of the image
+     * @param hash the hash of its rows
+     * @param counts receives the histogram on a hit, all zero
+     * @return whether the histogram was found
+     */
+    public boolean lookup(final String key, final long hash,
+            final int[] counts) {
+        Entry entry = m_previous.get(key);
+        if (entry == null || entry.m_hash != hash) {
+            m_misses++;
+            return false;
+        }
+        for (int i = 0; i < entry.m_bins.length; i++) {
+            counts[entry.m_bins[i]] = entry.m_counts[i];
+        }
+        m_current.put(key, entry);
+        m_hits++;
+        return true;
+    }
+
+    /**
+     * Stores the recounted histogram of an image for the next generation.
+     *
+     * @param key the key of the image
+     * @param hash the hash of its rows
+     * @param counts the histogram, copied
+     */
+    public void put(final String key, final long hash, final int[] counts) {
+        int nonZero = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                nonZero++;
+            }
+        }
+        int[] bins = new int[nonZero];
+        int[] values = new int[nonZero];
+        int j = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] != 0) {
+                bins[j] = i;
+                values[j++] = counts[i];
+            }
+        }
+        m_current.put(key, new Entry(hash, bins, values));
+    }
+
+    /**
+     * Makes the histograms of the running execution the cached ones, to be
+     * called once the execution succeeded.
+     */
+    public void commit() {
+        m_previous = m_current;
+        m_current = new HashMap<String, Entry>();
+        m_hits = 0;
+        m_misses = 0;
+    }
+
+    /**
+     * Discards the histograms of a failed or canceled execution.
+     */
+    public void rollback() {
+        m_current = new HashMap<String, Entry>();
+        m_hits = 0;
+        m_misses = 0;
+    }
+
+    /**
+     * Writes the cached histograms.
+     *
+     * @param file the file to write
+     * @throws IOException if the file could not be written
+     */
+    public void write(final File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), BUFFER_SIZE));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(m_fingerprint);
+            out.writeInt(m_previous.size());
+            // key, hash, number of non-zero bins and the (bin, count) pairs
+            for (Map.Entry<String, Entry> e : m_previous.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.m_hash);
+                out.writeInt(entry.m_bins.length);
+                for (int i = 0; i < entry.m_bins.length; i++) {
+                    out.writeInt(entry.m_bins[i]);
+                    out.writeInt(entry.m_counts[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads cached histograms written by {@link #write(File)}.
+     *
+     * @param file the file to read
+     * @return the cache
+     * @throws IOException if the file could not be read or has an unknown
+     *             format
+     */
+    public static HistogramCache read(final File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown histogram cache format: "
+                        + file);
+            }
+            HistogramCache cache = new HistogramCache(in.readLong());
+            int size = in.readInt();
+            cache.m_previous = new HashMap<String, Entry>(
+                    Math.max(16, (int)(size / 0.75f) + 1));
+            for (int e = 0; e < size; e++) {
+                String key = in.readUTF();
+                long hash = in.readLong();
+                int nonZero = in.readInt();
+                int[] bins = new int[nonZero];
+                int[] counts = new int[nonZero];
+                for (int i = 0; i < nonZero; i++) {
+                    bins[i] = in.readInt();
+                    counts[i] = in.readInt();
+                }
+                cache.m_previous.put(key, new Entry(hash, bins, counts));
+            }
+            return cache;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Mixes a value into a running 64 bit hash.
+     *
+     * @param hash the hash so far
+     * @param value the value to add
+     * @return the new hash
+     */
+    public static long mix(final long hash, final long value) {
+        // finalizer of splitmix64, spreads every input bit over the hash
+        long h = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Mixes all characters of a string into a running 64 bit hash, unlike
+     * {@link String#hashCode()} without 32 bit collisions.
+     *
+     * @param hash the hash so far
+     * @param value the string to add, <code>null</code> is distinct from
+     *            the empty string
+     * @return the new hash
+     */
+    public static long mix(final long hash, final String value) {
+        if (value == null) {
+            return mix(hash, -1L);
+        }
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(mix(hash, h), value.length());
+    }
+
+    private static final class Entry {
+
+        private final long m_hash;
+
+        private final int[] m_bins;
+
+        private final int[] m_counts;
+
+        Entry(final long hash, final int[] bins, final int[] counts) {
+            m_hash = hash;
+            m_bins = bins;
+            m_counts = counts;
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package org.bof.histogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes the histograms as a dense row-major matrix file, which other
+ * processes can memory map and use without parsing, e.g. as a numpy
+ * <code>memmap</code>.
+ * <p>
+ * All values are little endian. The file starts with a header of
+ * {@link #HEADER_SIZE} bytes:
+ * <pre>
+ *  0  int   magic, the ASCII characters "BOFM"
+ *  4  int   version, 1
+ *  8  int   type of the values, {@link #TYPE_INT32} or {@link #TYPE_FLOAT32}
+ * 12  int   number of columns (bins)
+ * 16  long  number of rows (images)
+ * 24  long  offset of the matrix
+ * 32  long  offset of the image index
+ * 40  long  length of the image index in bytes
+ * </pre>
+ * The matrix holds one row of 4 byte values per image. The image index
+ * consists of <code>rows + 1</code> int offsets into the UTF-8 encoded keys
+ * that follow them, key <code>i</code> spans the bytes from offset
+ * <code>i</code> to offset <code>i + 1</code>. The file may have trailing
+ * bytes after the index where the platform does not allow to truncate it.
+ * <p>
+ * The matrix is written through memory mapped windows of the file. Raw
+ * counts are stored as int32, everything else as float32. TF-IDF weights
+ * are computed in place in an extra pass over the mapped matrix once the
+ * document frequencies of all images are known.
+ *
+ * @author David Kolb
+ */
+public class HistogramMatrixWriter implements HistogramSink, Closeable {
+
+    /** The values are 32 bit signed integers. */
+    public static final int TYPE_INT32 = 0;
+
+    /** The values are 32 bit IEEE floats. */
+    public static final int TYPE_FLOAT32 = 1;
+
+    /** Size of the header, the matrix starts right after it. */
+    public static final int HEADER_SIZE = 64;
+
+    // "BOFM" read as a little endian int
+    private static final int MAGIC = 'B' | 'O' << 8 | 'F' << 16 | 'M' << 24;
+
+    private static final int VERSION = 1;
+
+    // bytes mapped at once, at least one row
+    private static final int WINDOW_SIZE = 1 << 22;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File m_path;
+
+    private final RandomAccessFile m_file;
+
+    private final FileChannel m_channel;
+
+    private final HistogramWeighting m_weighting;
+
+    private final int m_type;
+
+    private final int m_length;
+
+    private final int m_windowRows;
+
+    private final double[] m_counts;
+
+    private final double[] m_weights;
+
+    // the mapped rows starting at m_windowStart
+    private MappedByteBuffer m_window;
+
+    private long m_windowStart;
+
+    private long m_rows;
+
+    // the encoded keys and where each of them starts
+    private final ByteArrayOutputStream m_keys = new ByteArrayOutputStream();
+
+    private int[] m_keyOffsets = new int[1024];
+
+    // TF-IDF only
+    private int[] m_documentFrequencies;
+
+    /**
+     * @param file the matrix file, overwritten if it exists
+     * @param length the number of bins
+     * @param weighting the weighting of the histograms
+     * @param fractional whether the counts may be fractional
+     * @throws IOException if the file could not be opened
+     */
+    public HistogramMatrixWriter(final File file, final int length,
+            final HistogramWeighting weighting, final boolean fractional)
+            throws IOException {
+        m_length = length;
+        m_weighting = weighting;
+        m_type = weighting == HistogramWeighting.RAW && !fractional
+                ? TYPE_INT32 : TYPE_FLOAT32;
+        m_windowRows = Math.max(1, WINDOW_SIZE / (4 * length));
+        m_counts = new double[length];
+        m_weights = new double[length];
+        if (weighting.needsDocumentFrequencies()) {
+            m_documentFrequencies = new int[length];
+        }
+        m_path = file;
+        m_file = new RandomAccessFile(file, "rw");
+        m_file.setLength(0);
+        m_channel = m_file.getChannel();
+    }
+
+    /**
+     * @return the type of the values, {@link #TYPE_INT32} or
+     *         {@link #TYPE_FLOAT32}
+     */
+    public int getType() {
+        return m_type;
+    }
+
+    /**
+     * @return the number of rows written so far
+     */
+    public long getRows() {
+        return m_rows;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final int[] counts)
+            throws IOException {
+        if (m_type == TYPE_INT32) {
+            MappedByteBuffer row = nextRow(key);
+            for (int count : counts) {
+                row.putInt(count);
+            }
+            return;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            m_counts[i] = counts[i];
+        }
+        histogram(key, m_counts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final double[] counts)
+            throws IOException {
+        MappedByteBuffer row = nextRow(key);
+        if (m_type == TYPE_INT32) {
+            for (double count : counts) {
+                row.putInt((int)count);
+            }
+        } else if (m_documentFrequencies != null) {
+            // weighted in close, once all document frequencies are known
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] != 0) {
+                    m_documentFrequencies[i]++;
+                }
+                row.putFloat((float)counts[i]);
+            }
+        } else {
+            m_weighting.apply(counts, m_weights);
+            for (double weight : m_weights) {
+                row.putFloat((float)weight);
+            }
+        }
+    }
+
+    // records the key and positions the window at the start of the next row
+    private MappedByteBuffer nextRow(final String key) throws IOException {
+        if (m_rows + 1 >= m_keyOffsets.length) {
+            m_keyOffsets = Arrays.copyOf(m_keyOffsets, 2 * m_keyOffsets.length);
+        }
+        byte[] bytes = key.getBytes(UTF8);
+        if (m_keys.size() + (long)bytes.length > Integer.MAX_VALUE) {
+            throw new IOException("The image keys exceed 2 GB");
+        }
+        m_keys.write(bytes, 0, bytes.length);
+        m_keyOffsets[(int)m_rows + 1] = m_keys.size();
+
+        if (m_window == null || m_rows == m_windowStart + m_windowRows) {
+            m_windowStart = m_rows;
+            m_window = map(m_windowStart, m_windowRows);
+        }
+        m_rows++;
+        return m_window;
+    }
+
+    // maps rows of the matrix, growing the file if necessary
+    private MappedByteBuffer map(final long firstRow, final int rows)
+            throws IOException {
+        long rowSize = 4L * m_length;
+        MappedByteBuffer buffer = m_channel.map(FileChannel.MapMode.READ_WRITE,
+                HEADER_SIZE + firstRow * rowSize, rows * rowSize);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * Applies pending TF-IDF weights and writes the image index and the
+     * header. The file is complete only after this call.
+     *
+     * @throws IOException if writing failed
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (m_documentFrequencies != null) {
+                applyDocumentFrequencies();
+            }
+            m_window = null;
+
+            long rowSize = 4L * m_length;
+            // the index starts 8 byte aligned behind the matrix
+            long indexOffset = (HEADER_SIZE + m_rows * rowSize + 7) & ~7L;
+            long indexLength = 4 * (m_rows + 1) + m_keys.size();
+            MappedByteBuffer index = m_channel.map(
+                    FileChannel.MapMode.READ_WRITE, indexOffset, indexLength);
+            index.order(ByteOrder.LITTLE_ENDIAN);
+            for (int i = 0; i <= m_rows; i++) {
+                index.putInt(m_keyOffsets[i]);
+            }
+            index.put(m_keys.toByteArray());
+
+            MappedByteBuffer header = m_channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(m_type);
+            header.putInt(m_length);
+            header.putLong(m_rows);
+            header.putLong(HEADER_SIZE);
+            header.putLong(indexOffset);
+            header.putLong(indexLength);
+            header.force();
+
+            try {
+                m_channel.truncate(indexOffset + indexLength);
+            } catch (IOException e) {
+                // some platforms refuse to truncate a mapped file, readers
+                // rely on the header anyway
+            }
+        } finally {
+            m_file.close();
+        }
+    }
+
+    /**
+     * Closes and deletes an incomplete file, e.g. after the execution
+     * failed.
+     */
+    public void discard() {
+        m_window = null;
+        try {
+            m_file.close();
+        } catch (IOException e) {
+            // deleted anyway
+        }
+        m_path.delete();
+    }
+
+    // second pass over the mapped matrix, weights each row in place
+    private void applyDocumentFrequencies() throws IOException {
+        double[] idf = HistogramWeighting.inverseDocumentFrequencies(
+                m_documentFrequencies, m_rows);
+        for (long start = 0; start < m_rows; start += m_windowRows) {
+            int rows = (int)Math.min(m_windowRows, m_rows - start);
+            MappedByteBuffer window = map(start, rows);
+            for (int r = 0; r < rows; r++) {
+                int position = window.position();
+                for (int i = 0; i < m_length; i++) {
+                    m_counts[i] = window.getFloat();
+                }
+                m_weighting.apply(m_counts, idf, m_weights);
+                window.position(position);
+                for (double weight : m_weights) {
+                    window.putFloat((float)weight);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.bof.histogram;
+
+import java.util.Arrays;
+
+import org.bof.histogram.ParallelHistogramBuilder.PartialHistogramHandler;
+
+/**
+ * Merges consecutive partial histograms of the same image and passes the
+ * complete histograms on to a {@link HistogramSink}.
+ *
+ * @author David Kolb
+ */
+public class HistogramMerger implements PartialHistogramHandler {
+
+    private final HistogramSink m_sink;
+
+    private final int[] m_counts;
+
+    // null as long as no partial histogram has been added
+    private String m_key;
+
+    /**
+     * @param length the number of bins
+     * @param sink receives the complete histograms
+     */
+    public HistogramMerger(final int length, final HistogramSink sink) {
+        m_sink = sink;
+        m_counts = new int[length];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void partialHistogram(final String key, final int[] bins,
+            final int[] counts) throws Exception {
+        if (m_key != null && !m_key.equals(key)) {
+            flush();
+        }
+        m_key = key;
+        for (int i = 0; i < bins.length; i++) {
+            m_counts[bins[i]] += counts[i];
+        }
+    }
+
+    /**
+     * Passes on the histogram of the last image.
+     *
+     * @throws Exception if thrown by the sink
+     */
+    public void finish() throws Exception {
+        if (m_key != null) {
+            flush();
+        }
+    }
+
+    private void flush() throws Exception {
+        m_sink.histogram(m_key, m_counts);
+        Arrays.fill(m_counts, 0);
+        m_key = null;
+    }
+}
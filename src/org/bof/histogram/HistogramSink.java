@@ -0,0 +1,30 @@
+package org.bof.histogram;
+
+/**
+ * Receives the finished histogram of one image.
+ *
+ * @author David Kolb
+ */
+public interface HistogramSink {
+
+    /**
+     * Called once per image. The array may be reused by the caller after
+     * this method returns, so implementations have to copy it if they need
+     * to keep it.
+     *
+     * @param key the key of the image
+     * @param counts the histogram of the image
+     * @throws Exception if the histogram could not be processed
+     */
+    void histogram(String key, int[] counts) throws Exception;
+
+    /**
+     * Called once per image with fractional counts, e.g. from soft
+     * assignment. The array may be reused as well.
+     *
+     * @param key the key of the image
+     * @param counts the histogram of the image
+     * @throws Exception if the histogram could not be processed
+     */
+    void histogram(String key, double[] counts) throws Exception;
+}
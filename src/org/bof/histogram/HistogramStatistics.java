@@ -0,0 +1,434 @@
+package org.bof.histogram;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Records runtime metrics and vocabulary statistics of one execution while
+ * passing the histograms on to another {@link HistogramSink}.
+ * <p>
+ * The statistics are updated incrementally per histogram and kept for each
+ * vocabulary of a {@link VocabularyLayout}. They only look at the first
+ * bins of the block of a vocabulary, one per word, i.e. the global
+ * histogram of a spatial pyramid. The time spent in the wrapped sink is
+ * accounted as writing, everything else between {@link #start()} and
+ * {@link #stop()} as reading, decoding and counting.
+ *
+ * @author David Kolb
+ */
+public class HistogramStatistics implements HistogramSink {
+
+    // identifies the file format, version 1 had a single vocabulary
+    private static final int VERSION = 2;
+
+    // the label prefix of the single vocabulary of version 1
+    private static final String LEGACY_NAME = "cluster_";
+
+    private final HistogramSink m_sink;
+
+    // the label prefix of each vocabulary
+    private final String[] m_names;
+
+    // the first bin of each vocabulary
+    private final int[] m_offsets;
+
+    // number of images using each word, per vocabulary
+    private final int[][] m_documentFrequencies;
+
+    private long m_rows;
+
+    private long m_images;
+
+    // the words per image, per vocabulary
+    private final double[] m_totalWords;
+
+    private final double[] m_minWords;
+
+    private final double[] m_maxWords;
+
+    // images without any word, per vocabulary
+    private final long[] m_emptyImages;
+
+    private long m_startTime;
+
+    private long m_runTime;
+
+    private long m_writeTime;
+
+    private long m_peakMemory;
+
+    /**
+     * @param layout the vocabularies and their blocks in the histograms
+     * @param sink receives the histograms
+     */
+    public HistogramStatistics(final VocabularyLayout layout,
+            final HistogramSink sink) {
+        this(layout.getNumVocabularies(), sink);
+        for (int v = 0; v < m_names.length; v++) {
+            m_names[v] = layout.getDecoder(v).getPrefix();
+            m_offsets[v] = layout.getOffset(v);
+            m_documentFrequencies[v] =
+                new int[layout.getDecoder(v).getRange()];
+        }
+    }
+
+    // the vocabularies are filled in by the caller
+    private HistogramStatistics(final int numVocabularies,
+            final HistogramSink sink) {
+        m_sink = sink;
+        m_names = new String[numVocabularies];
+        m_offsets = new int[numVocabularies];
+        m_documentFrequencies = new int[numVocabularies][];
+        m_totalWords = new double[numVocabularies];
+        m_minWords = new double[numVocabularies];
+        Arrays.fill(m_minWords, Double.POSITIVE_INFINITY);
+        m_maxWords = new double[numVocabularies];
+        m_emptyImages = new long[numVocabularies];
+    }
+
+    /**
+     * Starts the clock.
+     */
+    public void start() {
+        m_startTime = System.nanoTime();
+    }
+
+    /**
+     * Stops the clock.
+     */
+    public void stop() {
+        m_runTime = System.nanoTime() - m_startTime;
+    }
+
+    /**
+     * @param rows the number of input rows read
+     */
+    public void setRows(final long rows) {
+        m_rows = rows;
+    }
+
+    /**
+     * @param bytes the memory held by the histogram accumulators at some
+     *            point, the maximum is kept
+     */
+    public void updatePeakMemory(final long bytes) {
+        m_peakMemory = Math.max(m_peakMemory, bytes);
+    }
+
+    /**
+     * @param nanos time spent writing outside of the wrapped sink, e.g.
+     *            when closing a buffered writer
+     */
+    public void addWriteTime(final long nanos) {
+        m_writeTime += nanos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final int[] counts)
+            throws Exception {
+        for (int v = 0; v < m_names.length; v++) {
+            int[] documentFrequencies = m_documentFrequencies[v];
+            int offset = m_offsets[v];
+            long words = 0;
+            for (int i = 0; i < documentFrequencies.length; i++) {
+                if (counts[offset + i] != 0) {
+                    documentFrequencies[i]++;
+                    words += counts[offset + i];
+                }
+            }
+            addWords(v, words);
+        }
+        m_images++;
+        long start = System.nanoTime();
+        m_sink.histogram(key, counts);
+        m_writeTime += System.nanoTime() - start;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final double[] counts)
+            throws Exception {
+        for (int v = 0; v < m_names.length; v++) {
+            int[] documentFrequencies = m_documentFrequencies[v];
+            int offset = m_offsets[v];
+            double words = 0;
+            for (int i = 0; i < documentFrequencies.length; i++) {
+                if (counts[offset + i] != 0) {
+                    documentFrequencies[i]++;
+                    words += counts[offset + i];
+                }
+            }
+            addWords(v, words);
+        }
+        m_images++;
+        long start = System.nanoTime();
+        m_sink.histogram(key, counts);
+        m_writeTime += System.nanoTime() - start;
+    }
+
+    // the words of the next image in a vocabulary
+    private void addWords(final int vocabulary, final double words) {
+        m_totalWords[vocabulary] += words;
+        m_minWords[vocabulary] = Math.min(m_minWords[vocabulary], words);
+        m_maxWords[vocabulary] = Math.max(m_maxWords[vocabulary], words);
+        if (words == 0) {
+            m_emptyImages[vocabulary]++;
+        }
+    }
+
+    /**
+     * @return the number of input rows
+     */
+    public long getRows() {
+        return m_rows;
+    }
+
+    /**
+     * @return the number of images
+     */
+    public long getImages() {
+        return m_images;
+    }
+
+    /**
+     * @return the run time in seconds
+     */
+    public double getRunTime() {
+        return m_runTime / 1e9;
+    }
+
+    /**
+     * @return the time spent writing the histograms in seconds
+     */
+    public double getWriteTime() {
+        return m_writeTime / 1e9;
+    }
+
+    /**
+     * @return the time spent reading, decoding and counting in seconds
+     */
+    public double getCountTime() {
+        return Math.max(0, m_runTime - m_writeTime) / 1e9;
+    }
+
+    /**
+     * @return input rows per second
+     */
+    public double getRowsPerSecond() {
+        return m_runTime > 0 ? m_rows / getRunTime() : 0;
+    }
+
+    /**
+     * @return images per second
+     */
+    public double getImagesPerSecond() {
+        return m_runTime > 0 ? m_images / getRunTime() : 0;
+    }
+
+    /**
+     * @return the peak memory of the histogram accumulators in bytes
+     */
+    public long getPeakMemory() {
+        return m_peakMemory;
+    }
+
+    /**
+     * @return the number of vocabularies
+     */
+    public int getNumVocabularies() {
+        return m_names.length;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the prefix of its cluster labels
+     */
+    public String getVocabularyName(final int vocabulary) {
+        return m_names[vocabulary];
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the number of its words
+     */
+    public int getNumWords(final int vocabulary) {
+        return m_documentFrequencies[vocabulary].length;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @param word a word of the vocabulary
+     * @return the number of images using the word
+     */
+    public int getDocumentFrequency(final int vocabulary, final int word) {
+        return m_documentFrequencies[vocabulary][word];
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the number of its words used by at least one image
+     */
+    public int getOccupiedWords(final int vocabulary) {
+        int occupied = 0;
+        for (int df : m_documentFrequencies[vocabulary]) {
+            if (df > 0) {
+                occupied++;
+            }
+        }
+        return occupied;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @param fraction a fraction of the images
+     * @return the number of its words used by more than the fraction of
+     *         images
+     */
+    public int getWordsAbove(final int vocabulary, final double fraction) {
+        int words = 0;
+        for (int df : m_documentFrequencies[vocabulary]) {
+            if (df > fraction * m_images) {
+                words++;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the mean number of its words per image
+     */
+    public double getMeanWords(final int vocabulary) {
+        return m_images > 0 ? m_totalWords[vocabulary] / m_images : 0;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the minimum number of its words of an image
+     */
+    public double getMinWords(final int vocabulary) {
+        return m_images > 0 ? m_minWords[vocabulary] : 0;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the maximum number of its words of an image
+     */
+    public double getMaxWords(final int vocabulary) {
+        return m_maxWords[vocabulary];
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the number of images without any of its words
+     */
+    public long getEmptyImages(final int vocabulary) {
+        return m_emptyImages[vocabulary];
+    }
+
+    /**
+     * @param out receives the statistics
+     * @throws IOException if writing failed
+     */
+    public void write(final DataOutput out) throws IOException {
+        out.writeInt(VERSION);
+        out.writeLong(m_rows);
+        out.writeLong(m_images);
+        out.writeLong(m_runTime);
+        out.writeLong(m_writeTime);
+        out.writeLong(m_peakMemory);
+        out.writeInt(m_names.length);
+        for (int v = 0; v < m_names.length; v++) {
+            out.writeUTF(m_names[v]);
+            out.writeDouble(m_totalWords[v]);
+            out.writeDouble(getMinWords(v));
+            out.writeDouble(m_maxWords[v]);
+            out.writeLong(m_emptyImages[v]);
+            out.writeInt(m_documentFrequencies[v].length);
+            for (int df : m_documentFrequencies[v]) {
+                out.writeInt(df);
+            }
+        }
+    }
+
+    /**
+     * @param in the statistics written by {@link #write(DataOutput)}, or by
+     *            the single vocabulary format before
+     * @return the statistics
+     * @throws IOException if reading failed or the format is unknown
+     */
+    public static HistogramStatistics read(final DataInput in)
+            throws IOException {
+        int version = in.readInt();
+        if (version == 1) {
+            return readSingleVocabulary(in);
+        }
+        if (version != VERSION) {
+            throw new IOException("Unknown histogram statistics format");
+        }
+        long rows = in.readLong();
+        long images = in.readLong();
+        long runTime = in.readLong();
+        long writeTime = in.readLong();
+        long peakMemory = in.readLong();
+        HistogramStatistics statistics = new HistogramStatistics(in.readInt(),
+                null);
+        for (int v = 0; v < statistics.m_names.length; v++) {
+            statistics.m_names[v] = in.readUTF();
+            statistics.m_totalWords[v] = in.readDouble();
+            statistics.m_minWords[v] = in.readDouble();
+            statistics.m_maxWords[v] = in.readDouble();
+            statistics.m_emptyImages[v] = in.readLong();
+            statistics.m_documentFrequencies[v] = readInts(in);
+        }
+        statistics.m_rows = rows;
+        statistics.m_images = images;
+        statistics.m_runTime = runTime;
+        statistics.m_writeTime = writeTime;
+        statistics.m_peakMemory = peakMemory;
+        return statistics;
+    }
+
+    // the rest of version 1, the statistics of the first vocabulary only
+    private static HistogramStatistics readSingleVocabulary(
+            final DataInput in) throws IOException {
+        long rows = in.readLong();
+        long images = in.readLong();
+        double totalWords = in.readDouble();
+        double minWords = in.readDouble();
+        double maxWords = in.readDouble();
+        long emptyImages = in.readLong();
+        long runTime = in.readLong();
+        long writeTime = in.readLong();
+        long peakMemory = in.readLong();
+        HistogramStatistics statistics = new HistogramStatistics(1, null);
+        statistics.m_names[0] = LEGACY_NAME;
+        statistics.m_documentFrequencies[0] = readInts(in);
+        statistics.m_rows = rows;
+        statistics.m_images = images;
+        statistics.m_totalWords[0] = totalWords;
+        statistics.m_minWords[0] = minWords;
+        statistics.m_maxWords[0] = maxWords;
+        statistics.m_emptyImages[0] = emptyImages;
+        statistics.m_runTime = runTime;
+        statistics.m_writeTime = writeTime;
+        statistics.m_peakMemory = peakMemory;
+        return statistics;
+    }
+
+    // an array of ints preceded by its length
+    private static int[] readInts(final DataInput in) throws IOException {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
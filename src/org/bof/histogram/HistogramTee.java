@@ -0,0 +1,43 @@
+package org.bof.histogram;
+
+/**
+ * Passes every histogram on to two sinks, e.g. to write it to a table and
+ * to a file.
+ *
+ * @author David Kolb
+ */
+public class HistogramTee implements HistogramSink {
+
+    private final HistogramSink m_first;
+
+    private final HistogramSink m_second;
+
+    /**
+     * @param first receives the histograms first
+     * @param second receives the histograms second
+     */
+    public HistogramTee(final HistogramSink first, final HistogramSink second) {
+        m_first = first;
+        m_second = second;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final int[] counts)
+            throws Exception {
+        m_first.histogram(key, counts);
+        m_second.histogram(key, counts);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void histogram(final String key, final double[] counts)
+            throws Exception {
+        m_first.histogram(key, counts);
+        m_second.histogram(key, counts);
+    }
+}
@@ -0,0 +1,134 @@
+package org.bof.histogram;
+
+/**
+ * Weightings applied to the raw bin counts of a histogram.
+ *
+ * @author David Kolb
+ */
+public enum HistogramWeighting {
+
+    /** The plain counts. */
+    RAW("Raw counts"),
+
+    /** Counts divided by the number of words of the image. */
+    L1("L1 normalized"),
+
+    /** Counts divided by their euclidean norm. */
+    L2("L2 normalized"),
+
+    /** Square root of the L1 normalized counts (Hellinger kernel). */
+    HELLINGER("Square root (Hellinger)"),
+
+    /**
+     * Term frequency times inverse document frequency:
+     * <code>(n_id / n_d) * log(N / n_i)</code> with <code>n_id</code> the
+     * count of word i in image d, <code>n_d</code> the number of words of d,
+     * <code>N</code> the number of images and <code>n_i</code> the number of
+     * images containing word i.
+     */
+    TF_IDF("TF-IDF");
+
+    private final String m_label;
+
+    private HistogramWeighting(final String label) {
+        m_label = label;
+    }
+
+    /**
+     * @return the name shown in the dialog
+     */
+    public String getLabel() {
+        return m_label;
+    }
+
+    /**
+     * @return whether the weights depend on the histograms of all images
+     */
+    public boolean needsDocumentFrequencies() {
+        return this == TF_IDF;
+    }
+
+    /**
+     * Applies a weighting which only depends on the image itself.
+     *
+     * @param counts the histogram, counts may be fractional
+     * @param weights receives the weighted histogram
+     */
+    public void apply(final double[] counts, final double[] weights) {
+        apply(counts, null, weights);
+    }
+
+    /**
+     * Applies the weighting.
+     *
+     * @param counts the histogram
+     * @param idf the inverse document frequencies, see
+     *            {@link #inverseDocumentFrequencies(int[], long)}, only used
+     *            for {@link #TF_IDF}
+     * @param weights receives the weighted histogram
+     */
+    public void apply(final double[] counts, final double[] idf,
+            final double[] weights) {
+        double norm = 0;
+        for (int i = 0; i < counts.length; i++) {
+            norm += this == L2 ? counts[i] * counts[i] : counts[i];
+        }
+        if (this == L2) {
+            norm = Math.sqrt(norm);
+        }
+        for (int i = 0; i < counts.length; i++) {
+            if (this == RAW) {
+                weights[i] = counts[i];
+            } else if (counts[i] == 0) {
+                weights[i] = 0;
+            } else if (this == HELLINGER) {
+                weights[i] = Math.sqrt(counts[i] / norm);
+            } else if (this == TF_IDF) {
+                weights[i] = counts[i] / norm * idf[i];
+            } else {
+                weights[i] = counts[i] / norm;
+            }
+        }
+    }
+
+    /**
+     * @param documentFrequencies the number of images containing each word
+     * @param numImages the number of images
+     * @return the inverse document frequency of each word
+     */
+    public static double[] inverseDocumentFrequencies(
+            final int[] documentFrequencies, final long numImages) {
+        double[] idf = new double[documentFrequencies.length];
+        for (int i = 0; i < idf.length; i++) {
+            if (documentFrequencies[i] > 0) {
+                idf[i] = Math.log(numImages / (double)documentFrequencies[i]);
+            }
+        }
+        return idf;
+    }
+
+    /**
+     * @param label the name shown in the dialog
+     * @return the weighting with the given name
+     * @throws IllegalArgumentException if there is no such weighting
+     */
+    public static HistogramWeighting fromLabel(final String label) {
+        for (HistogramWeighting weighting : values()) {
+            if (weighting.m_label.equals(label)) {
+                return weighting;
+            }
+        }
+        throw new IllegalArgumentException("Unknown weighting: " + label);
+    }
+
+    /**
+     * @return the names of all weightings
+     */
+    public static String[] labels() {
+        String[] labels = new String[values().length];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = values()[i].m_label;
+        }
+        return labels;
+    }
+}
@@ -0,0 +1,411 @@
+package org.bof.histogram;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Builds histograms on several cores.
+ * <p>
+ * The keypoints are collected in chunks of consecutive rows. Each chunk is
+ * decoded on a pool into the partial histograms of its runs of rows with
+ * the same image key, either a fork-join pool of its own or a pool of the
+ * caller, e.g. a sub-pool of the KNIME thread pool. The partial histograms
+ * are handed to the {@link PartialHistogramHandler} in input order, so an
+ * image spanning a
+ * chunk boundary simply arrives as two consecutive partial histograms and
+ * the result does not depend on the number of threads.
+ * <p>
+ * With a {@link SpatialPyramid} the keypoint coordinates are collected as
+ * well and every keypoint is counted on all levels of the pyramid. With a
+ * {@link VocabularyLayout} of several vocabularies every keypoint has one
+ * label per vocabulary, each counted into the block of its vocabulary.
+ *
+ * @author David Kolb
+ */
+public class ParallelHistogramBuilder implements Closeable {
+
+    /** Default number of rows per chunk. */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 14;
+
+    /**
+     * Thrown if a cluster label can not be decoded.
+     */
+    public static class InvalidLabelException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param message the error message of the decoder
+         */
+        public InvalidLabelException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Receives the partial histograms in input order.
+     */
+    public interface PartialHistogramHandler {
+
+        /**
+         * @param key the key of the image
+         * @param bins the occupied bins in ascending order
+         * @param counts the counts of the occupied bins
+         * @throws Exception if the histogram could not be processed
+         */
+        void partialHistogram(String key, int[] bins, int[] counts)
+                throws Exception;
+    }
+
+    private final VocabularyLayout m_layout;
+
+    private final PartialHistogramHandler m_handler;
+
+    // labels per keypoint, one per vocabulary
+    private final int m_numLabels;
+
+    private final int m_chunkSize;
+
+    // chunks are decoded in parallel, but at most this many are in flight
+    private final int m_maxInFlight;
+
+    private final ExecutorService m_pool;
+
+    // whether the pool was created by the builder and is shut down by it
+    private final boolean m_ownPool;
+
+    private final ArrayDeque<Future<Chunk>> m_inFlight =
+            new ArrayDeque<Future<Chunk>>();
+
+    // the cleared histograms of the workers, a chunk takes one and returns
+    // it cleared, so there are at most as many as chunks running at once
+    private final ConcurrentLinkedQueue<int[]> m_histograms =
+            new ConcurrentLinkedQueue<int[]>();
+
+    private String[] m_keys;
+
+    private String[] m_labels;
+
+    private double[] m_xs;
+
+    private double[] m_ys;
+
+    private int m_size;
+
+    /**
+     * @param decoder decodes the cluster labels
+     * @param threads the number of threads to use
+     * @param chunkSize the number of rows per chunk
+     * @param handler receives the partial histograms
+     */
+    public ParallelHistogramBuilder(final ClusterLabelDecoder decoder,
+            final int threads, final int chunkSize,
+            final PartialHistogramHandler handler) {
+        this(VocabularyLayout.create(decoder, null), threads, chunkSize,
+                handler);
+    }
+
+    /**
+     * @param decoder decodes the cluster labels
+     * @param pyramid the layout of the pyramid histograms, <code>null</code>
+     *            for plain histograms
+     * @param threads the number of threads to use
+     * @param chunkSize the number of rows per chunk
+     * @param handler receives the partial histograms
+     */
+    public ParallelHistogramBuilder(final ClusterLabelDecoder decoder,
+            final SpatialPyramid pyramid, final int threads,
+            final int chunkSize, final PartialHistogramHandler handler) {
+        this(VocabularyLayout.create(decoder, pyramid), threads, chunkSize,
+                handler);
+    }
+
+    /**
+     * @param layout the vocabularies and the pyramid levels
+     * @param threads the number of threads to use
+     * @param chunkSize the number of rows per chunk
+     * @param handler receives the partial histograms
+     */
+    public ParallelHistogramBuilder(final VocabularyLayout layout,
+            final int threads, final int chunkSize,
+            final PartialHistogramHandler handler) {
+        this(layout, new ForkJoinPool(threads), true, threads, chunkSize,
+                handler);
+    }
+
+    /**
+     * @param layout the vocabularies and the pyramid levels
+     * @param pool decodes the chunks, it is not shut down by the builder
+     * @param threads the number of threads of the pool
+     * @param chunkSize the number of rows per chunk
+     * @param handler receives the partial histograms
+     */
+    public ParallelHistogramBuilder(final VocabularyLayout layout,
+            final ExecutorService pool, final int threads,
+            final int chunkSize, final PartialHistogramHandler handler) {
+        this(layout, pool, false, threads, chunkSize, handler);
+    }
+
+    private ParallelHistogramBuilder(final VocabularyLayout layout,
+            final ExecutorService pool, final boolean ownPool,
+            final int threads, final int chunkSize,
+            final PartialHistogramHandler handler) {
+        m_layout = layout;
+        m_numLabels = layout.getNumVocabularies();
+        m_handler = handler;
+        m_chunkSize = chunkSize;
+        m_maxInFlight = 2 * threads;
+        m_pool = pool;
+        m_ownPool = ownPool;
+        newChunk();
+    }
+
+    /**
+     * Adds the next keypoint.
+     *
+     * @param key the key of its image
+     * @param label its cluster label, <code>null</code> if missing
+     * @throws Exception if a finished chunk failed or thrown by the handler
+     */
+    public void add(final String key, final String label) throws Exception {
+        add(key, label, 0, 0);
+    }
+
+    /**
+     * Adds the next keypoint with its coordinates, which are only used with
+     * a pyramid.
+     *
+     * @param key the key of its image
+     * @param label its cluster label, <code>null</code> if missing
+     * @param x its x coordinate
+     * @param y its y coordinate
+     * @throws Exception if a finished chunk failed or thrown by the handler
+     */
+    public void add(final String key, final String label, final double x,
+            final double y) throws Exception {
+        m_labels[m_size * m_numLabels] = label;
+        addKeypoint(key, x, y);
+    }
+
+    /**
+     * Adds the next keypoint with one label per vocabulary.
+     *
+     * @param key the key of its image
+     * @param labels its cluster labels in the order of the vocabularies,
+     *            <code>null</code> where missing, copied
+     * @param x its x coordinate, only used with a pyramid
+     * @param y its y coordinate, only used with a pyramid
+     * @throws Exception if a finished chunk failed or thrown by the handler
+     */
+    public void add(final String key, final String[] labels, final double x,
+            final double y) throws Exception {
+        System.arraycopy(labels, 0, m_labels, m_size * m_numLabels,
+                m_numLabels);
+        addKeypoint(key, x, y);
+    }
+
+    private void addKeypoint(final String key, final double x, final double y)
+            throws Exception {
+        m_keys[m_size] = key;
+        if (m_layout.hasPyramid()) {
+            m_xs[m_size] = x;
+            m_ys[m_size] = y;
+        }
+        if (++m_size == m_chunkSize) {
+            submitChunk();
+        }
+    }
+
+    /**
+     * Waits for all chunks and hands out their partial histograms.
+     *
+     * @throws InvalidLabelException if a cluster label is invalid
+     * @throws Exception if a chunk failed or thrown by the handler
+     */
+    public void finish() throws Exception {
+        if (m_size > 0) {
+            submitChunk();
+        }
+        while (!m_inFlight.isEmpty()) {
+            handleNext();
+        }
+    }
+
+    /**
+     * Cancels the chunks in flight and stops the worker threads of an own
+     * pool.
+     */
+    @Override
+    public void close() {
+        for (Future<Chunk> future : m_inFlight) {
+            future.cancel(true);
+        }
+        m_inFlight.clear();
+        if (m_ownPool) {
+            m_pool.shutdownNow();
+        }
+    }
+
+    private void newChunk() {
+        m_keys = new String[m_chunkSize];
+        m_labels = new String[m_chunkSize * m_numLabels];
+        if (m_layout.hasPyramid()) {
+            m_xs = new double[m_chunkSize];
+            m_ys = new double[m_chunkSize];
+        }
+        m_size = 0;
+    }
+
+    private void submitChunk() throws Exception {
+        if (m_inFlight.size() >= m_maxInFlight) {
+            handleNext();
+        }
+        m_inFlight.add(m_pool.submit(new ChunkTask(m_keys, m_labels, m_xs, m_ys,
+                m_size)));
+        newChunk();
+    }
+
+    private void handleNext() throws Exception {
+        Chunk chunk;
+        try {
+            chunk = m_inFlight.poll().get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+        if (chunk.m_invalidLabel != null) {
+            throw new InvalidLabelException(m_layout.getDecoder(
+                    chunk.m_invalidVocabulary).getErrorMessage(
+                            chunk.m_invalidLabel));
+        }
+        for (Run run : chunk.m_runs) {
+            m_handler.partialHistogram(run.m_key, run.m_bins, run.m_counts);
+        }
+    }
+
+    private static final class Run {
+
+        private final String m_key;
+
+        private final int[] m_bins;
+
+        private final int[] m_counts;
+
+        Run(final String key, final int[] bins, final int[] counts) {
+            m_key = key;
+            m_bins = bins;
+            m_counts = counts;
+        }
+    }
+
+    private static final class Chunk {
+
+        private final List<Run> m_runs = new ArrayList<Run>();
+
+        // the first invalid label of the chunk, if any
+        private String m_invalidLabel;
+
+        private int m_invalidVocabulary;
+    }
+
+    private final class ChunkTask implements Callable<Chunk> {
+
+        private final String[] m_chunkKeys;
+
+        private final String[] m_chunkLabels;
+
+        private final double[] m_chunkXs;
+
+        private final double[] m_chunkYs;
+
+        private final int m_rows;
+
+        ChunkTask(final String[] keys, final String[] labels,
+                final double[] xs, final double[] ys, final int rows) {
+            m_chunkKeys = keys;
+            m_chunkLabels = labels;
+            m_chunkXs = xs;
+            m_chunkYs = ys;
+            m_rows = rows;
+        }
+
+        @Override
+        public Chunk call() {
+            Chunk chunk = new Chunk();
+            // bins touched by the current run, at most one entry per row,
+            // vocabulary and level
+            int levels = m_layout.getLevels();
+            int[] touched = new int[m_rows * m_numLabels * levels];
+            int[] histogram = m_histograms.poll();
+            if (histogram == null) {
+                histogram = new int[m_layout.getLength()];
+            }
+            int[] levelBins = new int[levels];
+            countRuns(chunk, touched, histogram, levelBins);
+            m_histograms.add(histogram);
+            return chunk;
+        }
+
+        // counts the runs of the chunk, the histogram is cleared again
+        private void countRuns(final Chunk chunk, final int[] touched,
+                final int[] histogram, final int[] levelBins) {
+            int levels = levelBins.length;
+            int start = 0;
+            while (start < m_rows) {
+                String key = m_chunkKeys[start];
+                int end = start;
+                int numTouched = 0;
+                while (end < m_rows && key.equals(m_chunkKeys[end])) {
+                    for (int v = 0; v < m_numLabels; v++) {
+                        String label = m_chunkLabels[end * m_numLabels + v];
+                        if (label == null) {
+                            continue;
+                        }
+                        int bin = m_layout.getDecoder(v).decode(label);
+                        if (bin == ClusterLabelDecoder.INVALID) {
+                            chunk.m_invalidLabel = label;
+                            chunk.m_invalidVocabulary = v;
+                            for (int i = 0; i < numTouched; i++) {
+                                histogram[touched[i]] = 0;
+                            }
+                            return;
+                        }
+                        if (levels == 1) {
+                            levelBins[0] = m_layout.getOffset(v) + bin;
+                        } else {
+                            m_layout.getBins(v, bin, m_chunkXs[end],
+                                    m_chunkYs[end], levelBins);
+                        }
+                        for (int l = 0; l < levels; l++) {
+                            if (histogram[levelBins[l]]++ == 0) {
+                                touched[numTouched++] = levelBins[l];
+                            }
+                        }
+                    }
+                    end++;
+                }
+                Arrays.sort(touched, 0, numTouched);
+                int[] bins = new int[numTouched];
+                int[] counts = new int[numTouched];
+                for (int i = 0; i < numTouched; i++) {
+                    bins[i] = touched[i];
+                    counts[i] = histogram[touched[i]];
+                    histogram[touched[i]] = 0;
+                }
+                chunk.m_runs.add(new Run(key, bins, counts));
+                start = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package org.bof.histogram;
+
+/**
+ * Layout of a spatial pyramid histogram in one flat array.
+ * <p>
+ * Level <code>l</code> splits the image into a grid of
+ * <code>2^l x 2^l</code> cells, each cell has its own histogram of all
+ * words. The histograms are stored level by level, the cells of a level row
+ * by row. Level 0 is the global histogram, so the first bins of a pyramid
+ * histogram are the plain bag-of-features histogram. A keypoint is counted
+ * once on every level, which is done in one call per keypoint.
+ *
+ * @author David Kolb
+ */
+public class SpatialPyramid {
+
+    private final int m_numWords;
+
+    private final int m_levels;
+
+    private final double m_width;
+
+    private final double m_height;
+
+    // the first bin of each level
+    private final int[] m_offsets;
+
+    private final int m_length;
+
+    /**
+     * @param numWords the number of words
+     * @param levels the number of levels, 1 for the global histogram only
+     * @param width the width of the images, larger x coordinates fall into
+     *            the last column of cells
+     * @param height the height of the images
+     */
+    public SpatialPyramid(final int numWords, final int levels,
+            final double width, final double height) {
+        if (levels < 1 || levels > 15) {
+            throw new IllegalArgumentException(
+                    "The number of pyramid levels must be between 1 and 15");
+        }
+        if (!(width > 0 && height > 0)) {
+            throw new IllegalArgumentException(
+                    "The image size must be positive");
+        }
+        m_numWords = numWords;
+        m_levels = levels;
+        m_width = width;
+        m_height = height;
+        m_offsets = new int[levels];
+        long length = 0;
+        for (int l = 0; l < levels; l++) {
+            m_offsets[l] = (int)length;
+            length += (long)numWords << (2 * l);
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The pyramid of " + levels
+                    + " levels has too many bins for " + numWords + " words");
+        }
+        m_length = (int)length;
+    }
+
+    /**
+     * @return the number of bins of a pyramid histogram
+     */
+    public int getLength() {
+        return m_length;
+    }
+
+    /**
+     * @return the width of the images
+     */
+    public double getWidth() {
+        return m_width;
+    }
+
+    /**
+     * @return the height of the images
+     */
+    public double getHeight() {
+        return m_height;
+    }
+
+    /**
+     * @return the number of levels
+     */
+    public int getLevels() {
+        return m_levels;
+    }
+
+    /**
+     * Writes the bin of a keypoint on every level.
+     *
+     * @param word the word of the keypoint
+     * @param x its x coordinate
+     * @param y its y coordinate
+     * @param bins receives one bin per level, ascending
+     */
+    public void getBins(final int word, final double x, final double y,
+            final int[] bins) {
+        // relative position in [0, 1], coordinates outside are clamped
+        double rx = Math.min(Math.max(x / m_width, 0), 1);
+        double ry = Math.min(Math.max(y / m_height, 0), 1);
+        for (int l = 0; l < m_levels; l++) {
+            int cells = 1 << l;
+            int cx = Math.min((int)(rx * cells), cells - 1);
+            int cy = Math.min((int)(ry * cells), cells - 1);
+            bins[l] = m_offsets[l] + (cy * cells + cx) * m_numWords + word;
+        }
+    }
+
+    /**
+     * Counts a keypoint on every level.
+     *
+     * @param histogram the pyramid histogram of the image
+     * @param word the word of the keypoint
+     * @param x its x coordinate
+     * @param y its y coordinate
+     */
+    public void add(final int[] histogram, final int word, final double x,
+            final double y) {
+        add(histogram, 0, word, x, y);
+    }
+
+    /**
+     * Counts a keypoint on every level of a pyramid histogram stored at an
+     * offset of a larger array.
+     *
+     * @param histogram the array holding the pyramid histogram
+     * @param offset the first bin of the pyramid histogram in the array
+     * @param word the word of the keypoint
+     * @param x its x coordinate
+     * @param y its y coordinate
+     */
+    public void add(final int[] histogram, final int offset, final int word,
+            final double x, final double y) {
+        double rx = Math.min(Math.max(x / m_width, 0), 1);
+        double ry = Math.min(Math.max(y / m_height, 0), 1);
+        for (int l = 0; l < m_levels; l++) {
+            int cells = 1 << l;
+            int cx = Math.min((int)(rx * cells), cells - 1);
+            int cy = Math.min((int)(ry * cells), cells - 1);
+            histogram[offset + m_offsets[l] + (cy * cells + cx) * m_numWords
+                    + word]++;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.bof.histogram;
+
+/**
+ * Layout of the histograms of several vocabularies concatenated in one flat
+ * array, so all of them are built in one pass over the keypoints.
+ * <p>
+ * Each vocabulary has its own block of bins, the blocks follow each other
+ * in the order of the vocabularies. A block is a {@link SpatialPyramid} of
+ * the words of its vocabulary, with one level it is the plain histogram.
+ * All vocabularies share the number of levels and the image size. With a
+ * single vocabulary the layout is the same as the one of its pyramid.
+ *
+ * @author David Kolb
+ */
+public class VocabularyLayout {
+
+    private final ClusterLabelDecoder[] m_decoders;
+
+    private final SpatialPyramid[] m_pyramids;
+
+    // the first bin of each vocabulary
+    private final int[] m_offsets;
+
+    private final int m_length;
+
+    /**
+     * @param decoders decode the cluster labels of each vocabulary
+     * @param levels the number of pyramid levels, 1 for plain histograms
+     * @param width the width of the images, ignored with one level
+     * @param height the height of the images, ignored with one level
+     */
+    public VocabularyLayout(final ClusterLabelDecoder[] decoders,
+            final int levels, final double width, final double height) {
+        if (decoders.length == 0) {
+            throw new IllegalArgumentException("No vocabulary given");
+        }
+        m_decoders = decoders.clone();
+        m_pyramids = new SpatialPyramid[decoders.length];
+        m_offsets = new int[decoders.length];
+        long length = 0;
+        for (int v = 0; v < decoders.length; v++) {
+            m_pyramids[v] = levels > 1
+                    ? new SpatialPyramid(decoders[v].getRange(), levels, width,
+                            height)
+                    : new SpatialPyramid(decoders[v].getRange(), 1, 1, 1);
+            m_offsets[v] = (int)length;
+            length += m_pyramids[v].getLength();
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(
+                    "The vocabularies have too many bins together");
+        }
+        m_length = (int)length;
+    }
+
+    /**
+     * @param decoder decodes the cluster labels
+     * @param pyramid the layout of the pyramid histograms, <code>null</code>
+     *            for plain histograms
+     * @return the layout of the single vocabulary
+     */
+    public static VocabularyLayout create(final ClusterLabelDecoder decoder,
+            final SpatialPyramid pyramid) {
+        if (pyramid == null) {
+            return new VocabularyLayout(new ClusterLabelDecoder[]{decoder}, 1,
+                    1, 1);
+        }
+        return new VocabularyLayout(new ClusterLabelDecoder[]{decoder},
+                pyramid.getLevels(), pyramid.getWidth(), pyramid.getHeight());
+    }
+
+    /**
+     * @return the number of vocabularies
+     */
+    public int getNumVocabularies() {
+        return m_decoders.length;
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the decoder of its cluster labels
+     */
+    public ClusterLabelDecoder getDecoder(final int vocabulary) {
+        return m_decoders[vocabulary];
+    }
+
+    /**
+     * @param vocabulary the index of a vocabulary
+     * @return the first bin of its block
+     */
+    public int getOffset(final int vocabulary) {
+        return m_offsets[vocabulary];
+    }
+
+    /**
+     * @return the number of pyramid levels
+     */
+    public int getLevels() {
+        return m_pyramids[0].getLevels();
+    }
+
+    /**
+     * @return the width of the images
+     */
+    public double getWidth() {
+        return m_pyramids[0].getWidth();
+    }
+
+    /**
+     * @return the height of the images
+     */
+    public double getHeight() {
+        return m_pyramids[0].getHeight();
+    }
+
+    /**
+     * @return whether the keypoint coordinates are needed
+     */
+    public boolean hasPyramid() {
+        return getLevels() > 1;
+    }
+
+    /**
+     * @return the number of bins of all vocabularies together
+     */
+    public int getLength() {
+        return m_length;
+    }
+
+    /**
+     * Writes the bin of a keypoint on every level of the block of a
+     * vocabulary.
+     *
+     * @param vocabulary the index of the vocabulary
+     * @param word the word of the keypoint
+     * @param x its x coordinate
+     * @param y its y coordinate
+     * @param bins receives one bin per level, ascending
+     */
+    public void getBins(final int vocabulary, final int word, final double x,
+            final double y, final int[] bins) {
+        m_pyramids[vocabulary].getBins(word, x, y, bins);
+        int offset = m_offsets[vocabulary];
+        for (int l = 0; l < m_pyramids[vocabulary].getLevels(); l++) {
+            bins[l] += offset;
+        }
+    }
+
+    /**
+     * Counts a keypoint on every level of the block of a vocabulary.
+     *
+     * @param histogram the histogram of the image
+     * @param vocabulary the index of the vocabulary
+     * @param word the word of the keypoint
+     * @param x its x coordinate
+     * @param y its y coordinate
+     */
+    public void add(final int[] histogram, final int vocabulary,
+            final int word, final double x, final double y) {
+        m_pyramids[vocabulary].add(histogram, m_offsets[vocabulary], word,
+                x, y);
+    }
+}